@@ -1,6 +1,11 @@
 package pl.pawelkielb.fchat.client;
 
+import pl.pawelkielb.fchat.Checksums;
+import pl.pawelkielb.fchat.ChunkSizer;
 import pl.pawelkielb.fchat.Connection;
+import pl.pawelkielb.fchat.Feature;
+import pl.pawelkielb.fchat.Multiplexer;
+import pl.pawelkielb.fchat.Protocol;
 import pl.pawelkielb.fchat.StringUtils;
 import pl.pawelkielb.fchat.client.config.ChannelConfig;
 import pl.pawelkielb.fchat.client.config.ClientConfig;
@@ -8,41 +13,63 @@ import pl.pawelkielb.fchat.client.exceptions.FileReadException;
 import pl.pawelkielb.fchat.client.exceptions.FileWriteException;
 import pl.pawelkielb.fchat.data.Message;
 import pl.pawelkielb.fchat.data.Name;
+import pl.pawelkielb.fchat.exceptions.ChecksumMismatchException;
 import pl.pawelkielb.fchat.exceptions.DisconnectedException;
 import pl.pawelkielb.fchat.exceptions.NetworkException;
 import pl.pawelkielb.fchat.packets.*;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
-import java.util.Iterator;
-import java.util.List;
-import java.util.NoSuchElementException;
-import java.util.UUID;
+import java.security.MessageDigest;
+import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 
 import static pl.pawelkielb.fchat.Exceptions.throwAsUnchecked;
-import static pl.pawelkielb.fchat.TransferSettings.fileChunkSizeInBytes;
+import static pl.pawelkielb.fchat.Functions.r;
+import static pl.pawelkielb.fchat.TransferSettings.minFileChunkSizeInBytes;
 
 
 /**
  * A stateful fchat client.
+ * If the server supports {@link Feature#MULTIPLEXING}, every request is sent on a separate stream,
+ * so requests made from different threads don't wait for each other.
  */
 public class Client {
     private final Database database;
     private final Connection connection;
     private final ClientConfig clientConfig;
+    private final Supplier<Connection> connectionFactory;
     private boolean loggedIn = false;
 
     public Client(Database database, Connection connection, ClientConfig clientConfig) {
+        this(database, connection, clientConfig, null);
+    }
+
+    /**
+     * @param connectionFactory a function creating new connections to the same server. They are used to download
+     *                          a file over many connections at once, see
+     *                          {@link #downloadFileInParallel(UUID, Name, Path, int, Consumer)}.
+     */
+    public Client(Database database,
+                  Connection connection,
+                  ClientConfig clientConfig,
+                  Supplier<Connection> connectionFactory) {
+
         this.database = database;
         this.connection = connection;
         this.clientConfig = clientConfig;
+        this.connectionFactory = connectionFactory;
     }
 
     /**
@@ -56,21 +83,26 @@ public class Client {
     public void sync() throws ProtocolException {
         login();
 
-        doSync(() -> connection.sendPacket(new RequestUpdatesPacket()));
+        var connection = openStream();
+        try {
+            doSync(() -> connection.sendPacket(new RequestUpdatesPacket()));
 
-        while (true) {
-            var packet = doSync(connection::readPacket);
+            while (true) {
+                var packet = doSync(connection::readPacket);
 
-            if (packet == null) {
-                break;
-            }
+                if (packet == null) {
+                    break;
+                }
 
-            if (packet instanceof ChannelUpdatedPacket channelUpdatedPacket) {
-                var channelConfig = new ChannelConfig(channelUpdatedPacket.channel());
-                database.saveChannel(channelUpdatedPacket.name(), channelConfig);
-            } else {
-                throw new ProtocolException();
+                if (packet instanceof ChannelUpdatedPacket channelUpdatedPacket) {
+                    var channelConfig = new ChannelConfig(channelUpdatedPacket.channel());
+                    database.saveChannel(channelUpdatedPacket.name(), channelConfig);
+                } else {
+                    throw new ProtocolException();
+                }
             }
+        } finally {
+            closeStream(connection);
         }
     }
 
@@ -96,7 +128,12 @@ public class Client {
 
         var channelId = UUID.randomUUID();
         var updateChannelPacket = new UpdateChannelPacket(channelId, name, members);
-        doSync(() -> connection.sendPacket(updateChannelPacket));
+        var connection = openStream();
+        try {
+            doSync(() -> connection.sendPacket(updateChannelPacket));
+        } finally {
+            closeStream(connection);
+        }
         sync();
     }
 
@@ -111,7 +148,12 @@ public class Client {
         login();
 
         var sendMessagePacket = new SendMessagePacket(channel, message);
-        doSync(() -> connection.sendPacket(sendMessagePacket));
+        var connection = openStream();
+        try {
+            doSync(() -> connection.sendPacket(sendMessagePacket));
+        } finally {
+            closeStream(connection);
+        }
     }
 
     /**
@@ -127,6 +169,7 @@ public class Client {
         login();
 
         var requestMessagesPacket = new RequestMessagesPacket(channel, count);
+        var connection = openStream();
         doSync(() -> connection.sendPacket(requestMessagesPacket));
 
         var iterator = new Iterator<Message>() {
@@ -138,11 +181,15 @@ public class Client {
 
                 if (packet == null) {
                     finished = true;
+                    closeStream(connection);
                     return;
                 }
 
                 if (packet instanceof SendMessagePacket sendMessagePacket) {
                     nextMessage = sendMessagePacket.message();
+                } else if (packet instanceof MessageCursorPacket) {
+                    // older messages are not needed
+                    getNext();
                 } else {
                     throwAsUnchecked(new ProtocolException());
                 }
@@ -177,12 +224,123 @@ public class Client {
         return () -> iterator;
     }
 
+    /**
+     * Reads a page of the channel's history. The older pages are read by passing the returned cursor.
+     * If the server doesn't support {@link Feature#PAGINATION}, only the newest page can be read.
+     *
+     * @param channel an uuid of a channel from which you want to read the messages
+     * @param count   a count of messages to read
+     * @param before  a cursor returned with the newer page or {@link RequestMessagesPacket#newest}
+     * @return The messages, from the oldest one, and a cursor of the older page.
+     * @throws NetworkException      if network fails
+     * @throws ProtocolException     if the server does something unexpected
+     * @throws DisconnectedException if the server disconnects
+     */
+    public MessagePage readMessages(UUID channel, int count, long before) {
+        return readMessages(channel, count, before, 0);
+    }
+
+    /**
+     * Reads a page of the messages saved since the given time, e.g. the ones missed while the client was offline.
+     * The older pages are read by passing the returned cursor and the same time. There are no older pages
+     * when the cursor is 0.
+     *
+     * @param since a time in milliseconds since the epoch or 0 to read all the messages
+     * @throws ProtocolException if the server does something unexpected or the time is given,
+     *                           but the server doesn't support {@link Feature#TIME_RANGES}
+     * @see #readMessages(UUID, int, long)
+     */
+    public MessagePage readMessages(UUID channel, int count, long before, long since) {
+        login();
+
+        if (since != 0 && !connection.protocol().supports(Feature.TIME_RANGES)) {
+            throwAsUnchecked(new ProtocolException("The server doesn't support reading messages since a time"));
+        }
+
+        // an older server would send the newest messages again
+        if (!connection.protocol().supports(Feature.PAGINATION) && before != RequestMessagesPacket.newest) {
+            return new MessagePage(List.of(), 0);
+        }
+
+        var connection = openStream();
+        doSync(() -> connection.sendPacket(new RequestMessagesPacket(channel, count, before, since)));
+
+        List<Message> messages = new ArrayList<>();
+        long cursor = 0;
+        while (true) {
+            var packet = doSync(connection::readPacket);
+            if (packet == null) {
+                break;
+            }
+
+            if (packet instanceof SendMessagePacket sendMessagePacket) {
+                messages.add(sendMessagePacket.message());
+            } else if (packet instanceof MessageCursorPacket messageCursorPacket) {
+                cursor = messageCursorPacket.before();
+            } else {
+                throwAsUnchecked(new ProtocolException());
+            }
+        }
+        closeStream(connection);
+
+        return new MessagePage(messages, cursor);
+    }
+
+    /**
+     * Finds the messages containing all the words of the query.
+     *
+     * @param channel an uuid of a channel to search
+     * @param count   the biggest count of messages to find. The newest ones are found first.
+     * @param before  the sequence number of the oldest message found previously or {@link RequestMessagesPacket#newest}
+     * @return The found messages, from the oldest one.
+     * @throws NetworkException      if network fails
+     * @throws ProtocolException     if the server does something unexpected or it doesn't support {@link Feature#SEARCH}
+     * @throws DisconnectedException if the server disconnects
+     */
+    public List<FoundMessagePacket> searchMessages(UUID channel, String query, int count, long before)
+            throws ProtocolException {
+
+        login();
+        if (!connection.protocol().supports(Feature.SEARCH)) {
+            throw new ProtocolException("The server doesn't support searching");
+        }
+
+        var connection = openStream();
+        doSync(() -> connection.sendPacket(new SearchMessagesPacket(channel, query, count, before)));
+
+        List<FoundMessagePacket> found = new ArrayList<>();
+        while (true) {
+            var packet = doSync(connection::readPacket);
+            if (packet == null) {
+                break;
+            }
+
+            if (packet instanceof FoundMessagePacket foundMessagePacket) {
+                found.add(foundMessagePacket);
+            } else {
+                throw new ProtocolException();
+            }
+        }
+        closeStream(connection);
+
+        return found;
+    }
+
     public static class NotFileException extends RuntimeException {
     }
 
+    /**
+     * Sends the whole file, see {@link #sendFile(UUID, Path, boolean, Consumer)}.
+     */
+    public void sendFile(UUID channel, Path path, Consumer<Double> progressConsumer) throws IOException {
+        sendFile(channel, path, false, progressConsumer);
+    }
+
     /**
      * @param channel          an uuid of the channel you want to send the file to
      * @param path             a path of the file you want to send
+     * @param resume           if true and an upload of a file with the same name was interrupted before,
+     *                         only the part the server doesn't have yet is sent
      * @param progressConsumer a callback function, that'll be called to report the upload progress.
      *                         Its parameter is a value from 0.0 to 1.0.
      * @throws NetworkException      if network fails
@@ -191,8 +349,11 @@ public class Client {
      * @throws NoSuchFileException   if the path's target does not exist
      * @throws NotFileException      if the path's target is not a file
      * @throws FileReadException     if reading the file fails
+     * @throws ChecksumMismatchException if the file has been damaged on the way
      */
-    public void sendFile(UUID channel, Path path, Consumer<Double> progressConsumer) throws IOException {
+    public void sendFile(UUID channel, Path path, boolean resume, Consumer<Double> progressConsumer)
+            throws IOException {
+
         if (!Files.exists(path)) {
             throw new NoSuchFileException(path.toString());
         }
@@ -204,16 +365,62 @@ public class Client {
         login();
 
         var totalSize = Files.size(path);
-        long bytesSent = 0;
+        var name = Name.of(path.getFileName().toString());
+        var connection = openStream();
+
+        boolean resumable = connection.protocol().supports(Feature.RESUMABLE_TRANSFERS);
+        // the server lowers the offset to what it has
+        long requestedOffset = resume && resumable ? totalSize : 0;
+        doSync(() -> connection.sendPacket(new SendFilePacket(channel, name, totalSize, requestedOffset)));
+
+        boolean windowed = connection.protocol().supports(Feature.WINDOWED_UPLOAD);
+        boolean checksums = connection.protocol().supports(Feature.CHECKSUMS);
+        var digest = checksums ? Checksums.newFileDigest() : null;
+        int credit = 0;
+
+        try (InputStream inputStream = Files.newInputStream(path); ChunkSizer chunkSizer = new ChunkSizer()) {
+            long bytesSent = 0;
+            if (resumable) {
+                if (!(doSync(connection::readPacket) instanceof SendFilePacket sendFilePacket)) {
+                    throw new ProtocolException();
+                }
 
-        var sendFilePacket = new SendFilePacket(channel, Name.of(path.getFileName().toString()), Files.size(path));
-        doSync(() -> connection.sendPacket(sendFilePacket));
+                bytesSent = sendFilePacket.offset();
+                chunkSizer.setLimit(sendFilePacket.chunkSize());
+                if (digest != null) {
+                    // the digest covers the whole file, so the part sent before has to be read anyway
+                    updateDigest(digest, inputStream, bytesSent);
+                } else {
+                    inputStream.skipNBytes(bytesSent);
+                }
+            }
 
-        try (InputStream inputStream = Files.newInputStream(path)) {
             while (true) {
-                doSync(connection::readPacket);
-                var nextBytes = inputStream.readNBytes(fileChunkSizeInBytes);
+                if (windowed) {
+                    // waits only when the server's buffer is full
+                    while (credit == 0) {
+                        int chunks = readUploadCredit(connection);
+                        // the credit comes back after the chunks are written
+                        for (int i = 0; i < chunks; i++) {
+                            chunkSizer.chunkAcknowledged();
+                        }
+                        credit += chunks;
+                    }
+                    credit--;
+                } else {
+                    doSync(connection::readPacket);
+                    chunkSizer.chunkAcknowledged();
+                }
+
+                var nextBytes = inputStream.readNBytes(chunkSizer.nextChunkSize());
+                if (nextBytes.length != 0) {
+                    chunkSizer.chunkSent(nextBytes.length);
+                }
                 doSync(() -> connection.sendBytes(nextBytes));
+                if (digest != null && nextBytes.length != 0) {
+                    digest.update(nextBytes);
+                    doSync(() -> connection.sendPacket(new ChunkChecksumPacket(Checksums.crc32c(nextBytes))));
+                }
                 bytesSent += nextBytes.length;
                 progressConsumer.accept(((double) bytesSent) / totalSize);
 
@@ -221,13 +428,53 @@ public class Client {
                     break;
                 }
             }
+
+            String savedDigest = null;
+            if (windowed) {
+                // the server confirms that the file is saved with a null-packet, the unused credit may come before it
+                while (true) {
+                    var packet = doSync(connection::readPacket);
+                    if (packet == null) {
+                        break;
+                    }
+
+                    if (packet instanceof FileDigestPacket fileDigestPacket) {
+                        savedDigest = fileDigestPacket.digest();
+                    } else if (!(packet instanceof UploadCreditPacket)) {
+                        throw new ProtocolException();
+                    }
+                }
+            } else if (checksums) {
+                if (!(doSync(connection::readPacket) instanceof FileDigestPacket fileDigestPacket)) {
+                    throw new ProtocolException();
+                }
+                savedDigest = fileDigestPacket.digest();
+            }
+
+            if (digest != null && !Checksums.toHex(digest).equals(savedDigest)) {
+                throw new ChecksumMismatchException("The file saved by the server is different");
+            }
+        } finally {
+            closeStream(connection);
         }
     }
 
+    /**
+     * Downloads the whole file to a new file, see {@link #downloadFile(UUID, Name, Path, boolean, Consumer)}.
+     */
+    public void downloadFile(UUID channel, Name name, Path destinationDirectory, Consumer<Double> progressConsumer)
+            throws NotDirectoryException, ProtocolException {
+
+        downloadFile(channel, name, destinationDirectory, false, progressConsumer);
+    }
+
     /**
      * @param channel              an uuid of a channel from which you want to download the file
      * @param name                 a name of the file to download
      * @param destinationDirectory a directory the file will be saved to
+     * @param resume               if true and the directory already contains a file with such a name, it's treated as
+     *                             a part of an interrupted download and only the rest of the file is downloaded.
+     *                             Otherwise the file is saved under a new name.
      * @param progressConsumer     a callback function, that'll be called to report the download progress.
      *                             Its parameter is a value from 0.0 to 1.0.
      * @throws NetworkException       if network fails
@@ -236,9 +483,13 @@ public class Client {
      * @throws NotDirectoryException  if the not a directory is passed as a directory
      * @throws NoSuchElementException if there is no file with such a name in the channel
      * @throws FileWriteException     if saving the file fails
+     * @throws ChecksumMismatchException if the file has been damaged on the way
      */
-    public void downloadFile(UUID channel, Name name, Path destinationDirectory, Consumer<Double> progressConsumer)
-            throws NotDirectoryException, ProtocolException {
+    public void downloadFile(UUID channel,
+                             Name name,
+                             Path destinationDirectory,
+                             boolean resume,
+                             Consumer<Double> progressConsumer) throws NotDirectoryException, ProtocolException {
 
         if (!Files.isDirectory(destinationDirectory)) {
             throw new NotDirectoryException(destinationDirectory.toString());
@@ -246,60 +497,418 @@ public class Client {
 
         login();
 
-        doSync(() -> connection.sendPacket(new RequestFilePacket(channel, name)));
+        var connection = openStream();
+        try (var chunkSizer = new ChunkSizer()) {
+            downloadFile(connection, channel, name, destinationDirectory, resume, chunkSizer.maxChunkSize(),
+                    progressConsumer);
+        } finally {
+            closeStream(connection);
+        }
+    }
+
+    private void downloadFile(Connection connection,
+                              UUID channel,
+                              Name name,
+                              Path destinationDirectory,
+                              boolean resume,
+                              int chunkSize,
+                              Consumer<Double> progressConsumer) throws ProtocolException {
+
+        Path filePath = destinationDirectory.resolve(name.toString());
+        boolean resumed = resume && Files.exists(filePath);
+        long offset = 0;
+        if (resumed) {
+            try {
+                offset = Files.size(filePath);
+            } catch (IOException e) {
+                throw new FileWriteException(filePath, e);
+            }
+        }
+
+        var requestFilePacket = new RequestFilePacket(channel, name, offset, Long.MAX_VALUE, chunkSize);
+        doSync(() -> connection.sendPacket(requestFilePacket));
         var packet = doSync(connection::readPacket);
 
         if (packet == null) {
             throw new NoSuchElementException(name.toString());
         }
 
-        long fileSize;
-        if (packet instanceof SendFilePacket sendFilePacket) {
-            fileSize = sendFilePacket.size();
-        } else {
+        if (!(packet instanceof SendFilePacket sendFilePacket)) {
             throw new ProtocolException();
         }
 
-        long bytesWritten = 0;
+        long fileSize = sendFilePacket.size();
+        // older servers always send the whole file
+        long position = sendFilePacket.offset();
 
-        var filename = name.toString();
-        Path filePath = null;
-        OutputStream output = null;
+        boolean checksums = connection.protocol().supports(Feature.CHECKSUMS);
+        var digest = checksums ? Checksums.newFileDigest() : null;
 
-        // find unused file name
-        while (output == null) {
-            filePath = destinationDirectory.resolve(filename);
+        try {
+            if (!resumed) {
+                filePath = createFile(destinationDirectory, name);
+            }
+        } catch (IOException e) {
+            throw new FileWriteException(filePath, e);
+        }
+
+        // the file is closed when a chunk is damaged or the download fails, too
+        try (var output = FileChannel.open(filePath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            output.truncate(position);
+            if (digest != null) {
+                // the digest covers the whole file, so the part downloaded before has to be read
+                updateDigest(digest, output, position);
+            }
+
+            while (true) {
+                var nextBytes = doSync(connection::readBytes);
+                if (digest != null && nextBytes.length != 0) {
+                    verifyChunk(connection, nextBytes);
+                    digest.update(nextBytes);
+                }
 
+                var buffer = ByteBuffer.wrap(nextBytes);
+                while (buffer.hasRemaining()) {
+                    position += output.write(buffer, position);
+                }
+                progressConsumer.accept(((double) position) / fileSize);
+
+                if (nextBytes.length != 0) {
+                    doSync(() -> connection.sendPacket(null));
+                } else {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            throw new FileWriteException(filePath, e);
+        }
+
+        if (digest != null) {
+            String fileDigest = readFileDigest(connection);
+            if (fileDigest != null && !Checksums.toHex(digest).equals(fileDigest)) {
+                throw new ChecksumMismatchException("The downloaded file is different than the file on the server");
+            }
+        }
+    }
+
+    /**
+     * Downloads the file to a new file. The file is split into ranges, which are downloaded at the same time,
+     * each over a separate connection. It helps when a single connection can't use the whole bandwidth.
+     * If the server can't send ranges of files or no connection factory was given, it downloads the file
+     * like {@link #downloadFile(UUID, Name, Path, Consumer)} does.
+     *
+     * @param channel              an uuid of a channel from which you want to download the file
+     * @param name                 a name of the file to download
+     * @param destinationDirectory a directory the file will be saved to
+     * @param connections          a maximum count of connections used at once
+     * @param progressConsumer     a callback function, that'll be called to report the download progress.
+     *                             Its parameter is a value from 0.0 to 1.0.
+     * @throws NetworkException       if network fails
+     * @throws ProtocolException      if the server does something unexpected or the downloaded file is incomplete
+     * @throws DisconnectedException  if the server disconnects
+     * @throws NotDirectoryException  if the not a directory is passed as a directory
+     * @throws NoSuchElementException if there is no file with such a name in the channel
+     * @throws FileWriteException     if saving the file fails
+     * @throws ChecksumMismatchException if the file has been damaged on the way
+     */
+    public void downloadFileInParallel(UUID channel,
+                                       Name name,
+                                       Path destinationDirectory,
+                                       int connections,
+                                       Consumer<Double> progressConsumer)
+            throws NotDirectoryException, ProtocolException {
+
+        if (!Files.isDirectory(destinationDirectory)) {
+            throw new NotDirectoryException(destinationDirectory.toString());
+        }
+
+        login();
+
+        if (connections < 2 || connectionFactory == null
+                || !connection.protocol().supports(Feature.RESUMABLE_TRANSFERS)) {
+
+            downloadFile(channel, name, destinationDirectory, false, progressConsumer);
+            return;
+        }
+
+        // an empty range tells only the size of the file
+        long fileSize;
+        String fileDigest = null;
+        var sizeStream = openStream();
+        try {
+            fileSize = requestFileRange(sizeStream, channel, name, 0, 0, 0).size();
+            if (doSync(sizeStream::readBytes).length != 0) {
+                throw new ProtocolException();
+            }
+            if (sizeStream.protocol().supports(Feature.CHECKSUMS)) {
+                fileDigest = readFileDigest(sizeStream);
+            }
+        } finally {
+            closeStream(sizeStream);
+        }
+
+        Path filePath = destinationDirectory.resolve(name.toString());
+        FileChannel output;
+        try {
+            filePath = createFile(destinationDirectory, name);
+            output = FileChannel.open(filePath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            // the ranges are written into their places, so the whole file is allocated up front
+            if (fileSize > 0) {
+                output.write(ByteBuffer.allocate(1), fileSize - 1);
+            }
+        } catch (IOException e) {
+            throw new FileWriteException(filePath, e);
+        }
+
+        // a range smaller than the smallest chunk isn't worth a connection
+        long chunks = (fileSize + minFileChunkSizeInBytes - 1) / minFileChunkSizeInBytes;
+        int rangeCount = (int) Math.max(1, Math.min(connections, chunks));
+        long rangeSize = (fileSize + rangeCount - 1) / rangeCount;
+
+        var downloaded = new AtomicLong();
+        var covered = new AtomicLong();
+        Consumer<Integer> onBytesWritten = count -> {
+            synchronized (progressConsumer) {
+                progressConsumer.accept(((double) downloaded.addAndGet(count)) / fileSize);
+            }
+        };
+
+        ExecutorService threads = Executors.newFixedThreadPool(rangeCount);
+        Path finalFilePath = filePath;
+        String finalFileDigest = fileDigest;
+        boolean completed = false;
+        try {
+            List<CompletableFuture<Void>> ranges = new ArrayList<>(rangeCount);
+            for (int i = 0; i < rangeCount; i++) {
+                long offset = Math.min(i * rangeSize, fileSize);
+                long length = Math.min(rangeSize, fileSize - offset);
+                boolean first = i == 0;
+
+                ranges.add(CompletableFuture.runAsync(r(() -> {
+                    // the other ranges use their own sockets, which are closed when the range is done
+                    var rangeSocket = first ? null : connectionFactory.get();
+                    try {
+                        if (rangeSocket != null) {
+                            login(rangeSocket);
+                        }
+                        var rangeConnection = openStream(first ? connection : rangeSocket);
+                        try (var chunkSizer = new ChunkSizer()) {
+                            covered.addAndGet(downloadFileRange(rangeConnection, channel, name, offset, length,
+                                    fileSize, finalFileDigest, chunkSizer.maxChunkSize(), output, finalFilePath,
+                                    onBytesWritten));
+                        } finally {
+                            closeStream(rangeConnection);
+                        }
+                    } finally {
+                        if (rangeSocket != null) {
+                            doSync(rangeSocket::close);
+                        }
+                    }
+                }), threads));
+            }
+            doSync(() -> CompletableFuture.allOf(ranges.toArray(CompletableFuture[]::new)));
+
+            // the file is allocated up front, so its size doesn't tell if all the ranges were saved
+            if (covered.get() != fileSize) {
+                throw new ProtocolException("The downloaded file is incomplete");
+            }
+
+            var digest = Checksums.newFileDigest();
             try {
-                output = Files.newOutputStream(filePath, StandardOpenOption.CREATE);
-            } catch (FileAlreadyExistsException e) {
-                filename = StringUtils.incrementFileName(filename);
+                // the ranges come in parallel, so the digest can be calculated only when the file is complete
+                if (fileDigest != null) {
+                    updateDigest(digest, output, fileSize);
+                }
+                output.close();
             } catch (IOException e) {
                 throw new FileWriteException(filePath, e);
             }
+
+            if (fileDigest != null && !Checksums.toHex(digest).equals(fileDigest)) {
+                throw new ChecksumMismatchException("The downloaded file is different than the file on the server");
+            }
+            completed = true;
+        } finally {
+            threads.shutdown();
+
+            // a preallocated file can't be resumed, so it isn't left behind
+            if (!completed) {
+                try {
+                    output.close();
+                    Files.deleteIfExists(filePath);
+                } catch (IOException ignore) {
+                }
+            }
         }
+    }
 
+    /**
+     * Downloads a single range of a file and checks that the server sent exactly this range.
+     *
+     * @param fileDigest     the digest of the whole file sent before or null if it isn't known
+     * @param onBytesWritten a callback called with a count of bytes after every chunk
+     * @return A count of the saved bytes.
+     */
+    private long downloadFileRange(Connection connection,
+                                   UUID channel,
+                                   Name name,
+                                   long offset,
+                                   long length,
+                                   long fileSize,
+                                   String fileDigest,
+                                   int chunkSize,
+                                   FileChannel output,
+                                   Path filePath,
+                                   Consumer<Integer> onBytesWritten) throws ProtocolException {
+
+        var sendFilePacket = requestFileRange(connection, channel, name, offset, length, chunkSize);
+        if (sendFilePacket.size() != fileSize || sendFilePacket.offset() != offset) {
+            // the file has been changed or the server ignores ranges
+            throw new ProtocolException();
+        }
+
+        boolean checksums = connection.protocol().supports(Feature.CHECKSUMS);
+        long position = offset;
+        long end = offset + length;
         while (true) {
             var nextBytes = doSync(connection::readBytes);
+            if (nextBytes.length == 0) {
+                break;
+            }
+
+            if (position + nextBytes.length > end) {
+                throw new ProtocolException();
+            }
+
+            if (checksums) {
+                verifyChunk(connection, nextBytes);
+            }
+
             try {
-                output.write(nextBytes);
+                var buffer = ByteBuffer.wrap(nextBytes);
+                while (buffer.hasRemaining()) {
+                    position += output.write(buffer, position);
+                }
             } catch (IOException e) {
                 throw new FileWriteException(filePath, e);
             }
-            bytesWritten += nextBytes.length;
-            progressConsumer.accept(((double) bytesWritten) / fileSize);
+            onBytesWritten.accept(nextBytes.length);
 
-            if (nextBytes.length != 0) {
-                doSync(() -> connection.sendPacket(null));
-            } else {
+            doSync(() -> connection.sendPacket(null));
+        }
+
+        if (position != end) {
+            throw new ProtocolException("The range is incomplete");
+        }
+
+        // every range is sent with the digest of the whole file, which is checked when all the ranges are saved
+        if (checksums) {
+            String rangeFileDigest = readFileDigest(connection);
+            if (rangeFileDigest != null && fileDigest != null && !rangeFileDigest.equals(fileDigest)) {
+                throw new ProtocolException("The file has been changed during the download");
+            }
+        }
+
+        return position - offset;
+    }
+
+    /**
+     * Reads the checksum sent after the chunk and compares it with the chunk.
+     *
+     * @throws ChecksumMismatchException if the chunk has been damaged
+     */
+    private void verifyChunk(Connection connection, byte[] chunk) throws ProtocolException {
+        if (!(doSync(connection::readPacket) instanceof ChunkChecksumPacket chunkChecksumPacket)) {
+            throw new ProtocolException();
+        }
+
+        if (chunkChecksumPacket.checksum() != Checksums.crc32c(chunk)) {
+            throw new ChecksumMismatchException("A chunk of the file has been damaged");
+        }
+    }
+
+    /**
+     * @return The digest sent by the server at the end of a download or null if the server doesn't know it.
+     */
+    private String readFileDigest(Connection connection) throws ProtocolException {
+        var packet = doSync(connection::readPacket);
+        if (packet == null) {
+            return null;
+        }
+
+        if (!(packet instanceof FileDigestPacket fileDigestPacket)) {
+            throw new ProtocolException();
+        }
+
+        return fileDigestPacket.digest();
+    }
+
+    private static void updateDigest(MessageDigest digest, InputStream input, long length) throws IOException {
+        long remaining = length;
+        while (remaining > 0) {
+            var bytes = input.readNBytes((int) Math.min(minFileChunkSizeInBytes, remaining));
+            if (bytes.length == 0) {
+                throw new EOFException();
+            }
+
+            digest.update(bytes);
+            remaining -= bytes.length;
+        }
+    }
+
+    private static void updateDigest(MessageDigest digest, FileChannel file, long length) throws IOException {
+        var buffer = ByteBuffer.allocate(64 * 1024);
+        long position = 0;
+        while (position < length) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), length - position));
+            int read = file.read(buffer, position);
+            if (read < 0) {
                 break;
             }
+
+            digest.update(buffer.array(), 0, read);
+            position += read;
         }
+    }
 
-        try {
-            output.close();
-        } catch (IOException e) {
-            throw new FileWriteException(filePath, e);
+    /**
+     * @return The server's response describing the file.
+     * @throws NoSuchElementException if there is no file with such a name in the channel
+     */
+    private SendFilePacket requestFileRange(Connection connection,
+                                            UUID channel,
+                                            Name name,
+                                            long offset,
+                                            long length,
+                                            int chunkSize) throws ProtocolException {
+
+        doSync(() -> connection.sendPacket(new RequestFilePacket(channel, name, offset, length, chunkSize)));
+        var packet = doSync(connection::readPacket);
+
+        if (packet == null) {
+            throw new NoSuchElementException(name.toString());
+        }
+
+        if (!(packet instanceof SendFilePacket sendFilePacket)) {
+            throw new ProtocolException();
+        }
+
+        return sendFilePacket;
+    }
+
+    /**
+     * Creates an empty file. If a file with such a name already exists, the name is incremented.
+     *
+     * @return A path of the created file.
+     */
+    private static Path createFile(Path directory, Name name) throws IOException {
+        var filename = name.toString();
+        while (true) {
+            try {
+                return Files.createFile(directory.resolve(filename));
+            } catch (FileAlreadyExistsException e) {
+                filename = StringUtils.incrementFileName(filename);
+            }
         }
     }
 
@@ -314,10 +923,51 @@ public class Client {
         }
     }
 
-    private void login() {
+    private int readUploadCredit(Connection connection) throws ProtocolException {
+        var packet = doSync(connection::readPacket);
+        if (packet instanceof UploadCreditPacket uploadCreditPacket) {
+            return uploadCreditPacket.chunks();
+        }
+
+        throw new ProtocolException();
+    }
+
+    /**
+     * @return A new stream if the connection is multiplexed, otherwise the connection itself.
+     */
+    private Connection openStream() {
+        return openStream(connection);
+    }
+
+    private static Connection openStream(Connection connection) {
+        if (connection.protocol().supports(Feature.MULTIPLEXING)) {
+            return connection.multiplexer().openStream();
+        }
+
+        return connection;
+    }
+
+    private void closeStream(Connection stream) {
+        if (stream instanceof Multiplexer.Stream multiplexerStream) {
+            doSync(multiplexerStream::close);
+        }
+    }
+
+    private synchronized void login() {
         if (!loggedIn) {
-            doSync(() -> connection.sendPacket(new LoginPacket(clientConfig.username())));
+            login(connection);
             loggedIn = true;
         }
     }
+
+    private void login(Connection connection) {
+        doSync(() -> connection.sendPacket(new LoginPacket(clientConfig.username(), Protocol.current())));
+
+        var packet = doSync(connection::readPacket);
+        if (packet instanceof LoginResponsePacket loginResponsePacket) {
+            connection.useProtocol(loginResponsePacket.protocol());
+        } else if (packet != null) {
+            throwAsUnchecked(new ProtocolException());
+        }
+    }
 }
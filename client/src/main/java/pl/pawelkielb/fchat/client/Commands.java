@@ -9,6 +9,7 @@ import pl.pawelkielb.fchat.data.Message;
 import pl.pawelkielb.fchat.data.Name;
 import pl.pawelkielb.fchat.exceptions.DisconnectedException;
 import pl.pawelkielb.fchat.exceptions.NetworkException;
+import pl.pawelkielb.fchat.packets.RequestMessagesPacket;
 
 import java.net.ProtocolException;
 import java.nio.file.NoSuchFileException;
@@ -23,6 +24,9 @@ import static pl.pawelkielb.fchat.Exceptions.throwAsUnchecked;
 
 
 public abstract class Commands {
+    private static final String resumeFlag = "--resume";
+    private static final String parallelFlag = "--parallel";
+
     public static void execute(String command,
                                List<String> args,
                                ClientConfig clientConfig,
@@ -72,7 +76,15 @@ public abstract class Commands {
                 applicationExitEvent
         );
 
-        Client client = new Client(database, connection, clientConfig);
+        Client client = new Client(database, connection, clientConfig, () -> new Connection(
+                packetEncoder,
+                clientConfig.serverHost(),
+                clientConfig.serverPort(),
+                executor,
+                executor,
+                logger,
+                applicationExitEvent
+        ));
 
         switch (command) {
             case "create" -> {
@@ -152,6 +164,21 @@ public abstract class Commands {
                         .forEach(message -> printMessage(console, message)));
             }
 
+            case "search" -> {
+                if (channelConfig == null) {
+                    ExceptionHandler.onCommandNotUsedInChannelDirectory();
+                    return;
+                }
+
+                if (args.size() == 0) {
+                    ExceptionHandler.onMissingArgument("Please provide words to search for");
+                }
+
+                String query = String.join(" ", args);
+                doNetwork(() -> client.searchMessages(channelConfig.id(), query, 100, RequestMessagesPacket.newest)
+                        .forEach(found -> printMessage(console, found.message())));
+            }
+
             case "sync" -> doNetwork(client::sync);
 
             case "sendfile" -> {
@@ -160,14 +187,16 @@ public abstract class Commands {
                     return;
                 }
 
-                if (args.size() == 0) {
+                boolean resume = args.contains(resumeFlag);
+                List<String> paths = withoutFlag(args, resumeFlag);
+                if (paths.size() == 0) {
                     ExceptionHandler.onMissingArgument("Please provide a path");
                 }
 
-                Path path = Paths.get(args.get(0));
+                Path path = Paths.get(paths.get(0));
                 ProgressBar progressBar = new ProgressBar(console);
 
-                doNetwork(() -> client.sendFile(channelConfig.id(), path, progressBar::update), e -> {
+                doNetwork(() -> client.sendFile(channelConfig.id(), path, resume, progressBar::update), e -> {
                     if (e instanceof NoSuchFileException) {
                         ExceptionHandler.onIllegalArgument("No such file", e);
                     }
@@ -188,15 +217,28 @@ public abstract class Commands {
                     return;
                 }
 
-                if (args.size() == 0) {
+                boolean resume = args.contains(resumeFlag);
+                boolean parallel = args.contains(parallelFlag);
+                if (resume && parallel) {
+                    ExceptionHandler.onIllegalArgument("A parallel download cannot be resumed");
+                }
+
+                List<String> names = withoutFlag(withoutFlag(args, resumeFlag), parallelFlag);
+                if (names.size() == 0) {
                     ExceptionHandler.onMissingArgument("Please provide a file name");
                 }
 
-                Name fileName = Name.of(args.get(0));
+                Name fileName = Name.of(names.get(0));
                 ProgressBar progressBar = new ProgressBar(console);
 
                 try {
-                    doNetwork(() -> client.downloadFile(channelConfig.id(), fileName, Paths.get("."), progressBar::update));
+                    if (parallel) {
+                        doNetwork(() -> client.downloadFileInParallel(channelConfig.id(), fileName, Paths.get("."),
+                                TransferSettings.parallelDownloadConnections, progressBar::update));
+                    } else {
+                        doNetwork(() -> client.downloadFile(
+                                channelConfig.id(), fileName, Paths.get("."), resume, progressBar::update));
+                    }
                 } catch (NoSuchElementException e) {
                     ExceptionHandler.onIllegalArgument("No such file", e);
                 }
@@ -208,6 +250,10 @@ public abstract class Commands {
         }
     }
 
+    private static List<String> withoutFlag(List<String> args, String flag) {
+        return args.stream().filter(it -> !it.equals(flag)).toList();
+    }
+
     private static void printMessage(Console console, Message message) {
         console.println(String.format("%s: %s", message.author(), message.content()));
     }
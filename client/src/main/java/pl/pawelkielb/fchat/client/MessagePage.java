@@ -0,0 +1,15 @@
+package pl.pawelkielb.fchat.client;
+
+import pl.pawelkielb.fchat.data.Message;
+
+import java.util.List;
+
+
+/**
+ * A page of a channel's history, see {@link Client#readMessages(java.util.UUID, int, long)}.
+ *
+ * @param messages the messages, from the oldest one
+ * @param before   a cursor to read the older page with or 0 if there are no older messages
+ */
+public record MessagePage(List<Message> messages, long before) {
+}
@@ -4,6 +4,8 @@ import io.mockk.every
 import io.mockk.mockk
 import io.mockk.verify
 import pl.pawelkielb.fchat.Connection
+import pl.pawelkielb.fchat.Feature
+import pl.pawelkielb.fchat.Protocol
 import pl.pawelkielb.fchat.client.Client
 import pl.pawelkielb.fchat.client.Database
 import pl.pawelkielb.fchat.client.config.ChannelConfig
@@ -11,6 +13,7 @@ import pl.pawelkielb.fchat.client.config.ClientConfig
 import pl.pawelkielb.fchat.data.Name
 import pl.pawelkielb.fchat.packets.ChannelUpdatedPacket
 import pl.pawelkielb.fchat.packets.LoginPacket
+import pl.pawelkielb.fchat.packets.LoginResponsePacket
 import pl.pawelkielb.fchat.packets.RequestUpdatesPacket
 import pl.pawelkielb.fchat.packets.UpdateChannelPacket
 import java.util.*
@@ -28,7 +31,23 @@ class ClientTest : WordSpec({
 
             client.sync()
             client.sync()
-            verify(exactly = 1) { connection.sendPacket(LoginPacket(config.username)) }
+            verify(exactly = 1) { connection.sendPacket(LoginPacket(config.username, Protocol.current())) }
+        }
+
+        "use the protocol chosen by the server" {
+            val connection = mockk<Connection>(relaxed = true)
+            val database = mockk<Database>()
+            val config = ClientConfig.defaults()
+            val client = Client(database, connection, config)
+            val protocol = Protocol(Protocol.currentVersion, setOf(Feature.COMPRESSION))
+
+            every { connection.readPacket() } returnsMany listOf(
+                LoginResponsePacket(protocol),
+                null
+            ).map { CompletableFuture.completedFuture(it) }
+
+            client.sync()
+            verify(exactly = 1) { connection.useProtocol(protocol) }
         }
 
         "send RequestUpdatesPacket" {
@@ -52,6 +71,7 @@ class ClientTest : WordSpec({
             val channelId = UUID.randomUUID()
 
             every { connection.readPacket() } returnsMany listOf(
+                LoginResponsePacket(Protocol.base),
                 ChannelUpdatedPacket(channelId, Name.of("Coders")),
                 ChannelUpdatedPacket(channelId, Name.of("Book readers")),
                 null
@@ -0,0 +1,120 @@
+package pl.pawelkielb.fchat.server;
+
+import pl.pawelkielb.fchat.Logger;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+
+/**
+ * Stores contents of the files by their hashes, so a file sent to many channels is stored only once.
+ * Every blob counts the references to it and is deleted when the last one is released. It's thread-safe.
+ */
+class BlobStore {
+    private final Path directory;
+    private final Executor ioThreads;
+    private final FileTaskQueue<Path> fileTaskQueue;
+    private final Logger logger;
+
+    private final FileTaskQueue<String> blobTaskQueue = new FileTaskQueue<>();
+
+    /**
+     * @param fileTaskQueue a queue used to read the blobs, so a blob is not deleted while it's being read
+     */
+    BlobStore(Path directory, Executor ioThreads, FileTaskQueue<Path> fileTaskQueue, Logger logger) {
+        this.directory = directory;
+        this.ioThreads = ioThreads;
+        this.fileTaskQueue = fileTaskQueue;
+        this.logger = logger;
+    }
+
+    /**
+     * @param hash a hash of the content
+     * @return A path of the blob with such content.
+     */
+    Path path(String hash) {
+        return directory.resolve(hash);
+    }
+
+    /**
+     * Adds a reference to the blob with the file's content. If there is no such blob yet the file is moved
+     * to the store, otherwise the file is deleted. The content is never copied.
+     *
+     * @param hash a hash of the file's content
+     * @param file a closed file, which must be on the same file system
+     * @return A future that will be resolved when the reference is saved.
+     */
+    CompletableFuture<Void> add(String hash, Path file) {
+        return blobTaskQueue.runSuspendWriting(hash, task -> ioThreads.execute(() -> {
+            try {
+                long references = readReferences(hash);
+                if (references == 0) {
+                    Files.createDirectories(directory);
+                    // the blob might have been left without references by a crash
+                    Files.move(file, path(hash), StandardCopyOption.REPLACE_EXISTING);
+                    logger.info("Saved blob: " + hash);
+                } else {
+                    Files.delete(file);
+                }
+                writeReferences(hash, references + 1);
+
+                task.complete(null);
+            } catch (Exception e) {
+                task.completeExceptionally(e);
+            }
+        }));
+    }
+
+    /**
+     * Removes a reference to the blob. The last one deletes the blob, after everyone finishes reading it.
+     *
+     * @param hash a hash of the blob's content
+     * @return A future that will be resolved when the reference is removed.
+     */
+    CompletableFuture<Void> release(String hash) {
+        return blobTaskQueue.runSuspendWriting(hash, task -> ioThreads.execute(() -> {
+            try {
+                long references = readReferences(hash) - 1;
+                if (references > 0) {
+                    writeReferences(hash, references);
+                    task.complete(null);
+                    return;
+                }
+
+                fileTaskQueue.runSuspendWriting(path(hash), fileTask -> ioThreads.execute(() -> {
+                    try {
+                        Files.deleteIfExists(path(hash));
+                        Files.deleteIfExists(referencesPath(hash));
+                        logger.info("Deleted blob: " + hash);
+                        task.complete(null);
+                    } catch (Exception e) {
+                        task.completeExceptionally(e);
+                    }
+                    fileTask.complete(null);
+                }));
+            } catch (Exception e) {
+                task.completeExceptionally(e);
+            }
+        }));
+    }
+
+    private long readReferences(String hash) throws Exception {
+        Path path = referencesPath(hash);
+        if (!Files.exists(path)) {
+            return 0;
+        }
+
+        return Long.parseLong(Files.readString(path).trim());
+    }
+
+    private void writeReferences(String hash, long references) throws Exception {
+        Files.writeString(referencesPath(hash), String.valueOf(references));
+    }
+
+    private Path referencesPath(String hash) {
+        return directory.resolve(hash + ".references");
+    }
+}
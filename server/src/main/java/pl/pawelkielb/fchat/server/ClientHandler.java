@@ -1,7 +1,9 @@
 package pl.pawelkielb.fchat.server;
 
+import pl.pawelkielb.fchat.ChunkSizer;
 import pl.pawelkielb.fchat.Connection;
-import pl.pawelkielb.fchat.Observable;
+import pl.pawelkielb.fchat.Feature;
+import pl.pawelkielb.fchat.Protocol;
 import pl.pawelkielb.fchat.data.Message;
 import pl.pawelkielb.fchat.data.Name;
 import pl.pawelkielb.fchat.packets.*;
@@ -12,10 +14,11 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
 
 import static pl.pawelkielb.fchat.Functions.*;
-import static pl.pawelkielb.fchat.TransferSettings.fileChunkSizeInBytes;
+import static pl.pawelkielb.fchat.TransferSettings.uploadWindowSizeInChunks;
 
 /**
  * Handles a single client's requests. It's not thread-safe.
@@ -25,14 +28,35 @@ public class ClientHandler {
     private final Connection connection;
     private final MessageManager messageManager;
     private final Executor workerThreads;
+    private final Protocol serverProtocol;
 
     private Name username;
 
-    public ClientHandler(Database database, Connection connection, MessageManager messageManager, Executor workerThreads) {
+    /**
+     * @param serverProtocol the highest protocol the server is willing to use with this client
+     */
+    public ClientHandler(Database database,
+                         Connection connection,
+                         MessageManager messageManager,
+                         Executor workerThreads,
+                         Protocol serverProtocol) {
+
         this.database = database;
         this.connection = connection;
         this.messageManager = messageManager;
         this.workerThreads = workerThreads;
+        this.serverProtocol = serverProtocol;
+    }
+
+    /**
+     * @param connection a stream of the connection of this handler
+     * @return A new handler of the same logged-in client, which handles requests from the given stream.
+     */
+    public ClientHandler forConnection(Connection connection) {
+        ClientHandler clientHandler = new ClientHandler(database, connection, messageManager, workerThreads, serverProtocol);
+        clientHandler.username = username;
+
+        return clientHandler;
     }
 
     /**
@@ -54,6 +78,8 @@ public class ClientHandler {
                 handleSendMessagePacket(sendMessagePacket, handlePacketFuture);
             } else if (packet instanceof RequestMessagesPacket requestMessagesPacket) {
                 handleRequestMessagesPacket(requestMessagesPacket, handlePacketFuture);
+            } else if (packet instanceof SearchMessagesPacket searchMessagesPacket) {
+                handleSearchMessagesPacket(searchMessagesPacket, handlePacketFuture);
             } else if (packet instanceof SendFilePacket sendFilePacket) {
                 handleSendFilePacket(sendFilePacket, handlePacketFuture);
             } else if (packet instanceof RequestFilePacket requestFilePacket) {
@@ -74,6 +100,14 @@ public class ClientHandler {
 
     private void handleLoginPacket(LoginPacket packet, CompletableFuture<Void> handlePacketFuture) {
         username = packet.username();
+
+        // older clients don't expect any response
+        if (packet.protocol().hasLoginResponse()) {
+            Protocol protocol = serverProtocol.negotiate(packet.protocol());
+            connection.sendPacket(new LoginResponsePacket(protocol));
+            connection.useProtocol(protocol);
+        }
+
         handlePacketFuture.complete(null);
     }
 
@@ -132,57 +166,149 @@ public class ClientHandler {
     }
 
     private void handleRequestMessagesPacket(RequestMessagesPacket packet, CompletableFuture<Void> handlePacketFuture) {
-        database.getMessages(packet.channel(), packet.count()).subscribe(message ->
+        MessagePage page = database.getMessages(packet.channel(), packet.count(), packet.before(), packet.since());
+        page.messages().subscribe(message ->
                 connection.sendPacket(new SendMessagePacket(packet.channel(), message)), () -> {
+            if (connection.protocol().supports(Feature.PAGINATION)) {
+                connection.sendPacket(new MessageCursorPacket(page.before().join()));
+            }
             connection.sendPacket(null);
             handlePacketFuture.complete(null);
         });
     }
 
-    private void handleSendFilePacket(SendFilePacket packet, CompletableFuture<Void> handlePacketFuture) {
-        Observable<Integer> producer = new Observable<>();
-        Observable<byte[]> consumer = new Observable<>();
+    private void handleSearchMessagesPacket(SearchMessagesPacket packet, CompletableFuture<Void> handlePacketFuture) {
+        database.searchMessages(packet.channel(), packet.query(), packet.count(), packet.before())
+                .subscribe(connection::sendPacket, () -> {
+                    connection.sendPacket(null);
+                    handlePacketFuture.complete(null);
+                });
+    }
 
-        var saveFileFuture = database.saveFile(
-                packet.channel(),
-                packet.name(),
-                new AsyncStream<>(producer, consumer)
-        );
+    private void handleSendFilePacket(SendFilePacket packet, CompletableFuture<Void> handlePacketFuture)
+            throws ProtocolException {
 
-        AtomicLong totalSize = new AtomicLong(0);
-        producer.subscribe(rc(() -> {
-            connection.sendPacket(null);
-            connection.readBytes().thenAccept(nextBytes -> {
-                totalSize.addAndGet(nextBytes.length);
-                if (nextBytes.length != 0) {
-                    consumer.onNext(nextBytes);
-                } else {
-                    consumer.complete();
+        // partial files belong to the user
+        checkLoggedIn();
+
+        boolean windowed = connection.protocol().supports(Feature.WINDOWED_UPLOAD);
+        boolean resumable = connection.protocol().supports(Feature.RESUMABLE_TRANSFERS);
+        boolean checksums = connection.protocol().supports(Feature.CHECKSUMS);
+        long requestedOffset = resumable ? packet.offset() : 0;
+
+        database.openPartialFile(packet.channel(), username, packet.name(), requestedOffset).thenAccept(file -> {
+            CompletableFuture<Long> upload = new CompletableFuture<>();
+            ChunkSizer chunkSizer = new ChunkSizer();
+            upload.whenComplete((totalSize, exception) -> chunkSizer.close());
+
+            if (resumable) {
+                // tells the client where to continue from and how big chunks it can send
+                connection.sendPacket(new SendFilePacket(packet.channel(), packet.name(), packet.size(), file.size(),
+                        chunkSizer.maxChunkSize()));
+            }
+
+            int window = windowed ? uploadWindowSizeInChunks : 1;
+            connection.sendPacket(windowed ? new UploadCreditPacket(window) : null);
+            receiveFileChunk(file, file.size(), windowed, checksums, new AtomicInteger(window),
+                    CompletableFuture.completedFuture(null), upload);
+
+            upload.thenCompose(totalSize -> database.saveFile(packet.channel(), file, packet.name())
+                    .thenAcceptBoth(file.hash(), (fileName, digest) -> {
+                        messageManager.pushMessage(packet.channel(), new Message(username,
+                                String.format("file \"%s\" (%d bytes)", fileName, totalSize)));
+                        if (checksums) {
+                            // lets the client verify the whole file without reading it again
+                            connection.sendPacket(new FileDigestPacket(digest));
+                        }
+                        if (windowed) {
+                            // tells the client that the file is saved
+                            connection.sendPacket(null);
+                        }
+                        handlePacketFuture.complete(null);
+                    })).exceptionally(cvf(exception -> {
+                // the partial file stays, so the upload can be resumed
+                r(file::close).run();
+                handlePacketFuture.completeExceptionally(exception);
+            }));
+        }).exceptionally(cvf(handlePacketFuture::completeExceptionally));
+    }
+
+    /**
+     * Writes the chunks straight from the connection to the file.
+     * In the windowed mode the client gets credit for the next chunk after the previous one is written,
+     * so no more than the window of chunks waits in the buffers. Otherwise every chunk is requested with a null-packet.
+     * A chunk sent without credit fails the upload. With checksums every chunk is followed by its checksum,
+     * which is compared with the one calculated while the chunk is written, before the credit is given back.
+     *
+     * @param credit  how many chunks the client can still send
+     * @param granted a future resolved when the credit for the previous chunks has been sent
+     */
+    private void receiveFileChunk(PartialFile file,
+                                  long position,
+                                  boolean windowed,
+                                  boolean checksums,
+                                  AtomicInteger credit,
+                                  CompletableFuture<Void> granted,
+                                  CompletableFuture<Long> upload) {
+
+        CRC32C checksum = checksums ? new CRC32C() : null;
+        connection.readBytes(file.channel(), position, checksum).thenAccept(c(length -> {
+            // the end of the file takes credit too
+            if (credit.decrementAndGet() < 0) {
+                throw new ProtocolException("A chunk has been sent without credit");
+            }
+
+            if (length == 0) {
+                // the credit must not come after the confirmation of the upload
+                granted.thenRun(() -> upload.complete(position));
+                return;
+            }
+
+            if (!checksums) {
+                receiveFileChunk(file, position + length, windowed, false, credit,
+                        grantCredit(file.written(length), granted, windowed, credit, upload), upload);
+                return;
+            }
+
+            connection.readPacket().thenAccept(c(packet -> {
+                if (!(packet instanceof ChunkChecksumPacket chunkChecksumPacket)) {
+                    throw new ProtocolException();
                 }
-            });
-        }));
 
-        saveFileFuture.thenAccept(fileName -> {
-            messageManager.pushMessage(packet.channel(), new Message(username,
-                    String.format("file \"%s\" (%d bytes)", fileName, totalSize.get())));
-            handlePacketFuture.complete(null);
+                CompletableFuture<Void> written = file.written(length, (int) checksum.getValue(),
+                        chunkChecksumPacket.checksum());
+                receiveFileChunk(file, position + length, windowed, true, credit,
+                        grantCredit(written, granted, windowed, credit, upload), upload);
+            })).exceptionally(cvf(upload::completeExceptionally));
+        })).exceptionally(cvf(upload::completeExceptionally));
+    }
+
+    /**
+     * Gives the client credit for the next chunk once the previous one is written and the credit before it is sent.
+     *
+     * @return A future that will be resolved when the credit is sent.
+     */
+    private CompletableFuture<Void> grantCredit(CompletableFuture<Void> written,
+                                                CompletableFuture<Void> granted,
+                                                boolean windowed,
+                                                AtomicInteger credit,
+                                                CompletableFuture<Long> upload) {
+
+        written.exceptionally(cvf(upload::completeExceptionally));
+        return written.thenAcceptBoth(granted, (a, b) -> {
+            credit.incrementAndGet();
+            connection.sendPacket(windowed ? new UploadCreditPacket(1) : null);
         });
     }
 
     private void handleRequestFilePacket(RequestFilePacket packet, CompletableFuture<Void> handlePacketFuture) {
-        database.getFileSize(packet.channel(), packet.name()).thenAccept(size -> {
-            connection.sendPacket(new SendFilePacket(packet.channel(), packet.name(), size));
-
-            var file = database.getFile(packet.channel(), packet.name());
-            file.subscribe(fileChunkSizeInBytes, nextBytes -> {
-                connection.sendBytes(nextBytes).exceptionally(cvf(t -> file.close()));
-                connection.readPacket()
-                        .thenRun(() -> file.requestNext(fileChunkSizeInBytes))
-                        .exceptionally(cvf(t -> file.close()));
-            }, () -> {
-                connection.sendBytes(new byte[0]);
-                handlePacketFuture.complete(null);
-            }, handlePacketFuture::completeExceptionally);
+        database.openFile(packet.channel(), packet.name()).thenAccept(file -> {
+            long offset = Math.min(packet.offset(), file.size());
+            long end = offset + Math.min(packet.length(), file.size() - offset);
+
+            connection.sendPacket(new SendFilePacket(packet.channel(), packet.name(), file.size(), offset));
+            boolean checksums = connection.protocol().supports(Feature.CHECKSUMS);
+            sendFileChunk(file, new ChunkSizer(packet.chunkSize()), offset, end, checksums, handlePacketFuture);
         }).exceptionally(cvf(throwable -> {
             if (throwable.getCause() instanceof NoSuchFileException) {
                 connection.sendPacket(null);
@@ -192,4 +318,58 @@ public class ClientHandler {
             }
         }));
     }
+
+    /**
+     * Sends the chunks straight from the file, so they are never copied to the heap.
+     * With checksums every chunk is followed by its checksum and the whole file's digest is sent at the end.
+     * The checksum is calculated from the bytes on their way to the connection, so the chunk is read only once.
+     * The size of the chunks follows the client's acknowledgements.
+     */
+    private void sendFileChunk(StoredFile file,
+                               ChunkSizer chunkSizer,
+                               long position,
+                               long end,
+                               boolean checksums,
+                               CompletableFuture<Void> handlePacketFuture) {
+
+        int count = (int) Math.min(chunkSizer.nextChunkSize(), end - position);
+        if (count == 0) {
+            chunkSizer.close();
+            r(file::close).run();
+            connection.sendBytes(new byte[0]);
+            if (checksums) {
+                // files saved before the digests existed have none
+                connection.sendPacket(file.digest() != null ? new FileDigestPacket(file.digest()) : null);
+            }
+            handlePacketFuture.complete(null);
+            return;
+        }
+
+        chunkSizer.chunkSent(count);
+        CRC32C checksum = checksums ? new CRC32C() : null;
+        connection.sendFileRegion(file.channel(), position, count, checksum).thenRun(() -> {
+            if (checksums) {
+                connection.sendPacket(new ChunkChecksumPacket((int) checksum.getValue()));
+            }
+        }).exceptionally(cvf(exception -> stopSendingFile(file, chunkSizer, handlePacketFuture, exception)));
+        connection.readPacket()
+                .thenRun(() -> {
+                    chunkSizer.chunkAcknowledged();
+                    sendFileChunk(file, chunkSizer, position + count, end, checksums, handlePacketFuture);
+                })
+                .exceptionally(cvf(exception -> stopSendingFile(file, chunkSizer, handlePacketFuture, exception)));
+    }
+
+    /**
+     * Releases everything a download holds after it fails. Can be called more than once.
+     */
+    private static void stopSendingFile(StoredFile file,
+                                        ChunkSizer chunkSizer,
+                                        CompletableFuture<Void> handlePacketFuture,
+                                        Throwable exception) {
+
+        chunkSizer.close();
+        r(file::close).run();
+        handlePacketFuture.completeExceptionally(exception);
+    }
 }
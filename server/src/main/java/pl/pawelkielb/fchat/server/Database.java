@@ -7,21 +7,29 @@ import pl.pawelkielb.fchat.StringUtils;
 import pl.pawelkielb.fchat.data.Message;
 import pl.pawelkielb.fchat.data.Name;
 import pl.pawelkielb.fchat.packets.ChannelUpdatedPacket;
+import pl.pawelkielb.fchat.packets.FoundMessagePacket;
+import pl.pawelkielb.fchat.packets.RequestMessagesPacket;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.file.FileAlreadyExistsException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 import static pl.pawelkielb.fchat.Functions.c;
+import static pl.pawelkielb.fchat.Functions.cvf;
 import static pl.pawelkielb.fchat.Functions.r;
 
 
@@ -29,6 +37,14 @@ import static pl.pawelkielb.fchat.Functions.r;
  * Allows saving and loading the server's data. It's thread-safe.
  */
 public class Database {
+    private static final long recentMessagesSizeInBytes = 32 * 1024 * 1024;
+    private static final long compressionIntervalMillis = 10 * 60_000;
+    private static final long retentionIntervalMillis = 10 * 60_000;
+    // a full segment of a log is compressed when it hasn't been written for this long
+    private static final long coldMessagesAgeMillis = 60 * 60_000;
+    // an upload which hasn't been resumed for this long is abandoned, so its partial file is deleted
+    private static final long abandonedUploadAgeMillis = 7 * 24 * 60 * 60_000L;
+
     private final Executor ioThreads;
     private final Executor workerThreads;
     private final Path updatesDirectory;
@@ -40,6 +56,16 @@ public class Database {
     private final FileTaskQueue<Name> updatesTaskQueue = new FileTaskQueue<>();
     private final FileTaskQueue<UUID> fileCreationTaskQueue = new FileTaskQueue<>();
     private final FileTaskQueue<Path> fileTaskQueue = new FileTaskQueue<>();
+    private final BlobStore blobs;
+    private final MessageLogCache messageLogs;
+    private final MessageTailCache recentMessages = new MessageTailCache(recentMessagesSizeInBytes);
+    private final Durability durability;
+    private final RetentionPolicy retention;
+    private final ScheduledExecutorService maintenance;
+    private final Map<UUID, List<PendingMessage>> pendingMessages = new HashMap<>();
+
+    private record PendingMessage(Message message, CompletableFuture<Void> future) {
+    }
 
     public Database(Executor workerThreads,
                     Executor ioThreads,
@@ -47,12 +73,74 @@ public class Database {
                     PacketEncoder packetEncoder,
                     Logger logger) {
 
+        this(workerThreads, ioThreads, rootDirectory, packetEncoder, logger, Durability.NONE, 0);
+    }
+
+    /**
+     * @param syncIntervalMillis how often the messages are forced to the disk in the {@link Durability#PERIODIC} mode
+     */
+    public Database(Executor workerThreads,
+                    Executor ioThreads,
+                    Path rootDirectory,
+                    PacketEncoder packetEncoder,
+                    Logger logger,
+                    Durability durability,
+                    long syncIntervalMillis) {
+
+        this(workerThreads, ioThreads, rootDirectory, packetEncoder, logger, durability, syncIntervalMillis,
+                RetentionPolicy.unlimited);
+    }
+
+    /**
+     * @param retention how much of the channels' history is kept, unless a channel has its own policy
+     */
+    public Database(Executor workerThreads,
+                    Executor ioThreads,
+                    Path rootDirectory,
+                    PacketEncoder packetEncoder,
+                    Logger logger,
+                    Durability durability,
+                    long syncIntervalMillis,
+                    RetentionPolicy retention) {
+
         this.ioThreads = ioThreads;
         this.workerThreads = workerThreads;
         this.updatesDirectory = rootDirectory.resolve("updates");
         this.messagesDirectory = rootDirectory.resolve("messages");
         this.packetEncoder = packetEncoder;
         this.logger = logger;
+        this.blobs = new BlobStore(rootDirectory.resolve("blobs"), ioThreads, fileTaskQueue, logger);
+        this.durability = durability;
+        this.retention = retention;
+        this.messageLogs = new MessageLogCache(
+                messagesDirectory, durability == Durability.PERIODIC ? syncIntervalMillis : 0);
+
+        // the old history is taken care of in the background, so it shouldn't slow down the clients
+        this.maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "message-maintenance");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        maintenance.scheduleWithFixedDelay(() -> expireOldData(System.currentTimeMillis()),
+                retentionIntervalMillis, retentionIntervalMillis, TimeUnit.MILLISECONDS);
+        maintenance.scheduleWithFixedDelay(() -> compressColdMessages(coldMessagesAgeMillis),
+                compressionIntervalMillis, compressionIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the background maintenance and closes the open message logs, so the written messages are forced
+     * to the disk if they are synced. The database can't be used after that.
+     */
+    public void close() {
+        maintenance.shutdown();
+        try {
+            // deleting or compressing a segment is finished, so the logs aren't closed in the middle of it
+            maintenance.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        messageLogs.close();
     }
 
     /**
@@ -155,52 +243,68 @@ public class Database {
     }
 
     /**
+     * Queues the message to be saved. Messages queued while the channel's previous batch is being written
+     * are written together, with a single write to each of the channel's files.
+     *
      * @param channel a channel on which the message should be saved
      * @param message
-     * @return A future that will be resolved when the saving completes.
+     * @return A future that will be resolved when the saving completes, see {@link Durability}.
      */
     public CompletableFuture<Void> saveMessage(UUID channel, Message message) {
-        return messagesTaskQueue.runSuspendWriting(channel, task -> {
-            try {
-                Path directory = messagesDirectory.resolve(channel.toString());
-                Path messagesPath = directory.resolve("messages.txt");
-                Path indexPath = directory.resolve("index");
-
-                ioThreads.execute(r(() -> {
-                    try {
-                        Files.createDirectories(directory);
-                        long start;
-                        long length;
-                        try (RandomAccessFile raf = new RandomAccessFile(messagesPath.toFile(), "rw")) {
-                            // go to end of the file
-                            raf.seek(raf.length());
-
-                            start = raf.getFilePointer();
-                            raf.write(message.author().value().getBytes());
-                            newLine(raf);
-                            raf.write(message.content().getBytes());
-                            long end = raf.getFilePointer();
-                            length = end - start;
-                            newLine(raf);
-                            newLine(raf);
-                        }
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        boolean batchScheduled;
+        synchronized (pendingMessages) {
+            List<PendingMessage> batch = pendingMessages.computeIfAbsent(channel, it -> new ArrayList<>());
+            batchScheduled = !batch.isEmpty();
+            batch.add(new PendingMessage(message, future));
+        }
+
+        if (!batchScheduled) {
+            messagesTaskQueue.runSuspendWriting(channel, task -> ioThreads.execute(() -> {
+                saveMessages(channel);
+                task.complete(null);
+            }));
+        }
 
-                        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES * 2);
-                        buffer.putLong(start);
-                        buffer.putLong(length);
+        return future;
+    }
 
-                        Files.write(indexPath, buffer.array(), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    private void saveMessages(UUID channel) {
+        List<PendingMessage> batch;
+        synchronized (pendingMessages) {
+            // the messages queued from now on go to the next batch
+            batch = pendingMessages.remove(channel);
+        }
 
-                        logger.info(String.format("Saved message for channel %s: %s", channel, message));
-                        task.complete(null);
-                    } catch (Exception e) {
-                        task.completeExceptionally(e);
-                    }
-                }));
-            } catch (Exception e) {
-                task.completeExceptionally(e);
+        try {
+            // the channel's log stays open, so the batch is appended with just a write to each of its files
+            MessageLogCache.Handle handle = messageLogs.acquire(channel);
+            try {
+                List<Message> messages = batch.stream().map(PendingMessage::message).toList();
+                long firstSequence = handle.log().nextSequence();
+                try {
+                    handle.append(messages);
+                } catch (IOException e) {
+                    // a part of the batch might have been written
+                    recentMessages.invalidate(channel);
+                    throw e;
+                }
+                recentMessages.append(channel, firstSequence, messages);
+                if (durability == Durability.BATCH) {
+                    handle.sync();
+                }
+            } finally {
+                messageLogs.release(handle);
             }
-        });
+        } catch (Exception e) {
+            batch.forEach(it -> it.future().completeExceptionally(e));
+            return;
+        }
+
+        for (PendingMessage pendingMessage : batch) {
+            logger.info(String.format("Saved message for channel %s: %s", channel, pendingMessage.message()));
+            pendingMessage.future().complete(null);
+        }
     }
 
     /**
@@ -209,161 +313,460 @@ public class Database {
      * @return An Observable of the messages.
      */
     public Observable<Message> getMessages(UUID channel, int count) {
+        return getMessages(channel, count, RequestMessagesPacket.newest, 0).messages();
+    }
+
+    /**
+     * Reads a page of the channel's history. A message's sequence number is its position in the history,
+     * so the page is found right away no matter how far back it is.
+     *
+     * @param channel the channel from which to read the messages
+     * @param count   a count of messages to read
+     * @param before  the sequence number of the message right after the page or
+     *                {@link RequestMessagesPacket#newest} for the newest messages
+     * @param since   a time in milliseconds since the epoch. The messages saved before it are not read.
+     *                It's 0 if all the messages should be read.
+     */
+    public MessagePage getMessages(UUID channel, int count, long before, long since) {
         Observable<Message> messages = new Observable<>();
+        CompletableFuture<Long> cursor = new CompletableFuture<>();
 
         messagesTaskQueue.runSuspendReading(channel, task -> {
+            // the newest messages are usually the ones which have just been written
+            MessageTailCache.Slice recent = since == 0 ? recentMessages.read(channel, before, count) : null;
+            if (recent != null) {
+                workerThreads.execute(() -> {
+                    recent.messages().forEach(messages::onNext);
+                    logMessagesRead(channel, recent.messages().size(), "memory");
+                    cursor.complete(recent.first() ? 0 : recent.from());
+                    task.complete(null);
+                    messages.complete();
+                });
+                return;
+            }
+
             try {
                 Path directory = messagesDirectory.resolve(channel.toString());
-                Path messagesPath = directory.resolve("messages.txt");
-                Path indexPath = directory.resolve("index");
 
                 ioThreads.execute(r(() -> {
-                    long messagesRead = 0;
-                    try (RandomAccessFile index = new RandomAccessFile(indexPath.toFile(), "r");
-                         RandomAccessFile messagesFile = new RandomAccessFile(messagesPath.toFile(), "r")) {
-
-                        long startPosition = index.length() - (Long.BYTES * 2L * count);
-                        startPosition = startPosition > 0 ? startPosition : 0;
-                        index.seek(startPosition);
-                        while (index.getFilePointer() < index.length()) {
-                            byte[] startBytes = new byte[Long.BYTES];
-                            byte[] lengthBytes = new byte[Long.BYTES];
-                            index.read(startBytes);
-                            index.read(lengthBytes);
-                            long start = bytesToLong(startBytes);
-                            int length = (int) bytesToLong(lengthBytes);
-
-                            messagesFile.seek(start);
-                            byte[] messageEntry = new byte[length];
-                            messagesFile.read(messageEntry);
-
-                            String messageString = new String(messageEntry);
-                            String[] messageSplit = messageString.split("\n");
-                            Name author = Name.of(messageSplit[0]);
-                            String content = messageSplit[1];
-
-                            Message message = new Message(author, content);
-                            messages.onNext(message);
-                            messagesRead++;
+                    List<Message> read = new ArrayList<>();
+                    long from = 0;
+                    boolean first = true;
+                    // the log isn't created for a channel without messages
+                    if (Files.isDirectory(directory)) {
+                        try {
+                            MessageLogCache.Handle handle = messageLogs.acquire(channel);
+                            try {
+                                MessageLog log = handle.log();
+                                long next = log.nextSequence();
+                                long to = before >= 0 ? Math.min(before, next) : next;
+                                long start = log.firstSequence();
+                                if (since > 0) {
+                                    start = Math.max(start, log.sequenceAt(since));
+                                }
+                                from = Math.min(Math.max(start, to - count), to);
+                                first = from <= start;
+                                log.read(from, to, message -> {
+                                    messages.onNext(message);
+                                    read.add(message);
+                                });
+                                if (to == next) {
+                                    recentMessages.fill(channel, from, to, read, log::firstSequence);
+                                }
+                            } finally {
+                                messageLogs.release(handle);
+                            }
+                        } catch (Exception e) {
+                            task.completeExceptionally(e);
+                            cursor.completeExceptionally(e);
+                            messages.completeWithException(e);
+                            return;
                         }
-                    } catch (FileNotFoundException ignore) {
-                    } catch (Exception e) {
-                        task.completeExceptionally(e);
-                        messages.completeWithException(e);
                     }
-                    logger.info(String.format("Read %d messages for channel %s", messagesRead, channel));
+                    logMessagesRead(channel, read.size(), "disk");
+                    cursor.complete(first ? 0 : from);
                     task.complete(null);
                     messages.complete();
                 }));
             } catch (Exception e) {
                 task.completeExceptionally(e);
+                cursor.completeExceptionally(e);
                 messages.completeWithException(e);
             }
         });
 
-        return messages;
+        return new MessagePage(messages, cursor);
     }
 
     /**
-     * @param channel         a channel on which the file has been sent
-     * @param nameProposition a proposition of a name. If it's already taken the database will choose the new one.
-     * @param file            an AsyncStream of the file bytes. The database will send a byte count as a request
-     *                        and the async stream should publish the requested count of bytes to the stream.
-     * @return a future resolving to a name, under which the file was saved
+     * Finds the messages containing all the words of the query, see {@link SearchIndex}.
+     *
+     * @param channel the channel to search
+     * @param count   the biggest count of messages to find
+     * @param before  a sequence number after the last message to search or {@link RequestMessagesPacket#newest}
+     * @return An Observable of the newest found messages, from the oldest one.
      */
-    public CompletableFuture<String> saveFile(UUID channel, Name nameProposition, AsyncStream<Integer, byte[]> file) {
-        CompletableFuture<String> future = new CompletableFuture<>();
-        Path filesDirectory = messagesDirectory.resolve(channel.toString()).resolve("files");
+    public Observable<FoundMessagePacket> searchMessages(UUID channel, String query, int count, long before) {
+        Observable<FoundMessagePacket> found = new Observable<>();
+        Path directory = messagesDirectory.resolve(channel.toString());
 
-        fileCreationTaskQueue.runSuspendWriting(channel, fileCreationTask -> ioThreads.execute(r(() -> {
+        messagesTaskQueue.runSuspendReading(channel, task -> ioThreads.execute(() -> {
             try {
-                Files.createDirectories(filesDirectory);
-
-                String fileName = nameProposition.toString();
-                while (true) {
-                    Path filePath = filesDirectory.resolve(fileName);
+                // the log isn't created for a channel without messages
+                if (Files.isDirectory(directory)) {
+                    MessageLogCache.Handle handle = messageLogs.acquire(channel);
                     try {
-                        var output = Files.newOutputStream(
-                                filePath,
-                                StandardOpenOption.CREATE_NEW,
-                                StandardOpenOption.WRITE
-                        );
+                        MessageLog log = handle.log();
+                        long[] sequences = handle.searchIndex().search(query, before, count, log);
+                        for (long sequence : sequences) {
+                            log.read(sequence, sequence + 1, message ->
+                                    found.onNext(new FoundMessagePacket(channel, sequence, message)));
+                        }
+                        logger.info(String.format("Found %d messages for channel %s", sequences.length, channel));
+                    } finally {
+                        messageLogs.release(handle);
+                    }
+                }
+                task.complete(null);
+                found.complete();
+            } catch (Exception e) {
+                task.completeExceptionally(e);
+                found.completeWithException(e);
+            }
+        }));
 
-                        final String fileNameFinal = fileName;
+        return found;
+    }
 
-                        fileTaskQueue.runSuspendWriting(filePath, task -> file.subscribe(1000, c(nextBytes -> {
-                            try {
-                                output.write(nextBytes);
-                                file.requestNext(1000);
-                            } catch (Exception e) {
-                                task.completeExceptionally(e);
-                                future.completeExceptionally(e);
-                            }
-                        }), r(() -> {
-                            logger.info("Saved file: " + fileNameFinal);
-                            output.close();
-                            task.complete(null);
-                            future.complete(fileNameFinal);
-                        }), c(e -> {
-                            output.close();
-                            task.complete(null);
-                            future.completeExceptionally(e);
-                        })));
+    /**
+     * Compresses the old history of all the channels. The segments are compressed one at a time and one channel
+     * after another, so the writes and the reads of the channels wait only for a moment.
+     *
+     * @param coldAfterMillis how long a full segment of a log must not be written to be compressed
+     */
+    void compressColdMessages(long coldAfterMillis) {
+        List<Path> channelDirectories;
+        try (Stream<Path> files = Files.list(messagesDirectory)) {
+            channelDirectories = files.toList();
+        } catch (IOException e) {
+            // nothing has been saved yet
+            return;
+        }
+
+        for (Path channelDirectory : channelDirectories) {
+            UUID channel;
+            try {
+                channel = UUID.fromString(channelDirectory.getFileName().toString());
+                if (!MessageLog.hasFullSegments(channelDirectory, true)) {
+                    continue;
+                }
+            } catch (IllegalArgumentException | IOException e) {
+                continue;
+            }
 
-                        fileCreationTask.complete(null);
-                        break;
-                    } catch (FileAlreadyExistsException e) {
-                        fileName = StringUtils.incrementFileName(fileName);
+            int compressedSegments = 0;
+            try {
+                while (compressColdSegment(channel, coldAfterMillis).join()) {
+                    compressedSegments++;
+                }
+            } catch (CompletionException e) {
+                logger.info(String.format("Couldn't compress messages of channel %s: %s", channel, e.getCause()));
+            }
+            if (compressedSegments > 0) {
+                logger.info(String.format("Compressed %d segments of channel %s", compressedSegments, channel));
+            }
+        }
+    }
+
+    /**
+     * Deletes the messages and the attachments of all the channels which are not kept anymore,
+     * see {@link RetentionPolicy}, and the partial files of abandoned uploads.
+     * The channels can be written and read meanwhile.
+     *
+     * @param now the current time in milliseconds since the epoch
+     */
+    void expireOldData(long now) {
+        List<Path> channelDirectories;
+        try (Stream<Path> files = Files.list(messagesDirectory)) {
+            channelDirectories = files.toList();
+        } catch (IOException e) {
+            // nothing has been saved yet
+            return;
+        }
+
+        for (Path channelDirectory : channelDirectories) {
+            UUID channel;
+            try {
+                channel = UUID.fromString(channelDirectory.getFileName().toString());
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+
+            try {
+                RetentionPolicy policy = retention.forChannel(channelDirectory);
+                if (policy.limited()) {
+                    expireMessages(channel, channelDirectory, policy, now);
+                }
+                if (policy.maxAgeMillis() > 0) {
+                    expireAttachments(channel, channelDirectory, now - policy.maxAgeMillis());
+                }
+                expirePartialFiles(channelDirectory, now - abandonedUploadAgeMillis);
+            } catch (Exception e) {
+                logger.info(String.format("Couldn't delete old data of channel %s: %s", channel, e));
+            }
+        }
+    }
+
+    /**
+     * Deletes whole segments of the channel's log, so it doesn't have to wait for the channel's reads and writes.
+     * The reads of the deleted segments just skip them.
+     */
+    private void expireMessages(UUID channel, Path channelDirectory, RetentionPolicy policy, long now)
+            throws IOException {
+
+        // only a full segment can be deleted
+        if (!MessageLog.hasFullSegments(channelDirectory, false)) {
+            return;
+        }
+
+        MessageLogCache.Handle handle = messageLogs.acquire(channel);
+        try {
+            MessageLog log = handle.log();
+            long firstSequence = log.firstSequence();
+            long keptSequence = firstSequence;
+            if (policy.maxMessages() > 0) {
+                keptSequence = Math.max(keptSequence, log.nextSequence() - policy.maxMessages());
+            }
+            if (policy.maxAgeMillis() > 0) {
+                keptSequence = Math.max(keptSequence, log.sequenceWrittenSince(now - policy.maxAgeMillis()));
+            }
+            if (policy.maxSizeInBytes() > 0) {
+                keptSequence = Math.max(keptSequence, log.sequenceWithinSize(policy.maxSizeInBytes()));
+            }
+
+            long newFirstSequence = log.deleteBefore(keptSequence);
+            if (newFirstSequence > firstSequence) {
+                // the deleted messages can't be read from memory or found anymore
+                recentMessages.invalidate(channel);
+                handle.searchIndex().close();
+                logger.info(String.format("Deleted %d old messages of channel %s",
+                        newFirstSequence - firstSequence, channel));
+            }
+        } finally {
+            messageLogs.release(handle);
+        }
+    }
+
+    /**
+     * Deletes the attachments saved before the given time, see {@link #deleteFile(UUID, Name)}.
+     */
+    private void expireAttachments(UUID channel, Path channelDirectory, long savedBefore) throws IOException {
+        for (String directoryName : List.of("attachments", "files")) {
+            Path directory = channelDirectory.resolve(directoryName);
+            if (!Files.isDirectory(directory)) {
+                continue;
+            }
+
+            List<Path> files;
+            try (Stream<Path> list = Files.list(directory)) {
+                files = list.toList();
+            }
+            for (Path file : files) {
+                if (Files.getLastModifiedTime(file).toMillis() < savedBefore) {
+                    try {
+                        deleteFile(channel, Name.of(file.getFileName().toString())).join();
+                        logger.info(String.format("Deleted old file %s of channel %s", file.getFileName(), channel));
+                    } catch (CompletionException | IllegalArgumentException e) {
+                        // it has been deleted in the meantime or it's not a valid file name
                     }
                 }
+            }
+        }
+    }
+
+    /**
+     * Deletes the partial files which haven't been written since the given time, see
+     * {@link #openPartialFile(UUID, Name, Name, long)}. The files being uploaded are skipped.
+     */
+    private void expirePartialFiles(Path channelDirectory, long writtenBefore) throws IOException {
+        Path directory = channelDirectory.resolve("partial");
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(directory, 2)) {
+            files = walk.filter(Files::isRegularFile).toList();
+        }
+        for (Path file : files) {
+            if (Files.getLastModifiedTime(file).toMillis() >= writtenBefore) {
+                continue;
+            }
+
+            // an open partial file keeps the lock, so it's checked again once the upload is done
+            fileTaskQueue.runSuspendWriting(file, task -> ioThreads.execute(() -> {
+                try {
+                    if (Files.getLastModifiedTime(file).toMillis() < writtenBefore) {
+                        Files.delete(file);
+                        logger.info(String.format("Deleted abandoned upload %s", file));
+                    }
+                } catch (IOException e) {
+                    // it has been saved in the meantime
+                } finally {
+                    task.complete(null);
+                }
+            }));
+        }
+    }
+
+    private CompletableFuture<Boolean> compressColdSegment(UUID channel, long coldAfterMillis) {
+        return messagesTaskQueue.runSuspendWriting(channel, task -> ioThreads.execute(() -> {
+            try {
+                MessageLogCache.Handle handle = messageLogs.acquire(channel);
+                try {
+                    task.complete(handle.log().compressColdSegment(coldAfterMillis));
+                } finally {
+                    messageLogs.release(handle);
+                }
             } catch (Exception e) {
-                fileCreationTask.completeExceptionally(e);
+                task.completeExceptionally(e);
+            }
+        }));
+    }
+
+    private void logMessagesRead(UUID channel, int count, String source) {
+        long hits = recentMessages.hits();
+        long misses = recentMessages.misses();
+        logger.info(String.format("Read %d messages for channel %s from %s (recent messages hits: %d, misses: %d)",
+                count, channel, source, hits, misses));
+    }
+
+    /**
+     * Opens a partially uploaded file. Every user has their own partial files, which are not visible to the others
+     * until they are saved with {@link #saveFile(UUID, PartialFile, Name)}.
+     * Nobody can open the same partial file until the returned file is closed.
+     *
+     * @param channel  a channel on which the file is being sent
+     * @param username a user sending the file
+     * @param name     a name of the file
+     * @param offset   a position the user would like to continue from. The file is truncated to it
+     *                 and 0 starts a new upload.
+     * @return a future resolving to the file opened for writing. Its size is the position to continue from,
+     * which might be lower than the requested offset if less bytes were received before.
+     */
+    public CompletableFuture<PartialFile> openPartialFile(UUID channel, Name username, Name name, long offset) {
+        CompletableFuture<PartialFile> future = new CompletableFuture<>();
+        Path path = messagesDirectory.resolve(channel.toString())
+                .resolve("partial")
+                .resolve(nameToFilename(username))
+                .resolve(name.toString());
+
+        fileTaskQueue.runSuspendWriting(path, task -> ioThreads.execute(() -> {
+            try {
+                Files.createDirectories(path.getParent());
+                FileChannel fileChannel = FileChannel.open(path,
+                        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                long position = Math.min(offset, fileChannel.size());
+                fileChannel.truncate(position);
+
+                future.complete(new PartialFile(path, fileChannel, position, ioThreads, () -> task.complete(null)));
+            } catch (Exception e) {
+                task.complete(null);
                 future.completeExceptionally(e);
             }
-        })));
+        }));
 
         return future;
     }
 
     /**
-     * @param channel a channel from which to read the file
-     * @param name    a name of the file
-     * @return An async stream of the file.
-     * Consumer must send byte count as a request and the database will respond will the requested count of bytes.
+     * Adds a fully uploaded file to the channel's files and closes it. The content is stored only once,
+     * no matter how many times it was sent, so saving a duplicate just deletes the partial file.
+     *
+     * @param channel         a channel on which the file has been sent
+     * @param partialFile     a file opened with {@link #openPartialFile(UUID, Name, Name, long)}
+     * @param nameProposition a proposition of a name. If it's already taken the database will choose the new one.
+     * @return a future resolving to a name, under which the file was saved
      */
-    public AsyncStream<Integer, byte[]> getFile(UUID channel, Name name) {
-        Observable<Integer> producer = new Observable<>();
-        Observable<byte[]> consumer = new Observable<>();
-        Path path = messagesDirectory.resolve(channel.toString()).resolve("files").resolve(name.toString());
-
-        fileCreationTaskQueue.runReading(channel, () ->
-                fileTaskQueue.runSuspendReading(path, c(fileTask -> {
-                    try {
-                        var inputStream = Files.newInputStream(path);
-                        producer.subscribe(byteCount -> {
+    public CompletableFuture<String> saveFile(UUID channel, PartialFile partialFile, Name nameProposition) {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        Path channelDirectory = messagesDirectory.resolve(channel.toString());
+
+        partialFile.hash()
+                .thenCompose(hash -> {
+                    r(partialFile.channel()::close).run();
+                    return blobs.add(hash, partialFile.path()).thenApply(it -> hash);
+                })
+                .whenComplete((hash, exception) -> r(partialFile::close).run())
+                .thenAccept(hash -> fileCreationTaskQueue.runSuspendWriting(channel, fileCreationTask ->
+                        ioThreads.execute(() -> {
                             try {
-                                byte[] nextBytes = inputStream.readNBytes(byteCount);
-                                if (nextBytes.length == 0) {
-                                    producer.complete();
-                                    consumer.complete();
-                                } else {
-                                    consumer.onNext(nextBytes);
+                                Path attachments = channelDirectory.resolve("attachments");
+                                Files.createDirectories(attachments);
+
+                                String fileName = nameProposition.toString();
+                                while (Files.exists(attachments.resolve(fileName))
+                                        || Files.exists(channelDirectory.resolve("files").resolve(fileName))) {
+
+                                    fileName = StringUtils.incrementFileName(fileName);
                                 }
-                            } catch (IOException e) {
-                                fileTask.complete(null);
-                                consumer.completeWithException(e);
+                                Files.writeString(attachments.resolve(fileName), hash);
+
+                                logger.info("Saved file: " + fileName);
+                                fileCreationTask.complete(null);
+                                future.complete(fileName);
+                            } catch (Exception e) {
+                                blobs.release(hash);
+                                fileCreationTask.completeExceptionally(e);
+                                future.completeExceptionally(e);
                             }
-                        }, () -> fileTask.complete(null), e -> {
-                            fileTask.complete(null);
-                            consumer.completeWithException(e);
-                        });
-                    } catch (Exception e) {
-                        fileTask.complete(null);
-                        consumer.completeWithException(e);
-                    }
-                })));
+                        })))
+                .exceptionally(cvf(future::completeExceptionally));
 
-        return new AsyncStream<>(producer, consumer);
+        return future;
+    }
+
+    /**
+     * Opens the file for reading. Nobody can write to it until the returned file is closed.
+     *
+     * @param channel a channel from which to read the file
+     * @param name    a name of the file
+     * @return A future resolving to the opened file.
+     * Completes exceptionally with {@link java.nio.file.NoSuchFileException} if there is no such file.
+     */
+    public CompletableFuture<StoredFile> openFile(UUID channel, Name name) {
+        CompletableFuture<StoredFile> result = new CompletableFuture<>();
+
+        fileCreationTaskQueue.runSuspendReading(channel, fileCreationTask -> ioThreads.execute(() -> {
+            String hash;
+            try {
+                hash = readAttachment(channel, name);
+            } catch (Exception e) {
+                fileCreationTask.complete(null);
+                result.completeExceptionally(e);
+                return;
+            }
+
+            // files saved before the content was deduplicated are stored straight in the channel's directory
+            Path path = hash != null
+                    ? blobs.path(hash)
+                    : messagesDirectory.resolve(channel.toString()).resolve("files").resolve(name.toString());
+
+            // the file is locked before the channel is released, so it can't be deleted in the meantime
+            fileTaskQueue.runSuspendReading(path, task -> ioThreads.execute(() -> {
+                try {
+                    FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ);
+                    result.complete(new StoredFile(
+                            path, fileChannel, fileChannel.size(), hash, () -> task.complete(null)));
+                } catch (Exception e) {
+                    task.complete(null);
+                    result.completeExceptionally(e);
+                }
+            }));
+            fileCreationTask.complete(null);
+        }));
+
+        return result;
     }
 
     /**
@@ -372,32 +775,67 @@ public class Database {
      * @return A future resolving to the file size
      */
     public CompletableFuture<Long> getFileSize(UUID channel, Name name) {
-        CompletableFuture<Long> result = new CompletableFuture<>();
-        Path path = messagesDirectory.resolve(channel.toString()).resolve("files").resolve(name.toString());
+        return openFile(channel, name).thenApply(file -> {
+            r(file::close).run();
+            return file.size();
+        });
+    }
+
+    /**
+     * Deletes the file from the channel. Its content is deleted when no other channel refers to it.
+     *
+     * @param channel a channel on which the file has been sent
+     * @param name    a name of the file
+     * @return A future that will be resolved when the file is deleted.
+     * Completes exceptionally with {@link java.nio.file.NoSuchFileException} if there is no such file.
+     */
+    public CompletableFuture<Void> deleteFile(UUID channel, Name name) {
+        Path channelDirectory = messagesDirectory.resolve(channel.toString());
+        Path attachment = channelDirectory.resolve("attachments").resolve(name.toString());
+        Path legacyFile = channelDirectory.resolve("files").resolve(name.toString());
+
+        return fileCreationTaskQueue.runSuspendWriting(channel, fileCreationTask -> ioThreads.execute(() -> {
+            try {
+                if (Files.exists(attachment)) {
+                    String hash = Files.readString(attachment);
+                    Files.delete(attachment);
+                    blobs.release(hash).whenComplete((result, exception) -> complete(fileCreationTask, exception));
+                    return;
+                }
 
-        fileCreationTaskQueue.runReading(channel, () ->
-                fileTaskQueue.runSuspendReading(path, task -> ioThreads.execute(() -> {
+                fileTaskQueue.runSuspendWriting(legacyFile, task -> ioThreads.execute(() -> {
                     try {
-                        long size = Files.size(path);
-                        task.complete(null);
-                        result.complete(size);
+                        Files.delete(legacyFile);
+                        fileCreationTask.complete(null);
                     } catch (Exception e) {
-                        task.complete(null);
-                        result.completeExceptionally(e);
+                        fileCreationTask.completeExceptionally(e);
                     }
-                })));
-
-        return result;
+                    task.complete(null);
+                }));
+            } catch (Exception e) {
+                fileCreationTask.completeExceptionally(e);
+            }
+        }));
     }
 
-    private static void newLine(RandomAccessFile raf) throws IOException {
-        raf.write("\n".getBytes());
+    /**
+     * @return A hash of the file's content or null if there is no such entry.
+     */
+    private String readAttachment(UUID channel, Name name) throws IOException {
+        Path attachment = messagesDirectory.resolve(channel.toString()).resolve("attachments").resolve(name.toString());
+        if (!Files.exists(attachment)) {
+            return null;
+        }
+
+        return Files.readString(attachment);
     }
 
-    private static long bytesToLong(byte[] bytes) {
-        ByteBuffer buffer = ByteBuffer.allocate(bytes.length);
-        buffer.put(bytes);
-        return buffer.getLong(0);
+    private static void complete(CompletableFuture<Void> future, Throwable exception) {
+        if (exception != null) {
+            future.completeExceptionally(exception);
+        } else {
+            future.complete(null);
+        }
     }
 
     private static String nameToFilename(Name name) {
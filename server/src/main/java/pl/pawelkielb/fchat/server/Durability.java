@@ -0,0 +1,24 @@
+package pl.pawelkielb.fchat.server;
+
+/**
+ * Decides when the saved messages are forced to the disk, so they survive a crash of the system.
+ * Messages saved at the same time are written in a single batch in every mode.
+ * Can be chosen using a {@code DURABILITY} environmental variable.
+ */
+public enum Durability {
+    /**
+     * The messages are left to the operating system, which writes them whenever it wants. It's the fastest.
+     */
+    NONE,
+
+    /**
+     * Every batch is forced to the disk before its messages are reported as saved.
+     */
+    BATCH,
+
+    /**
+     * The written messages are forced to the disk every few milliseconds, so a crash loses at most that much.
+     * The messages are reported as saved before they are forced.
+     */
+    PERIODIC
+}
@@ -0,0 +1,102 @@
+package pl.pawelkielb.fchat.server;
+
+import pl.pawelkielb.fchat.Logger;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+
+/**
+ * A single thread waiting for readiness of many {@link NioConnection}s using a {@link Selector}.
+ * All the channel operations of a connection are made on the thread of its event loop,
+ * other threads schedule them with {@link #execute(Runnable)}. It's thread-safe.
+ */
+public class EventLoop implements Executor {
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private final Logger logger;
+
+    public EventLoop(String name, Logger logger) throws IOException {
+        this.selector = Selector.open();
+        this.logger = logger;
+        this.thread = new Thread(this::loop, name);
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Runs the task on the event loop thread. Tasks run in the order they were scheduled.
+     */
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Must be called on the event loop thread.
+     *
+     * @return A key with no interest set. The connection is attached to the key.
+     */
+    SelectionKey register(SocketChannel channel, NioConnection connection) throws IOException {
+        return channel.register(selector, 0, connection);
+    }
+
+    private void loop() {
+        // noinspection InfiniteLoopStatement
+        while (true) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                continue;
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                NioConnection connection = (NioConnection) key.attachment();
+                try {
+                    if (key.isValid() && key.isWritable()) {
+                        connection.onWritable();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        connection.onReadable();
+                    }
+                } catch (CancelledKeyException ignore) {
+                } catch (RuntimeException e) {
+                    // a broken connection is closed, so it doesn't stop the others
+                    logger.info(String.format("A connection failed on %s: %s", thread.getName(), e));
+                    connection.close(new IOException(e));
+                }
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    logger.info(String.format("A task failed on %s: %s", thread.getName(), e));
+                }
+            }
+        }
+    }
+}
@@ -140,50 +140,52 @@ public class FileTaskQueue<K> {
     private void processLayers(List<Layer> layers) {
         List<Task<?>> tasksToRun = new ArrayList<>();
         masterQueue.run(() -> {
-            if (layers.isEmpty()) {
-                return;
-            }
-
-            Layer layer = layers.get(0);
-            if (layer instanceof ReadLayer readLayer) {
-                readLayer.tasks.removeIf(it -> it.future.isDone());
-
-                if (readLayer.tasks.isEmpty()) {
-                    layers.remove(0);
-                    return;
-                }
-
-                readLayer.tasks
-                        .stream()
-                        .filter(it -> !it.hasStarted)
-                        .forEach(it -> {
-                            it.hasStarted = true;
-                            tasksToRun.add(it);
-                        });
-
-            } else if (layer instanceof WriteLayer writeLayer) {
-                if (writeLayer.task.future.isDone()) {
-                    layers.remove(0);
-                    return;
+            // skip the finished layers, so the next one can start
+            while (!layers.isEmpty()) {
+                Layer layer = layers.get(0);
+                if (layer instanceof ReadLayer readLayer) {
+                    readLayer.tasks.removeIf(it -> it.future.isDone());
+
+                    if (readLayer.tasks.isEmpty()) {
+                        layers.remove(0);
+                        continue;
+                    }
+
+                    readLayer.tasks
+                            .stream()
+                            .filter(it -> !it.hasStarted)
+                            .forEach(it -> {
+                                it.hasStarted = true;
+                                tasksToRun.add(it);
+                            });
+
+                } else if (layer instanceof WriteLayer writeLayer) {
+                    if (writeLayer.task.future.isDone()) {
+                        layers.remove(0);
+                        continue;
+                    }
+
+                    if (!writeLayer.task.hasStarted) {
+                        writeLayer.task.hasStarted = true;
+                        tasksToRun.add(writeLayer.task);
+                    }
+                } else {
+                    throw new AssertionError();
                 }
 
-                if (!writeLayer.task.hasStarted) {
-                    writeLayer.task.hasStarted = true;
-                    tasksToRun.add(writeLayer.task);
-                }
-            } else {
-                throw new AssertionError();
+                return;
+            }
+        }).thenRun(() -> {
+            // the master queue might have been busy, so the tasks can be collected only after it runs our task
+            var futures = tasksToRun.stream().map(it -> {
+                processTask(it);
+                return it.future;
+            }).toList();
+
+            if (!futures.isEmpty()) {
+                Futures.allOf(futures).whenComplete((result, exception) -> processLayers(layers));
             }
         });
-
-        var futures = tasksToRun.stream().map(it -> {
-            processTask(it);
-            return it.future;
-        }).toList();
-
-        if (!futures.isEmpty()) {
-            Futures.allOf(futures).thenRun(() -> processLayers(layers));
-        }
     }
 
     private List<Layer> getLayers(K key) {
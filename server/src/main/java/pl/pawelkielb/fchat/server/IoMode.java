@@ -0,0 +1,23 @@
+package pl.pawelkielb.fchat.server;
+
+/**
+ * Decides how the server waits for the network.
+ * Can be chosen using an {@code IO_MODE} environmental variable.
+ */
+public enum IoMode {
+    /**
+     * A few {@link EventLoop}s serve all the connections, see {@link NioConnection}.
+     */
+    NIO,
+
+    /**
+     * Every connection blocks a thread from a big pool while it waits for data.
+     */
+    THREADS,
+
+    /**
+     * Like {@link #THREADS}, but the blocking network and disk operations run on virtual threads,
+     * so a waiting connection costs only a small heap object. Requires Java 21 or newer.
+     */
+    VIRTUAL_THREADS
+}
@@ -0,0 +1,1089 @@
+package pl.pawelkielb.fchat.server;
+
+import pl.pawelkielb.fchat.BinaryReader;
+import pl.pawelkielb.fchat.BinaryWriter;
+import pl.pawelkielb.fchat.data.Message;
+import pl.pawelkielb.fchat.data.Name;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * A part of a {@link MessageLog}. Its file contains records of messages one after another. Every record starts
+ * with a length and a CRC32C of the message, which is followed by its sequence number and the time it was saved at.
+ * A sparse index tells positions of every few kilobytes of records, so a message can be found without reading
+ * the whole segment. A sparse time index tells the times of the same records, so the messages saved since some time
+ * can be found the same way. All the files are named after the sequence number of the first message in the segment.
+ * <p>
+ * A full segment can be compressed. Its records are then kept in blocks of a few dozen kilobytes, each compressed
+ * on its own, and a block index tells where every block starts, so reading a message decompresses only its block.
+ * <p>
+ * Only the last segment of a log is open for appending. It's not thread-safe, but the records can be read
+ * by many threads at once if nothing is appended in the meantime.
+ */
+class LogSegment {
+    static final String logExtension = ".log";
+    private static final String compressedLogExtension = ".zlog";
+    private static final String indexExtension = ".index";
+    private static final String timeIndexExtension = ".timeindex";
+    private static final String blockIndexExtension = ".zindex";
+    private static final int recordHeaderSize = Integer.BYTES * 2;
+    private static final int indexEntrySize = Integer.BYTES * 2;
+    private static final int timeIndexEntrySize = Integer.BYTES + Long.BYTES;
+    private static final int indexIntervalInBytes = 4096;
+    // the sequence number of the first record, a length before and a length after the compression
+    private static final int blockHeaderSize = Integer.BYTES * 3;
+    private static final int blockIndexEntrySize = Integer.BYTES + Long.BYTES;
+    private static final int blockSizeInBytes = 64 * 1024;
+
+    private final long baseSequence;
+    private final Path logPath;
+    private final Path indexPath;
+    private final Path timeIndexPath;
+    private final Path compressedLogPath;
+    private final Path blockIndexPath;
+
+    private volatile boolean compressed;
+    private volatile boolean deleted = false;
+    private FileChannel log;
+    private FileChannel index;
+    private FileChannel timeIndex;
+    private long size;
+    private int count;
+    private long bytesSinceIndexEntry;
+    private long lastTimestamp;
+
+    // relative sequence numbers and positions of the indexed records, loaded when they are needed
+    private int[] indexSequences;
+    private int[] indexPositions;
+    private int indexSize;
+    // relative sequence numbers and times of the first record and the indexed ones
+    private int[] timeIndexSequences;
+    private long[] timeIndexTimestamps;
+    private int timeIndexSize;
+    // relative sequence numbers of the first records of the compressed blocks and the blocks' positions
+    private int[] blockSequences;
+    private long[] blockPositions;
+    private int blockCount;
+
+    private LogSegment(Path directory, long baseSequence) {
+        this.baseSequence = baseSequence;
+        this.logPath = directory.resolve(fileName(baseSequence) + logExtension);
+        this.indexPath = directory.resolve(fileName(baseSequence) + indexExtension);
+        this.timeIndexPath = directory.resolve(fileName(baseSequence) + timeIndexExtension);
+        this.compressedLogPath = directory.resolve(fileName(baseSequence) + compressedLogExtension);
+        this.blockIndexPath = directory.resolve(fileName(baseSequence) + blockIndexExtension);
+        this.compressed = Files.exists(compressedLogPath);
+    }
+
+    /**
+     * @return A segment, which is neither read nor written until it's used. Only its compression is checked.
+     */
+    static LogSegment of(Path directory, long baseSequence) {
+        return new LogSegment(directory, baseSequence);
+    }
+
+    /**
+     * @return The sequence number of the segment's first message, if the path is a segment's file, otherwise -1.
+     */
+    static long baseSequence(Path path) {
+        String fileName = path.getFileName().toString();
+        String extension;
+        if (fileName.endsWith(logExtension)) {
+            extension = logExtension;
+        } else if (fileName.endsWith(compressedLogExtension)) {
+            extension = compressedLogExtension;
+        } else {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(fileName.substring(0, fileName.length() - extension.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    long baseSequence() {
+        return baseSequence;
+    }
+
+    boolean compressed() {
+        return compressed;
+    }
+
+    /**
+     * @return A size of the segment's records on the disk.
+     */
+    long sizeOnDisk() throws IOException {
+        return Files.size(compressed ? compressedLogPath : logPath);
+    }
+
+    /**
+     * @return The time the segment was last written at, in milliseconds since the epoch.
+     */
+    long lastModifiedTime() throws IOException {
+        try {
+            return Files.getLastModifiedTime(compressed ? compressedLogPath : logPath).toMillis();
+        } catch (NoSuchFileException e) {
+            // it has been compressed in the meantime, which keeps the time
+            return Files.getLastModifiedTime(compressedLogPath).toMillis();
+        }
+    }
+
+    void setLastModifiedTime(FileTime time) throws IOException {
+        Files.setLastModifiedTime(compressed ? compressedLogPath : logPath, time);
+    }
+
+    /**
+     * @return A count of the messages. Known only while the segment is open for appending.
+     */
+    int count() {
+        return count;
+    }
+
+    long size() {
+        return size;
+    }
+
+    /**
+     * @return The time the last message was saved at or 0 if it's unknown. Known only while the segment is open
+     * for appending.
+     */
+    long lastTimestamp() {
+        return lastTimestamp;
+    }
+
+    /**
+     * Opens the segment for appending and creates it if it doesn't exist yet. Records damaged by a crash
+     * in the middle of a write are cut off, so only the records after the last index entry have to be checked.
+     */
+    void openForAppend() throws IOException {
+        log = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            index = FileChannel.open(indexPath,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            timeIndex = FileChannel.open(timeIndexPath,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            size = log.size();
+            loadIndex();
+
+            // the index might point at the records which were not written
+            while (indexSize > 0 && indexPositions[indexSize - 1] >= size) {
+                indexSize--;
+            }
+            index.truncate((long) indexSize * indexEntrySize);
+
+            long position = indexSize > 0 ? indexPositions[indexSize - 1] : 0;
+            int sequence = indexSize > 0 ? indexSequences[indexSize - 1] : 0;
+            ByteBuffer header = ByteBuffer.allocate(recordHeaderSize);
+            lastTimestamp = 0;
+            while (position < size) {
+                byte[] payload = checkRecord(log, header, position);
+                if (payload == null) {
+                    log.truncate(position);
+                    size = position;
+                    break;
+                }
+
+                lastTimestamp = decodeTimestamp(payload);
+                position += recordHeaderSize + payload.length;
+                sequence++;
+            }
+
+            count = sequence;
+            bytesSinceIndexEntry = size - (indexSize > 0 ? indexPositions[indexSize - 1] : 0);
+
+            // the time index might point at the records which were cut off too
+            while (timeIndexSize > 0 && timeIndexSequences[timeIndexSize - 1] >= count) {
+                timeIndexSize--;
+            }
+            timeIndex.truncate((long) timeIndexSize * timeIndexEntrySize);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Appends the records with a single write and indexes them.
+     *
+     * @param records   records made with {@link #record(Message, long, long)}
+     * @param timestamp the time the records were saved at
+     */
+    void append(List<ByteBuffer> records, long timestamp) throws IOException {
+        ByteBuffer indexEntries = ByteBuffer.allocate(indexEntrySize * (records.size() + 1));
+        ByteBuffer timeIndexEntries = ByteBuffer.allocate(timeIndexEntrySize * (records.size() + 1));
+        long position = size;
+        int sequence = count;
+        long sinceIndexEntry = bytesSinceIndexEntry;
+        for (ByteBuffer record : records) {
+            // the first record is found without the index
+            if (sinceIndexEntry >= indexIntervalInBytes && position > 0) {
+                indexEntries.putInt(sequence).putInt((int) position);
+                timeIndexEntries.putInt(sequence).putLong(timestamp);
+                sinceIndexEntry = 0;
+            } else if (position == 0) {
+                timeIndexEntries.putInt(sequence).putLong(timestamp);
+            }
+
+            position += record.remaining();
+            sinceIndexEntry += record.remaining();
+            sequence++;
+        }
+
+        write(log, records.toArray(ByteBuffer[]::new), size);
+        indexEntries.flip();
+        while (indexEntries.hasRemaining()) {
+            addIndexEntry(indexEntries.getInt(), indexEntries.getInt());
+        }
+        indexEntries.flip();
+        write(index, new ByteBuffer[]{indexEntries}, index.size());
+        timeIndexEntries.flip();
+        while (timeIndexEntries.hasRemaining()) {
+            addTimeIndexEntry(timeIndexEntries.getInt(), timeIndexEntries.getLong());
+        }
+        timeIndexEntries.flip();
+        write(timeIndex, new ByteBuffer[]{timeIndexEntries}, timeIndex.size());
+
+        size = position;
+        count = sequence;
+        bytesSinceIndexEntry = sinceIndexEntry;
+        lastTimestamp = timestamp;
+    }
+
+    /**
+     * Forces the appended records to the disk.
+     */
+    void sync() throws IOException {
+        log.force(false);
+        index.force(false);
+        timeIndex.force(false);
+    }
+
+    /**
+     * Stops appending to the segment.
+     */
+    void close() {
+        try {
+            if (log != null) {
+                log.close();
+            }
+            if (index != null) {
+                index.close();
+            }
+            if (timeIndex != null) {
+                timeIndex.close();
+            }
+        } catch (IOException ignore) {
+        }
+        log = null;
+        index = null;
+        timeIndex = null;
+    }
+
+    /**
+     * Reads the messages with sequence numbers from the range.
+     *
+     * @param from the first sequence number to read
+     * @param to   the sequence number after the last one to read
+     */
+    void read(long from, long to, Consumer<Message> consumer) throws IOException {
+        scan(from, to, false, (sequence, payload) -> {
+            consumer.accept(decode(payload, sequence));
+            return true;
+        });
+    }
+
+    /**
+     * @return The sequence number of the first message saved at the time or later or -1 if there is no such message.
+     */
+    long sequenceAt(long timestamp) throws IOException {
+        int entry;
+        synchronized (this) {
+            if (indexSequences == null) {
+                loadIndex();
+            }
+            // the times only grow, so the messages before the last entry older than the time are skipped
+            entry = findTimeIndexEntry(timestamp);
+        }
+
+        long from = baseSequence + (entry >= 0 ? timeIndexSequences[entry] : 0);
+        long[] found = {-1};
+        scan(from, Long.MAX_VALUE, true, (sequence, payload) -> {
+            if (decodeTimestamp(payload) >= timestamp) {
+                found[0] = sequence;
+                return false;
+            }
+            return true;
+        });
+
+        return found[0];
+    }
+
+    /**
+     * @return The time the first message was saved at or 0 if it's unknown.
+     */
+    synchronized long firstTimestamp() throws IOException {
+        if (indexSequences == null) {
+            loadIndex();
+        }
+
+        return timeIndexSize > 0 && timeIndexSequences[0] == 0 ? timeIndexTimestamps[0] : 0;
+    }
+
+    private interface RecordVisitor {
+        /**
+         * @return false to stop the scan
+         */
+        boolean visit(long sequence, byte[] payload) throws IOException;
+    }
+
+    /**
+     * Visits the records with sequence numbers from the range.
+     *
+     * @param lenient true if a damaged record should end the scan instead of throwing
+     */
+    private void scan(long from, long to, boolean lenient, RecordVisitor visitor) throws IOException {
+        try {
+            if (compressed) {
+                scanCompressed(from, to, lenient, visitor);
+            } else {
+                scanLog(from, to, lenient, visitor);
+            }
+        } catch (NoSuchFileException e) {
+            // the segment has been deleted in the meantime, so its messages are not kept anymore
+            if (!deleted) {
+                throw e;
+            }
+        }
+    }
+
+    private void scanLog(long from, long to, boolean lenient, RecordVisitor visitor) throws IOException {
+        try (FileChannel file = FileChannel.open(logPath, StandardOpenOption.READ)) {
+            long position;
+            long sequence;
+            long end = file.size();
+            synchronized (this) {
+                if (indexSequences == null) {
+                    loadIndex();
+                }
+                int entry = findIndexEntry(relativeSequence(from));
+                position = entry >= 0 ? indexPositions[entry] : 0;
+                sequence = baseSequence + (entry >= 0 ? indexSequences[entry] : 0);
+
+                // the messages after the range aren't read
+                int endEntry = findIndexEntry(relativeSequence(to));
+                if (endEntry < 0 || indexSequences[endEntry] < relativeSequence(to)) {
+                    endEntry++;
+                }
+                if (endEntry < indexSize) {
+                    end = Math.min(end, indexPositions[endEntry]);
+                }
+            }
+
+            MessageRangeReader reader = new MessageRangeReader(file, position, end);
+            while (sequence < to && position + recordHeaderSize <= end) {
+                ByteBuffer header = ByteBuffer.wrap(reader.read(position, recordHeaderSize));
+                int length = header.getInt();
+                int checksum = header.getInt();
+                if (length < 0 || position + recordHeaderSize + length > end) {
+                    if (lenient) {
+                        return;
+                    }
+                    throw new IOException("A message in " + logPath + " has been damaged");
+                }
+                if (sequence >= from) {
+                    byte[] payload = reader.read(position + recordHeaderSize, length);
+                    if (crc32c(payload) != checksum) {
+                        if (lenient) {
+                            return;
+                        }
+                        throw new IOException("A message in " + logPath + " has been damaged");
+                    }
+                    if (!visitor.visit(sequence, payload)) {
+                        return;
+                    }
+                }
+
+                position += recordHeaderSize + length;
+                sequence++;
+            }
+        }
+    }
+
+    /**
+     * Visits the records of the blocks which contain the range. The blocks before and after it are not read.
+     */
+    private void scanCompressed(long from, long to, boolean lenient, RecordVisitor visitor) throws IOException {
+        try (FileChannel file = FileChannel.open(compressedLogPath, StandardOpenOption.READ)) {
+            int firstBlock;
+            int lastBlock;
+            synchronized (this) {
+                if (blockSequences == null) {
+                    loadBlockIndex();
+                }
+                firstBlock = Math.max(0, findBlock(from));
+                lastBlock = findBlock(to - 1);
+            }
+            if (firstBlock > lastBlock) {
+                return;
+            }
+
+            long position = blockPositions[firstBlock];
+            long end = lastBlock + 1 < blockCount ? blockPositions[lastBlock + 1] : file.size();
+            MessageRangeReader reader = new MessageRangeReader(file, position, end);
+            while (position + blockHeaderSize <= end) {
+                ByteBuffer header = ByteBuffer.wrap(reader.read(position, blockHeaderSize));
+                long sequence = baseSequence + header.getInt();
+                int length = header.getInt();
+                int compressedLength = header.getInt();
+                byte[] records = compressedLength >= 0 && position + blockHeaderSize + compressedLength <= end
+                        ? inflate(reader.read(position + blockHeaderSize, compressedLength), length)
+                        : null;
+                if (records == null) {
+                    if (lenient) {
+                        return;
+                    }
+                    throw new IOException("A block of messages in " + compressedLogPath + " has been damaged");
+                }
+
+                ByteBuffer buffer = ByteBuffer.wrap(records);
+                while (sequence < to && buffer.remaining() >= recordHeaderSize) {
+                    int recordLength = buffer.getInt();
+                    int checksum = buffer.getInt();
+                    if (recordLength < 0 || recordLength > buffer.remaining()) {
+                        break;
+                    }
+                    byte[] payload = new byte[recordLength];
+                    buffer.get(payload);
+                    if (sequence >= from) {
+                        if (crc32c(payload) != checksum) {
+                            if (lenient) {
+                                return;
+                            }
+                            throw new IOException("A message in " + compressedLogPath + " has been damaged");
+                        }
+                        if (!visitor.visit(sequence, payload)) {
+                            return;
+                        }
+                    }
+                    sequence++;
+                }
+
+                position += blockHeaderSize + compressedLength;
+            }
+        }
+    }
+
+    /**
+     * Replaces the records with compressed blocks of them. The offset index isn't needed anymore, but the time index
+     * is kept as it is. The compressed file is written next to its final place, so a crash leaves either
+     * the uncompressed segment or the compressed one. The segment can't be read or appended meanwhile.
+     *
+     * @throws IOException if a record is damaged, then the segment is left uncompressed
+     */
+    void compress() throws IOException {
+        if (compressed) {
+            return;
+        }
+
+        Path temporaryPath = compressedLogPath.resolveSibling(compressedLogPath.getFileName() + ".tmp");
+        ByteArrayOutputStream blockIndexEntries = new ByteArrayOutputStream();
+        try (FileChannel file = FileChannel.open(logPath, StandardOpenOption.READ);
+             FileChannel compressedFile = FileChannel.open(temporaryPath,
+                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+            long end = file.size();
+            MessageRangeReader reader = new MessageRangeReader(file, 0, end);
+            ByteArrayOutputStream block = new ByteArrayOutputStream(blockSizeInBytes * 2);
+            long position = 0;
+            long compressedPosition = 0;
+            int sequence = 0;
+            int blockSequence = 0;
+            while (position < end) {
+                byte[] header = position + recordHeaderSize <= end ? reader.read(position, recordHeaderSize) : null;
+                int length = header != null ? ByteBuffer.wrap(header).getInt() : -1;
+                if (length < 0 || position + recordHeaderSize + length > end) {
+                    throw new IOException("A message in " + logPath + " has been damaged");
+                }
+                byte[] payload = reader.read(position + recordHeaderSize, length);
+                if (crc32c(payload) != ByteBuffer.wrap(header).getInt(Integer.BYTES)) {
+                    throw new IOException("A message in " + logPath + " has been damaged");
+                }
+
+                block.writeBytes(header);
+                block.writeBytes(payload);
+                position += recordHeaderSize + length;
+                sequence++;
+
+                if (block.size() >= blockSizeInBytes || position == end) {
+                    byte[] deflated = deflate(block.toByteArray());
+                    ByteBuffer blockHeader = ByteBuffer.allocate(blockHeaderSize)
+                            .putInt(blockSequence)
+                            .putInt(block.size())
+                            .putInt(deflated.length)
+                            .flip();
+                    write(compressedFile, new ByteBuffer[]{blockHeader, ByteBuffer.wrap(deflated)}, compressedPosition);
+                    blockIndexEntries.writeBytes(ByteBuffer.allocate(blockIndexEntrySize)
+                            .putInt(blockSequence).putLong(compressedPosition).array());
+
+                    compressedPosition += blockHeaderSize + deflated.length;
+                    blockSequence = sequence;
+                    block.reset();
+                }
+            }
+            compressedFile.force(false);
+        } catch (IOException e) {
+            Files.deleteIfExists(temporaryPath);
+            throw e;
+        }
+
+        // the time of the last write tells how old the messages are, see MessageLog#sequenceWrittenSince
+        Files.setLastModifiedTime(temporaryPath, Files.getLastModifiedTime(logPath));
+        // the block index is in place before the compressed file, which tells the segment is compressed
+        replace(blockIndexPath, blockIndexEntries.toByteArray());
+        Files.move(temporaryPath, compressedLogPath,
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        synchronized (this) {
+            compressed = true;
+            indexSequences = null;
+            timeIndexSequences = null;
+        }
+        deleteUncompressedFiles();
+    }
+
+    /**
+     * Deletes the files of the segment from before its compression. They are left behind if the compression
+     * is interrupted right after the compressed file is in place.
+     */
+    void deleteUncompressedFiles() throws IOException {
+        if (compressed) {
+            Files.deleteIfExists(logPath);
+            Files.deleteIfExists(indexPath);
+        }
+    }
+
+    /**
+     * Checks if the index points at the segment's records and if the time index fits them. The records after
+     * the last entry of the index are counted, because the entries are written in order and a crash can damage
+     * only the end of the index or the segment. It can't be called while the segment is open for appending.
+     *
+     * @param last true if it's the last segment of the log, whose damaged end is cut off when it's opened
+     * @return false if the index or the time index has to be built again
+     */
+    boolean checkIndex(boolean last) throws IOException {
+        if (compressed) {
+            return checkBlockIndex();
+        }
+        if (!Files.exists(indexPath)) {
+            return !Files.exists(logPath) || Files.size(logPath) == 0;
+        }
+
+        synchronized (this) {
+            loadIndex();
+        }
+        if ((long) indexSize * indexEntrySize != Files.size(indexPath)) {
+            return false;
+        }
+        for (int i = 1; i < indexSize; i++) {
+            if (indexSequences[i] <= indexSequences[i - 1] || indexPositions[i] <= indexPositions[i - 1]) {
+                return false;
+            }
+        }
+
+        long count = indexSize > 0 ? indexSequences[indexSize - 1] : 0;
+        try (FileChannel file = FileChannel.open(logPath, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(recordHeaderSize);
+            long position = indexSize > 0 ? indexPositions[indexSize - 1] : 0;
+            byte[] payload;
+            while ((payload = checkRecord(file, header, position)) != null) {
+                position += recordHeaderSize + payload.length;
+                count++;
+            }
+            // the last entry points at a record, the ones after it might be cut off by a crash
+            if (indexSize > 0 && count == indexSequences[indexSize - 1] || !last && position != file.size()) {
+                return false;
+            }
+        }
+
+        return checkTimeIndex(count);
+    }
+
+    /**
+     * The time index has an entry for the first record and for every entry of the index.
+     *
+     * @param count a count of the segment's records
+     */
+    private boolean checkTimeIndex(long count) throws IOException {
+        if (!Files.exists(timeIndexPath)) {
+            return count == 0;
+        }
+        if ((long) timeIndexSize * timeIndexEntrySize != Files.size(timeIndexPath)) {
+            return false;
+        }
+        if (timeIndexSize != (count > 0 ? indexSize + 1 : 0)) {
+            return false;
+        }
+
+        for (int i = 0; i < timeIndexSize; i++) {
+            if (timeIndexSequences[i] != (i > 0 ? indexSequences[i - 1] : 0)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Builds the index and the time index again, reading the segment from the beginning with a few big reads.
+     * A compressed segment gets its block index built again instead of the index. A damaged record ends
+     * the indexed part of the segment. It can't be called while the segment is open for appending.
+     */
+    void rebuildIndex() throws IOException {
+        IndexBuilder builder = new IndexBuilder();
+        if (compressed) {
+            rebuildBlockIndex();
+            scan(baseSequence, Long.MAX_VALUE, true, (sequence, payload) -> {
+                builder.add(payload);
+                return true;
+            });
+            replace(timeIndexPath, builder.timeIndexEntries.toByteArray());
+            synchronized (this) {
+                timeIndexSequences = null;
+                indexSequences = null;
+            }
+            return;
+        }
+
+        try (FileChannel file = FileChannel.open(logPath, StandardOpenOption.READ)) {
+            long end = file.size();
+            MessageRangeReader reader = new MessageRangeReader(file, 0, end);
+            long position = 0;
+            while (position + recordHeaderSize <= end) {
+                ByteBuffer header = ByteBuffer.wrap(reader.read(position, recordHeaderSize));
+                int length = header.getInt();
+                int checksum = header.getInt();
+                if (length < 0 || position + recordHeaderSize + length > end) {
+                    break;
+                }
+                byte[] payload = reader.read(position + recordHeaderSize, length);
+                if (crc32c(payload) != checksum) {
+                    break;
+                }
+
+                builder.add(payload);
+                position += recordHeaderSize + length;
+            }
+        }
+
+        replace(indexPath, builder.indexEntries.toByteArray());
+        replace(timeIndexPath, builder.timeIndexEntries.toByteArray());
+        synchronized (this) {
+            // loaded again when it's needed
+            indexSequences = null;
+            timeIndexSequences = null;
+        }
+    }
+
+    /**
+     * Deletes the segment's files.
+     */
+    void delete() throws IOException {
+        close();
+        deleted = true;
+        Files.deleteIfExists(compressedLogPath);
+        Files.deleteIfExists(blockIndexPath);
+        Files.deleteIfExists(logPath);
+        Files.deleteIfExists(indexPath);
+        Files.deleteIfExists(timeIndexPath);
+    }
+
+    /**
+     * Makes the entries of the index and the time index the same way as they are made when the records are appended.
+     */
+    private static class IndexBuilder {
+        private final ByteArrayOutputStream indexEntries = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream timeIndexEntries = new ByteArrayOutputStream();
+        private long position = 0;
+        private int sequence = 0;
+        private long sinceIndexEntry = 0;
+
+        private void add(byte[] payload) {
+            if (sinceIndexEntry >= indexIntervalInBytes && position > 0) {
+                indexEntries.writeBytes(ByteBuffer.allocate(indexEntrySize)
+                        .putInt(sequence).putInt((int) position).array());
+                timeIndexEntries.writeBytes(ByteBuffer.allocate(timeIndexEntrySize)
+                        .putInt(sequence).putLong(decodeTimestamp(payload)).array());
+                sinceIndexEntry = 0;
+            } else if (position == 0) {
+                timeIndexEntries.writeBytes(ByteBuffer.allocate(timeIndexEntrySize)
+                        .putInt(sequence).putLong(decodeTimestamp(payload)).array());
+            }
+
+            position += recordHeaderSize + payload.length;
+            sinceIndexEntry += recordHeaderSize + payload.length;
+            sequence++;
+        }
+    }
+
+    /**
+     * @param sequence  the message's sequence number
+     * @param timestamp the time the message was saved at
+     * @return The message encoded as a record of a segment.
+     */
+    static ByteBuffer record(Message message, long sequence, long timestamp) {
+        byte[] payload = new BinaryWriter()
+                .writeString(message.author().value())
+                .writeString(message.content())
+                .writeVarLong(sequence)
+                .writeVarLong(timestamp)
+                .toByteArray();
+
+        return ByteBuffer.allocate(recordHeaderSize + payload.length)
+                .putInt(payload.length)
+                .putInt(crc32c(payload))
+                .put(payload)
+                .flip();
+    }
+
+    private Message decode(byte[] payload, long sequence) throws IOException {
+        BinaryReader reader = new BinaryReader(payload);
+        Name author = Name.of(reader.readString());
+        String content = reader.readString();
+        // the records written before the messages had sequence numbers end here
+        if (reader.hasRemaining() && reader.readVarLong() != sequence) {
+            throw new IOException("A message in " + logPath + " is out of place");
+        }
+
+        return new Message(author, content);
+    }
+
+    /**
+     * @return The time the message was saved at or 0 if it's unknown.
+     */
+    private static long decodeTimestamp(byte[] payload) {
+        BinaryReader reader = new BinaryReader(payload);
+        reader.readString();
+        reader.readString();
+        if (!reader.hasRemaining()) {
+            return 0;
+        }
+
+        reader.readVarLong();
+        return reader.readVarLong();
+    }
+
+    /**
+     * @return The record's payload or null if it's incomplete or damaged.
+     */
+    private static byte[] checkRecord(FileChannel file, ByteBuffer header, long position) throws IOException {
+        header.clear();
+        if (file.read(header, position) < recordHeaderSize) {
+            return null;
+        }
+
+        int length = header.getInt(0);
+        int checksum = header.getInt(Integer.BYTES);
+        long payloadPosition = position + recordHeaderSize;
+        if (length < 0 || payloadPosition + length > file.size()) {
+            return null;
+        }
+
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        while (payload.hasRemaining()) {
+            if (file.read(payload, payloadPosition + payload.position()) < 0) {
+                return null;
+            }
+        }
+
+        return crc32c(payload.array()) == checksum ? payload.array() : null;
+    }
+
+    private void loadIndex() throws IOException {
+        indexSequences = new int[16];
+        indexPositions = new int[16];
+        indexSize = 0;
+        timeIndexSequences = new int[16];
+        timeIndexTimestamps = new long[16];
+        timeIndexSize = 0;
+        // a compressed segment doesn't need the index
+        if (Files.exists(indexPath)) {
+            ByteBuffer entries = mapEntries(indexPath, indexEntrySize);
+            while (entries.hasRemaining()) {
+                addIndexEntry(entries.getInt(), entries.getInt());
+            }
+        }
+
+        // the segments written before the messages had times don't have the time index
+        if (Files.exists(timeIndexPath)) {
+            ByteBuffer timeEntries = mapEntries(timeIndexPath, timeIndexEntrySize);
+            while (timeEntries.hasRemaining()) {
+                addTimeIndexEntry(timeEntries.getInt(), timeEntries.getLong());
+            }
+        }
+    }
+
+    /**
+     * Maps the index file, so its entries are decoded straight from the page cache instead of being copied
+     * to the heap first. The entries are kept in arrays, because the active segment appends to them and they are
+     * searched on every read. A torn entry at the end is left out.
+     */
+    private static ByteBuffer mapEntries(Path path, int entrySize) throws IOException {
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            return file.map(FileChannel.MapMode.READ_ONLY, 0, file.size() / entrySize * entrySize);
+        }
+    }
+
+    private void loadBlockIndex() throws IOException {
+        blockSequences = new int[16];
+        blockPositions = new long[16];
+        blockCount = 0;
+        if (!Files.exists(blockIndexPath)) {
+            return;
+        }
+
+        ByteBuffer entries = mapEntries(blockIndexPath, blockIndexEntrySize);
+        while (entries.hasRemaining()) {
+            if (blockCount == blockSequences.length) {
+                blockSequences = Arrays.copyOf(blockSequences, blockCount * 2);
+                blockPositions = Arrays.copyOf(blockPositions, blockCount * 2);
+            }
+            blockSequences[blockCount] = entries.getInt();
+            blockPositions[blockCount] = entries.getLong();
+            blockCount++;
+        }
+    }
+
+    /**
+     * Checks if the block index points at all the blocks of the compressed segment. The compressed file is never
+     * appended, so only the index can be damaged.
+     */
+    private boolean checkBlockIndex() throws IOException {
+        synchronized (this) {
+            loadBlockIndex();
+        }
+        if (!Files.exists(blockIndexPath) || (long) blockCount * blockIndexEntrySize != Files.size(blockIndexPath)) {
+            return false;
+        }
+        for (int i = 1; i < blockCount; i++) {
+            if (blockSequences[i] <= blockSequences[i - 1] || blockPositions[i] <= blockPositions[i - 1]) {
+                return false;
+            }
+        }
+
+        try (FileChannel file = FileChannel.open(compressedLogPath, StandardOpenOption.READ)) {
+            if (blockCount == 0) {
+                return file.size() == 0;
+            }
+
+            // the last block ends where the file does
+            ByteBuffer header = ByteBuffer.allocate(blockHeaderSize);
+            long position = blockPositions[blockCount - 1];
+            return file.read(header, position) == blockHeaderSize
+                    && header.getInt(0) == blockSequences[blockCount - 1]
+                    && position + blockHeaderSize + header.getInt(Integer.BYTES * 2) == file.size();
+        }
+    }
+
+    /**
+     * Builds the block index again from the headers of the blocks. A damaged block ends the indexed part.
+     */
+    private void rebuildBlockIndex() throws IOException {
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        try (FileChannel file = FileChannel.open(compressedLogPath, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(blockHeaderSize);
+            long position = 0;
+            long end = file.size();
+            while (position + blockHeaderSize <= end) {
+                header.clear();
+                if (file.read(header, position) < blockHeaderSize) {
+                    break;
+                }
+                int compressedLength = header.getInt(Integer.BYTES * 2);
+                if (compressedLength < 0 || position + blockHeaderSize + compressedLength > end) {
+                    break;
+                }
+
+                entries.writeBytes(ByteBuffer.allocate(blockIndexEntrySize)
+                        .putInt(header.getInt(0)).putLong(position).array());
+                position += blockHeaderSize + compressedLength;
+            }
+        }
+
+        replace(blockIndexPath, entries.toByteArray());
+        synchronized (this) {
+            loadBlockIndex();
+        }
+    }
+
+    /**
+     * @return The last block, which starts at or before the sequence number, or -1 if there is none.
+     */
+    private int findBlock(long sequence) {
+        int relativeSequence = (int) Math.max(-1, Math.min(Integer.MAX_VALUE, sequence - baseSequence));
+        int found = Arrays.binarySearch(blockSequences, 0, blockCount, relativeSequence);
+        return found >= 0 ? found : -found - 2;
+    }
+
+    private synchronized void addIndexEntry(int sequence, int position) {
+        if (indexSequences == null) {
+            return;
+        }
+
+        if (indexSize == indexSequences.length) {
+            indexSequences = Arrays.copyOf(indexSequences, indexSize * 2);
+            indexPositions = Arrays.copyOf(indexPositions, indexSize * 2);
+        }
+        indexSequences[indexSize] = sequence;
+        indexPositions[indexSize] = position;
+        indexSize++;
+    }
+
+    private synchronized void addTimeIndexEntry(int sequence, long timestamp) {
+        if (timeIndexSequences == null) {
+            return;
+        }
+
+        if (timeIndexSize == timeIndexSequences.length) {
+            timeIndexSequences = Arrays.copyOf(timeIndexSequences, timeIndexSize * 2);
+            timeIndexTimestamps = Arrays.copyOf(timeIndexTimestamps, timeIndexSize * 2);
+        }
+        timeIndexSequences[timeIndexSize] = sequence;
+        timeIndexTimestamps[timeIndexSize] = timestamp;
+        timeIndexSize++;
+    }
+
+    /**
+     * @return The last time index entry older than the time or -1 if there is none.
+     */
+    private int findTimeIndexEntry(long timestamp) {
+        int low = 0;
+        int high = timeIndexSize - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (timeIndexTimestamps[middle] < timestamp) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        return high;
+    }
+
+    /**
+     * @return The sequence number relative to the segment's first one, limited to the range of the index.
+     */
+    private int relativeSequence(long sequence) {
+        return (int) Math.max(0, Math.min(Integer.MAX_VALUE, sequence - baseSequence));
+    }
+
+    /**
+     * @return The last index entry at or before the sequence number or -1 if there is none.
+     */
+    private int findIndexEntry(int sequence) {
+        int found = Arrays.binarySearch(indexSequences, 0, indexSize, sequence);
+        return found >= 0 ? found : -found - 2;
+    }
+
+    /**
+     * Writes the file next to its final place first, so a crash doesn't leave it half-written.
+     */
+    private static void replace(Path path, byte[] bytes) throws IOException {
+        Path temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(temporaryPath, bytes);
+        Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void write(FileChannel file, ByteBuffer[] buffers, long position) throws IOException {
+        file.position(position);
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+
+        long written = 0;
+        while (written < remaining) {
+            written += file.write(buffers);
+        }
+    }
+
+    private static byte[] deflate(byte[] bytes) {
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream output = new ByteArrayOutputStream(bytes.length / 2);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(buffer);
+                output.write(buffer, 0, length);
+            }
+
+            return output.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @return The decompressed bytes or null if they are damaged.
+     */
+    private static byte[] inflate(byte[] bytes, int length) {
+        if (length < 0) {
+            return null;
+        }
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes);
+            // a byte more than expected tells the bytes don't match their length
+            byte[] output = new byte[length + 1];
+            int inflated = 0;
+            while (!inflater.finished()) {
+                int read = inflater.inflate(output, inflated, output.length - inflated);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    return null;
+                }
+                inflated += read;
+                if (inflated > length) {
+                    return null;
+                }
+            }
+
+            return inflated == length ? Arrays.copyOf(output, length) : null;
+        } catch (DataFormatException e) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static int crc32c(byte[] bytes) {
+        CRC32C crc = new CRC32C();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    private static String fileName(long baseSequence) {
+        // the names are sorted like the numbers
+        return String.format("%020d", baseSequence);
+    }
+}
@@ -1,15 +1,21 @@
 package pl.pawelkielb.fchat.server;
 
-import pl.pawelkielb.fchat.Connection;
-import pl.pawelkielb.fchat.Logger;
-import pl.pawelkielb.fchat.PacketEncoder;
+import pl.pawelkielb.fchat.*;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import static pl.pawelkielb.fchat.Functions.r;
@@ -20,36 +26,109 @@ public class Main {
                                   ClientHandler clientHandler) {
 
         connection.readPacket().thenAccept(packet ->
-                clientHandler.handlePacket(packet).thenRun(() ->
-                        nextPacket(connection, clientHandler)));
+                clientHandler.handlePacket(packet).thenRun(() -> {
+                    boolean isStream = connection instanceof Multiplexer.Stream;
+                    if (!isStream && connection.protocol().supports(Feature.MULTIPLEXING)) {
+                        // from now on every request comes on its own stream
+                        connection.multiplexer().acceptStreams(stream ->
+                                nextPacket(stream, clientHandler.forConnection(stream)));
+                    } else {
+                        nextPacket(connection, clientHandler);
+                    }
+                }));
     }
 
-    public static void startServer(int port, Path databaseRoot) throws IOException {
+    public static void startServer(int port,
+                                   Path databaseRoot,
+                                   Protocol protocol,
+                                   IoMode ioMode,
+                                   Durability durability,
+                                   long syncIntervalMillis,
+                                   RetentionPolicy retention) throws IOException {
+
         int cpusCount = Runtime.getRuntime().availableProcessors();
         Executor workerThreads = Executors.newFixedThreadPool(Math.min(cpusCount, 32));
-        Executor ioThreads = Executors.newFixedThreadPool(1000);
+        Executor ioThreads = switch (ioMode) {
+            // with NIO the pool is used only for the disk and the console, so it doesn't have to grow with the clients count
+            case NIO -> Executors.newFixedThreadPool(64);
+            case THREADS -> Executors.newFixedThreadPool(1000);
+            case VIRTUAL_THREADS -> newVirtualThreadPerTaskExecutor();
+        };
 
         PacketEncoder packetEncoder = new PacketEncoder();
         Logger logger = new ConsoleLogger(ioThreads);
-        Database database = new Database(workerThreads, ioThreads, databaseRoot, packetEncoder, logger);
+        // a crash might have damaged the logs, so they are repaired before anyone uses them
+        MessageLogRecovery.run(databaseRoot.resolve("messages"), logger);
+        Database database = new Database(workerThreads, ioThreads, databaseRoot, packetEncoder, logger,
+                durability, syncIntervalMillis, retention);
+        Runtime.getRuntime().addShutdownHook(new Thread(database::close, "database-shutdown"));
         MessageManager messageManager = new MessageManager(database);
 
-        ServerSocket server = new ServerSocket(port);
-
-        ioThreads.execute(r(() -> {
-            // noinspection InfiniteLoopStatement
-            while (true) {
-                Socket socket = server.accept();
-                workerThreads.execute(() -> {
-                    Connection connection = new Connection(packetEncoder, socket, workerThreads, ioThreads, logger);
-                    ClientHandler clientHandler = new ClientHandler(database, connection, messageManager, workerThreads);
-                    nextPacket(connection, clientHandler);
-                });
+        if (ioMode == IoMode.NIO) {
+            EventLoop[] eventLoops = new EventLoop[Math.max(1, Math.min(cpusCount / 2, 8))];
+            for (int i = 0; i < eventLoops.length; i++) {
+                eventLoops[i] = new EventLoop("event-loop-" + i, logger);
+                eventLoops[i].start();
             }
-        }));
+
+            ServerSocketChannel server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(port));
+
+            ioThreads.execute(r(() -> {
+                int nextEventLoop = 0;
+                // noinspection InfiniteLoopStatement
+                while (true) {
+                    SocketChannel channel = server.accept();
+                    EventLoop eventLoop = eventLoops[nextEventLoop];
+                    nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+
+                    try {
+                        Connection connection = new NioConnection(
+                                packetEncoder, channel, eventLoop, workerThreads, ioThreads, logger);
+                        ClientHandler clientHandler = new ClientHandler(database, connection, messageManager, workerThreads, protocol);
+                        nextPacket(connection, clientHandler);
+                    } catch (IOException e) {
+                        channel.close();
+                    }
+                }
+            }));
+        } else {
+            ServerSocket server = new ServerSocket(port);
+
+            ioThreads.execute(r(() -> {
+                // noinspection InfiniteLoopStatement
+                while (true) {
+                    Socket socket = server.accept();
+                    workerThreads.execute(() -> {
+                        Connection connection = new Connection(packetEncoder, socket, workerThreads, ioThreads, logger);
+                        ClientHandler clientHandler = new ClientHandler(database, connection, messageManager, workerThreads, protocol);
+                        nextPacket(connection, clientHandler);
+                    });
+                }
+            }));
+        }
+    }
+
+    /**
+     * Virtual threads are looked up reflectively, because the server is still compiled for Java 17.
+     *
+     * @throws UnsupportedOperationException if the running JVM doesn't support virtual threads
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or newer", e);
+        }
     }
 
     public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("recover")) {
+            MessageLogRecovery.Summary summary = MessageLogRecovery.run(Paths.get("messages"), System.out::println);
+            System.exit(summary.failedChannels() > 0 ? 1 : 0);
+        }
+
         int port = 1337;
         String portString = System.getenv("PORT");
         if (portString != null) {
@@ -59,7 +138,61 @@ public class Main {
             }
         }
 
+        Set<Feature> features = EnumSet.allOf(Feature.class);
+        String disabledFeaturesString = System.getenv("DISABLED_FEATURES");
+        if (disabledFeaturesString != null) {
+            Arrays.stream(disabledFeaturesString.split(","))
+                    .map(String::trim)
+                    .filter(it -> !it.isEmpty())
+                    .forEach(it -> {
+                        try {
+                            features.remove(Feature.valueOf(it.toUpperCase()));
+                        } catch (IllegalArgumentException e) {
+                            System.out.println("Unknown feature: " + it);
+                        }
+                    });
+        }
+        Protocol protocol = new Protocol(Protocol.currentVersion, features);
+
+        IoMode ioMode = IoMode.NIO;
+        String ioModeString = System.getenv("IO_MODE");
+        if (ioModeString != null) {
+            try {
+                ioMode = IoMode.valueOf(ioModeString.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.out.println("Unknown IO mode: " + ioModeString);
+            }
+        }
+
+        Durability durability = Durability.NONE;
+        String durabilityString = System.getenv("DURABILITY");
+        if (durabilityString != null) {
+            try {
+                durability = Durability.valueOf(durabilityString.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.out.println("Unknown durability: " + durabilityString);
+            }
+        }
+
+        long syncIntervalMillis = 1000;
+        String syncIntervalString = System.getenv("SYNC_INTERVAL_MS");
+        if (syncIntervalString != null) {
+            try {
+                syncIntervalMillis = Long.parseLong(syncIntervalString.trim());
+            } catch (NumberFormatException ignore) {
+            }
+        }
+
+        RetentionPolicy retention = new RetentionPolicy(
+                RetentionPolicy.parse(System.getenv("RETENTION_MAX_AGE_HOURS"), 60 * 60 * 1000, 0),
+                RetentionPolicy.parse(System.getenv("RETENTION_MAX_MESSAGES"), 1, 0),
+                RetentionPolicy.parse(System.getenv("RETENTION_MAX_BYTES"), 1, 0));
+
         System.out.println("Starting the server at port " + port);
-        startServer(port, Paths.get("."));
+        System.out.println("Protocol features: " + features);
+        System.out.println("IO mode: " + ioMode);
+        System.out.println("Durability: " + durability);
+        System.out.println("Retention: " + (retention.limited() ? retention : "unlimited"));
+        startServer(port, Paths.get("."), protocol, ioMode, durability, syncIntervalMillis, retention);
     }
 }
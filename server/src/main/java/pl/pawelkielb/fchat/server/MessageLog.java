@@ -0,0 +1,410 @@
+package pl.pawelkielb.fchat.server;
+
+import pl.pawelkielb.fchat.data.Message;
+import pl.pawelkielb.fchat.data.Name;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+
+/**
+ * Messages of a single channel, split into {@link LogSegment}s. New messages are appended to the last segment,
+ * which is replaced with a new one when it's full, so an append costs the same no matter how long the history is.
+ * Every message has a sequence number, which is its position in the channel's history, so it can be found
+ * in its segment without reading the others. Every message also has the time it was saved at. The times never
+ * go back, even if the clock does, so the messages saved since some time are found the same way.
+ * Old messages are dropped by deleting whole segments and the full segments which are not written anymore
+ * can be compressed.
+ * <p>
+ * Messages saved before the log existed are moved to it when the log is opened for the first time.
+ * It's thread-safe, but messages can't be read while they are being appended.
+ */
+class MessageLog {
+    private static final long segmentSizeInBytes = 16 * 1024 * 1024;
+    private static final int migrationBatchSize = 1000;
+
+    private final Path directory;
+    private final TreeMap<Long, LogSegment> segments = new TreeMap<>();
+    private LogSegment activeSegment;
+    private long nextSequence;
+    private long lastTimestamp;
+
+    private MessageLog(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Opens the log of the channel and creates it if it doesn't exist yet.
+     *
+     * @param channelDirectory a directory with the channel's data
+     */
+    static MessageLog open(Path channelDirectory) throws IOException {
+        Path directory = channelDirectory.resolve("log");
+        if (!Files.exists(directory)) {
+            migrateLegacyMessages(channelDirectory, directory);
+        }
+        // the messages were moved, but deleting the old files was interrupted
+        deleteLegacyMessages(channelDirectory);
+
+        MessageLog log = new MessageLog(directory);
+        long[] baseSequences;
+        try (Stream<Path> files = Files.list(directory)) {
+            baseSequences = files.mapToLong(LogSegment::baseSequence).filter(it -> it >= 0).toArray();
+        }
+        for (long baseSequence : baseSequences) {
+            log.segments.put(baseSequence, LogSegment.of(directory, baseSequence));
+        }
+        // a segment was compressed, but deleting its uncompressed files was interrupted
+        if (baseSequences.length > log.segments.size()) {
+            for (LogSegment segment : log.segments.values()) {
+                segment.deleteUncompressedFiles();
+            }
+        }
+        if (log.segments.isEmpty()) {
+            log.segments.put(0L, LogSegment.of(directory, 0));
+        }
+
+        log.activeSegment = log.segments.lastEntry().getValue();
+        log.activeSegment.openForAppend();
+        log.nextSequence = log.activeSegment.baseSequence() + log.activeSegment.count();
+        log.lastTimestamp = log.activeSegment.lastTimestamp();
+
+        return log;
+    }
+
+    /**
+     * Checks the indexes of all the segments and builds the damaged ones again. The damaged records at the end
+     * of the log are cut off. Nothing is created for a channel without messages. The log can't be open meanwhile.
+     *
+     * @param channelDirectory a directory with the channel's data
+     * @return A count of the segments whose indexes were built again.
+     */
+    static int recover(Path channelDirectory) throws IOException {
+        Path directory = channelDirectory.resolve("log");
+        if (!Files.exists(directory) && !Files.exists(channelDirectory.resolve("messages.txt"))) {
+            return 0;
+        }
+
+        int rebuiltIndexes = 0;
+        if (Files.exists(directory)) {
+            long[] baseSequences;
+            try (Stream<Path> files = Files.list(directory)) {
+                // a compressed segment might still have its uncompressed files
+                baseSequences = files.mapToLong(LogSegment::baseSequence).filter(it -> it >= 0).distinct().toArray();
+            }
+            long lastBaseSequence = Arrays.stream(baseSequences).max().orElse(0);
+            for (long baseSequence : baseSequences) {
+                LogSegment segment = LogSegment.of(directory, baseSequence);
+                if (!segment.checkIndex(baseSequence == lastBaseSequence)) {
+                    segment.rebuildIndex();
+                    rebuiltIndexes++;
+                }
+            }
+        }
+
+        // the legacy messages are moved and the end of the last segment is checked
+        open(channelDirectory).close();
+        return rebuiltIndexes;
+    }
+
+    /**
+     * @return The sequence number of the oldest message kept.
+     */
+    synchronized long firstSequence() {
+        return segments.firstKey();
+    }
+
+    /**
+     * @return The sequence number the next appended message will get. It's also a count of all the messages
+     * appended to the channel.
+     */
+    synchronized long nextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * Appends the messages with a single write to each of the files, unless the segment is filled in the middle.
+     * They are saved at the current time.
+     */
+    synchronized void append(List<Message> messages) throws IOException {
+        append(messages, Math.max(System.currentTimeMillis(), lastTimestamp));
+    }
+
+    private void append(List<Message> messages, long timestamp) throws IOException {
+        List<ByteBuffer> records = new ArrayList<>(messages.size());
+        long recordsSize = 0;
+        long sequence = nextSequence;
+        for (Message message : messages) {
+            ByteBuffer record = LogSegment.record(message, sequence++, timestamp);
+            long segmentSize = activeSegment.size() + recordsSize;
+            if (segmentSize > 0 && segmentSize + record.remaining() > segmentSizeInBytes) {
+                appendToActiveSegment(records, timestamp);
+                records.clear();
+                recordsSize = 0;
+                roll();
+            }
+
+            records.add(record);
+            recordsSize += record.remaining();
+        }
+
+        appendToActiveSegment(records, timestamp);
+    }
+
+    /**
+     * Forces the appended messages to the disk.
+     */
+    synchronized void sync() throws IOException {
+        activeSegment.sync();
+    }
+
+    /**
+     * Reads the messages with sequence numbers from the range. Messages which are not kept anymore are skipped.
+     *
+     * @param from the first sequence number to read
+     * @param to   the sequence number after the last one to read
+     */
+    void read(long from, long to, Consumer<Message> consumer) throws IOException {
+        List<LogSegment> readSegments;
+        long end;
+        synchronized (this) {
+            Long first = segments.floorKey(from);
+            readSegments = new ArrayList<>(segments.subMap(first != null ? first : from, to).values());
+            end = Math.min(to, nextSequence);
+        }
+
+        for (int i = 0; i < readSegments.size(); i++) {
+            long segmentEnd = i + 1 < readSegments.size() ? readSegments.get(i + 1).baseSequence() : end;
+            readSegments.get(i).read(from, Math.min(segmentEnd, end), consumer);
+        }
+    }
+
+    /**
+     * @param timestamp a time in milliseconds since the epoch
+     * @return The sequence number of the first message saved at the time or later. The messages with unknown times
+     * are treated as older than any time.
+     */
+    long sequenceAt(long timestamp) throws IOException {
+        List<LogSegment> newestSegments;
+        long end;
+        synchronized (this) {
+            newestSegments = new ArrayList<>(segments.descendingMap().values());
+            end = nextSequence;
+            // a segment which has just been started has no messages and no times
+            if (activeSegment.count() == 0 && newestSegments.size() > 1) {
+                newestSegments.remove(0);
+            }
+        }
+
+        // the recent messages are looked for the most often, so the segments are checked from the newest one
+        for (LogSegment segment : newestSegments) {
+            if (segment.firstTimestamp() < timestamp) {
+                long sequence = segment.sequenceAt(timestamp);
+                return sequence >= 0 ? sequence : end;
+            }
+            end = segment.baseSequence();
+        }
+
+        return end;
+    }
+
+    /**
+     * Tells which messages are older than the given time without reading any of them. The messages of a full segment
+     * are as old as its last write, so the messages with unknown times, like the migrated ones, are not treated as
+     * older than any time. The active segment isn't checked, so the appends aren't slowed down.
+     *
+     * @param timestamp a time in milliseconds since the epoch
+     * @return The sequence number of the first message of the oldest segment written at the time or later.
+     */
+    synchronized long sequenceWrittenSince(long timestamp) throws IOException {
+        for (LogSegment segment : segments.values()) {
+            if (segment == activeSegment || segment.lastModifiedTime() >= timestamp) {
+                return segment.baseSequence();
+            }
+        }
+
+        return activeSegment.baseSequence();
+    }
+
+    /**
+     * Deletes the segments which contain only messages older than the given one. The last segment is never deleted.
+     *
+     * @return The sequence number of the oldest message kept.
+     */
+    synchronized long deleteBefore(long sequence) throws IOException {
+        while (segments.size() > 1) {
+            Map.Entry<Long, LogSegment> oldest = segments.firstEntry();
+            long oldestEnd = segments.higherKey(oldest.getKey());
+            if (oldestEnd > sequence) {
+                break;
+            }
+
+            oldest.getValue().delete();
+            segments.remove(oldest.getKey());
+        }
+
+        return segments.firstKey();
+    }
+
+    /**
+     * @return The sequence number of the oldest message of the newest segments, which take at most the given size
+     * on the disk. The last segment is kept even if it's bigger.
+     */
+    synchronized long sequenceWithinSize(long maxSizeInBytes) throws IOException {
+        long size = 0;
+        for (LogSegment segment : segments.descendingMap().values()) {
+            size += segment.sizeOnDisk();
+            if (size > maxSizeInBytes && segment != activeSegment) {
+                return segments.higherKey(segment.baseSequence());
+            }
+        }
+
+        return segments.firstKey();
+    }
+
+    /**
+     * Compresses the oldest full segment which hasn't been written for the given time. A single segment is compressed
+     * at a time, so the channel isn't blocked for long. Messages can't be read or appended meanwhile.
+     *
+     * @return false if there was no such segment
+     */
+    synchronized boolean compressColdSegment(long coldAfterMillis) throws IOException {
+        long now = System.currentTimeMillis();
+        for (LogSegment segment : segments.values()) {
+            if (segment != activeSegment && !segment.compressed()
+                    && now - segment.lastModifiedTime() >= coldAfterMillis) {
+                segment.compress();
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Tells without opening the log if it has full segments, which could be compressed or deleted.
+     *
+     * @param channelDirectory a directory with the channel's data
+     * @param uncompressed     true if only the uncompressed segments count
+     */
+    static boolean hasFullSegments(Path channelDirectory, boolean uncompressed) throws IOException {
+        Path directory = channelDirectory.resolve("log");
+        if (!Files.exists(directory)) {
+            return false;
+        }
+
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(it -> uncompressed
+                            ? it.getFileName().toString().endsWith(LogSegment.logExtension)
+                            : LogSegment.baseSequence(it) >= 0)
+                    .count() > 1;
+        }
+    }
+
+    /**
+     * Stops appending to the log.
+     */
+    synchronized void close() {
+        activeSegment.close();
+    }
+
+    private void appendToActiveSegment(List<ByteBuffer> records, long timestamp) throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+
+        activeSegment.append(records, timestamp);
+        nextSequence += records.size();
+        lastTimestamp = timestamp;
+    }
+
+    private void roll() throws IOException {
+        // the messages of a full segment are never written again, so they are forced right away
+        activeSegment.sync();
+        activeSegment.close();
+
+        activeSegment = LogSegment.of(directory, nextSequence);
+        activeSegment.openForAppend();
+        segments.put(nextSequence, activeSegment);
+    }
+
+    /**
+     * Moves the messages from the text file used before the log existed. The log is built next to its final place,
+     * so an interrupted migration starts again from the beginning.
+     */
+    private static void migrateLegacyMessages(Path channelDirectory, Path directory) throws IOException {
+        Path migrationDirectory = channelDirectory.resolve("log.migration");
+        if (Files.exists(migrationDirectory)) {
+            try (Stream<Path> files = Files.list(migrationDirectory)) {
+                for (Path file : files.toList()) {
+                    Files.delete(file);
+                }
+            }
+        }
+        Files.createDirectories(migrationDirectory);
+
+        Path messagesPath = channelDirectory.resolve("messages.txt");
+        Path indexPath = channelDirectory.resolve("index");
+        if (Files.exists(messagesPath) && Files.exists(indexPath)) {
+            MessageLog log = new MessageLog(migrationDirectory);
+            log.activeSegment = LogSegment.of(migrationDirectory, 0);
+            log.activeSegment.openForAppend();
+            log.segments.put(0L, log.activeSegment);
+
+            try (FileChannel messages = FileChannel.open(messagesPath, StandardOpenOption.READ)) {
+                // every entry of the old index is a position and a length of a message
+                ByteBuffer entries = ByteBuffer.wrap(Files.readAllBytes(indexPath));
+                int entriesCount = entries.remaining() / (Long.BYTES * 2);
+                List<Message> batch = new ArrayList<>(migrationBatchSize);
+                MessageRangeReader reader = null;
+                for (int i = 0; i < entriesCount; i++) {
+                    long start = entries.getLong();
+                    int length = (int) entries.getLong();
+                    if (reader == null) {
+                        reader = new MessageRangeReader(messages, start, messages.size());
+                    }
+
+                    // the author is in the first line and the content in the rest
+                    String entry = new String(reader.read(start, length));
+                    int authorEnd = entry.indexOf('\n');
+                    batch.add(new Message(Name.of(entry.substring(0, authorEnd)), entry.substring(authorEnd + 1)));
+                    // the times of the old messages are not known
+                    if (batch.size() == migrationBatchSize) {
+                        log.append(batch, 0);
+                        batch.clear();
+                    }
+                }
+                log.append(batch, 0);
+                log.sync();
+            } finally {
+                log.close();
+            }
+
+            // the old messages are as old as the old file, which tells when they can be deleted
+            FileTime legacyTime = Files.getLastModifiedTime(messagesPath);
+            for (LogSegment segment : log.segments.values()) {
+                segment.setLastModifiedTime(legacyTime);
+            }
+        }
+
+        Files.move(migrationDirectory, directory, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void deleteLegacyMessages(Path channelDirectory) throws IOException {
+        Files.deleteIfExists(channelDirectory.resolve("messages.txt"));
+        Files.deleteIfExists(channelDirectory.resolve("index"));
+    }
+}
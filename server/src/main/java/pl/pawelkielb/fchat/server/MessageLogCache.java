@@ -0,0 +1,202 @@
+package pl.pawelkielb.fchat.server;
+
+import pl.pawelkielb.fchat.data.Message;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Keeps the {@link MessageLog}s and {@link SearchIndex}es of the recently active channels open, so appending
+ * a message doesn't open any file. When too many channels are open, the least recently used one is closed.
+ * A channel is also closed after it's idle for a while. Written logs can be forced to the disk periodically.
+ * The cache has to be closed to stop its thread. It's thread-safe.
+ */
+class MessageLogCache {
+    private static final int maxOpenChannels = 128;
+    private static final long idleTimeoutMillis = 60_000;
+
+    private final Path messagesDirectory;
+    private final boolean syncing;
+    private final ScheduledExecutorService scheduler;
+    // iterates from the least recently used channel
+    private final Map<UUID, Handle> handles = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * @param messagesDirectory  a directory with a subdirectory of messages for every channel
+     * @param syncIntervalMillis how often the written logs are forced to the disk or 0 if they are never forced
+     */
+    MessageLogCache(Path messagesDirectory, long syncIntervalMillis) {
+        this.messagesDirectory = messagesDirectory;
+        this.syncing = syncIntervalMillis > 0;
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "message-log-cache");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(
+                this::closeIdle, idleTimeoutMillis, idleTimeoutMillis, TimeUnit.MILLISECONDS);
+        if (syncing) {
+            scheduler.scheduleWithFixedDelay(
+                    this::syncWritten, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Opens the channel's log if it's not open yet.
+     *
+     * @return The channel's handle, which must be given back with {@link #release(Handle)}.
+     */
+    synchronized Handle acquire(UUID channel) throws IOException {
+        Handle handle = handles.get(channel);
+        if (handle == null) {
+            Path channelDirectory = messagesDirectory.resolve(channel.toString());
+            SearchIndex searchIndex = new SearchIndex(channelDirectory.resolve("search.index"));
+            handle = new Handle(MessageLog.open(channelDirectory), searchIndex);
+            handles.put(channel, handle);
+            evict();
+        }
+
+        handle.users++;
+        return handle;
+    }
+
+    synchronized void release(Handle handle) {
+        handle.users--;
+        handle.lastUsedAt = System.nanoTime();
+        if (handle.broken && handle.users == 0) {
+            // the log is opened again next time, so the damaged messages are cut off
+            handles.values().remove(handle);
+            close(handle);
+        }
+    }
+
+    /**
+     * Stops the background tasks and closes all the channels, forcing the written ones to the disk if the logs
+     * are synced. The channels still being used are closed too, so it should be called when nobody uses the cache.
+     */
+    void close() {
+        scheduler.shutdownNow();
+        synchronized (this) {
+            handles.values().forEach(this::close);
+            handles.clear();
+        }
+    }
+
+    /**
+     * Forces the logs written since the previous call to the disk.
+     */
+    private void syncWritten() {
+        List<Handle> written = new ArrayList<>();
+        synchronized (this) {
+            for (Handle handle : handles.values()) {
+                if (handle.written) {
+                    // a used handle is not closed in the meantime
+                    handle.users++;
+                    written.add(handle);
+                }
+            }
+        }
+
+        for (Handle handle : written) {
+            try {
+                handle.sync();
+            } catch (IOException ignore) {
+                // the next sync will try again
+            }
+            release(handle);
+        }
+    }
+
+    private void evict() {
+        Iterator<Handle> iterator = handles.values().iterator();
+        while (handles.size() > maxOpenChannels && iterator.hasNext()) {
+            Handle handle = iterator.next();
+            // a channel being used is skipped, so there might be a few more channels open for a moment
+            if (handle.users == 0) {
+                iterator.remove();
+                close(handle);
+            }
+        }
+    }
+
+    private synchronized void closeIdle() {
+        long now = System.nanoTime();
+        Iterator<Handle> iterator = handles.values().iterator();
+        while (iterator.hasNext()) {
+            Handle handle = iterator.next();
+            if (handle.users == 0 && now - handle.lastUsedAt > TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis)) {
+                iterator.remove();
+                close(handle);
+            }
+        }
+    }
+
+    private void close(Handle handle) {
+        // the messages written since the last sync would miss the next one
+        if (syncing && handle.written) {
+            try {
+                handle.sync();
+            } catch (IOException ignore) {
+            }
+        }
+        handle.log.close();
+        handle.searchIndex.close();
+    }
+
+    /**
+     * An open log of a single channel and its search index. It can be read by many threads at once,
+     * but appended by only one.
+     */
+    static class Handle {
+        private final MessageLog log;
+        private final SearchIndex searchIndex;
+        private int users = 0;
+        private long lastUsedAt = System.nanoTime();
+        private volatile boolean broken = false;
+        private volatile boolean written = false;
+
+        private Handle(MessageLog log, SearchIndex searchIndex) {
+            this.log = log;
+            this.searchIndex = searchIndex;
+        }
+
+        MessageLog log() {
+            return log;
+        }
+
+        SearchIndex searchIndex() {
+            return searchIndex;
+        }
+
+        void append(List<Message> messages) throws IOException {
+            long firstSequence = log.nextSequence();
+            try {
+                log.append(messages);
+            } catch (IOException e) {
+                broken = true;
+                throw e;
+            }
+            written = true;
+            searchIndex.append(firstSequence, messages);
+        }
+
+        /**
+         * Forces the appended messages to the disk.
+         */
+        void sync() throws IOException {
+            written = false;
+            log.sync();
+        }
+    }
+}
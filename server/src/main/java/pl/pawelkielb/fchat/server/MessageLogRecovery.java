@@ -0,0 +1,95 @@
+package pl.pawelkielb.fchat.server;
+
+import pl.pawelkielb.fchat.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.Stream;
+
+
+/**
+ * Recovers the message logs of all the channels after the server stops, see {@link MessageLog#recover(Path)}.
+ * There might be tens of thousands of channels, so they are recovered in parallel on a fork-join pool.
+ * It must not run while the server uses the logs.
+ */
+class MessageLogRecovery {
+    private static final int channelsPerTask = 32;
+
+    record Summary(int channels, int rebuiltIndexes, int failedChannels) {
+        private Summary plus(Summary other) {
+            return new Summary(channels + other.channels,
+                    rebuiltIndexes + other.rebuiltIndexes,
+                    failedChannels + other.failedChannels);
+        }
+    }
+
+    /**
+     * @param messagesDirectory a directory with a subdirectory of messages for every channel
+     */
+    static Summary run(Path messagesDirectory, Logger logger) throws IOException {
+        if (!Files.isDirectory(messagesDirectory)) {
+            return new Summary(0, 0, 0);
+        }
+
+        List<Path> channelDirectories;
+        try (Stream<Path> files = Files.list(messagesDirectory)) {
+            channelDirectories = files.filter(Files::isDirectory).toList();
+        }
+
+        long start = System.nanoTime();
+        // the disk is slower than the processor, so more channels are read at once than there are processors
+        ForkJoinPool pool = new ForkJoinPool(Math.max(8, Runtime.getRuntime().availableProcessors() * 2));
+        Summary summary;
+        try {
+            summary = pool.invoke(new RecoveryTask(channelDirectories, logger));
+        } finally {
+            pool.shutdown();
+        }
+
+        logger.info(String.format("Recovered %d channels in %d ms, rebuilt %d indexes, failed %d channels",
+                summary.channels(), (System.nanoTime() - start) / 1_000_000,
+                summary.rebuiltIndexes(), summary.failedChannels()));
+        return summary;
+    }
+
+    // the tasks are never serialized
+    @SuppressWarnings("serial")
+    private static class RecoveryTask extends RecursiveTask<Summary> {
+        private final List<Path> channelDirectories;
+        private final Logger logger;
+
+        private RecoveryTask(List<Path> channelDirectories, Logger logger) {
+            this.channelDirectories = channelDirectories;
+            this.logger = logger;
+        }
+
+        @Override
+        protected Summary compute() {
+            if (channelDirectories.size() > channelsPerTask) {
+                int middle = channelDirectories.size() / 2;
+                int size = channelDirectories.size();
+                RecoveryTask left = new RecoveryTask(channelDirectories.subList(0, middle), logger);
+                RecoveryTask right = new RecoveryTask(channelDirectories.subList(middle, size), logger);
+                left.fork();
+                return right.compute().plus(left.join());
+            }
+
+            Summary summary = new Summary(0, 0, 0);
+            for (Path channelDirectory : channelDirectories) {
+                try {
+                    summary = summary.plus(new Summary(1, MessageLog.recover(channelDirectory), 0));
+                } catch (Exception e) {
+                    // the channel stays as it is, so the others can still be used
+                    logger.info(String.format("Cannot recover the messages in %s: %s", channelDirectory, e));
+                    summary = summary.plus(new Summary(1, 0, 1));
+                }
+            }
+
+            return summary;
+        }
+    }
+}
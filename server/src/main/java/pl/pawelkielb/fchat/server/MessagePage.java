@@ -0,0 +1,17 @@
+package pl.pawelkielb.fchat.server;
+
+import pl.pawelkielb.fchat.Observable;
+import pl.pawelkielb.fchat.data.Message;
+
+import java.util.concurrent.CompletableFuture;
+
+
+/**
+ * A page of a channel's history read by the {@link Database}.
+ *
+ * @param messages the messages, from the oldest one
+ * @param before   resolves, before the messages complete, to a cursor of the older page
+ *                 or 0 if there are no older messages, see {@link pl.pawelkielb.fchat.packets.MessageCursorPacket}
+ */
+public record MessagePage(Observable<Message> messages, CompletableFuture<Long> before) {
+}
@@ -0,0 +1,86 @@
+package pl.pawelkielb.fchat.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * Reads the entries of a range of messages, which lie next to each other in the messages file.
+ * Instead of a read per message, the range is read with a single read, mapped or, if it's very big,
+ * read in a few big parts into a reused buffer. The entries are then sliced out of the memory. It's not thread-safe.
+ */
+class MessageRangeReader {
+    private static final int readSize = 1024 * 1024;
+    // bigger ranges are read in parts, so they don't take that much address space
+    private static final long maxMappedSize = 64 * 1024 * 1024;
+
+    private final FileChannel file;
+    private final ByteBuffer buffer;
+    private long bufferStart;
+
+    /**
+     * @param start a position of the first message of the range
+     * @param end   a position right after the last message of the range
+     */
+    MessageRangeReader(FileChannel file, long start, long end) throws IOException {
+        this.file = file;
+        this.bufferStart = start;
+
+        long size = end - start;
+        if (size <= readSize) {
+            buffer = ByteBuffer.allocate((int) size);
+            fill(start);
+        } else if (size <= maxMappedSize) {
+            buffer = file.map(FileChannel.MapMode.READ_ONLY, start, size);
+        } else {
+            buffer = ByteBuffer.allocate(readSize);
+            buffer.limit(0);
+        }
+    }
+
+    /**
+     * @param start  a position of the message's entry, which is not before the previous one
+     * @param length a length of the entry
+     * @return The bytes of the entry.
+     */
+    byte[] read(long start, int length) throws IOException {
+        byte[] entry = new byte[length];
+        if (start + length > bufferStart + buffer.limit()) {
+            if (length > buffer.capacity()) {
+                // the entry doesn't fit any part, so it's read on its own
+                readFully(ByteBuffer.wrap(entry), start);
+                return entry;
+            }
+
+            fill(start);
+            if (start + length > bufferStart + buffer.limit()) {
+                throw new EOFException();
+            }
+        }
+
+        buffer.get((int) (start - bufferStart), entry);
+        return entry;
+    }
+
+    private void fill(long position) throws IOException {
+        bufferStart = position;
+        buffer.clear();
+        // the last part usually ends after the file
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+    }
+
+    private void readFully(ByteBuffer entry, long position) throws IOException {
+        while (entry.hasRemaining()) {
+            if (file.read(entry, position + entry.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+}
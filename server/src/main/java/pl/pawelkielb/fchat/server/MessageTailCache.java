@@ -0,0 +1,216 @@
+package pl.pawelkielb.fchat.server;
+
+import pl.pawelkielb.fchat.data.Message;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+
+/**
+ * Keeps the newest messages of the recently active channels in memory, so reading them doesn't touch the disk.
+ * The messages are added when they are written or read, and the oldest ones are dropped when a channel has
+ * too many of them. When all the channels take too much memory, the least recently used one is dropped.
+ * It counts the reads served from memory and the ones which had to go to the disk. It's thread-safe.
+ */
+class MessageTailCache {
+    private static final int maxMessagesPerChannel = 1024;
+    // a rough size of a message's object and its strings without the characters
+    private static final int messageOverheadInBytes = 96;
+
+    private final long maxSizeInBytes;
+    // iterates from the least recently used channel
+    private final Map<UUID, Tail> tails = new LinkedHashMap<>(16, 0.75f, true);
+    private long sizeInBytes = 0;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param from  the sequence number of the first message
+     * @param first true if there are no older messages
+     */
+    record Slice(long from, List<Message> messages, boolean first) {
+    }
+
+    private static class Tail {
+        private final ArrayDeque<Message> messages = new ArrayDeque<>();
+        private long nextSequence;
+        private long sizeInBytes = 0;
+        // all the channel's messages are in the memory
+        private boolean whole;
+
+        private Tail(long nextSequence, boolean whole) {
+            this.nextSequence = nextSequence;
+            this.whole = whole;
+        }
+    }
+
+    /**
+     * @param maxSizeInBytes an approximate limit of memory taken by the messages of all the channels
+     */
+    MessageTailCache(long maxSizeInBytes) {
+        this.maxSizeInBytes = maxSizeInBytes;
+    }
+
+    /**
+     * Must be called after the messages are appended to the channel's log. Appends can't run in parallel
+     * with each other or with the reads of the same channel.
+     *
+     * @param firstSequence the sequence number of the first message
+     */
+    synchronized void append(UUID channel, long firstSequence, List<Message> messages) {
+        Tail tail = tails.get(channel);
+        if (tail == null || tail.nextSequence != firstSequence) {
+            remove(channel);
+            // the messages of a new channel are all there is
+            tail = new Tail(firstSequence, firstSequence == 0);
+            tails.put(channel, tail);
+        }
+
+        for (Message message : messages) {
+            tail.messages.addLast(message);
+            tail.sizeInBytes += size(message);
+            sizeInBytes += size(message);
+        }
+        tail.nextSequence += messages.size();
+        trim(tail);
+        evict(tail);
+    }
+
+    /**
+     * Keeps the messages read from the disk, unless more of them are in memory already. The messages deleted
+     * from the log while they were read are not kept, because the deletion might have invalidated the channel
+     * before they were filled.
+     *
+     * @param from          the sequence number of the first message
+     * @param nextSequence  the sequence number after the last message
+     * @param firstSequence returns the sequence number of the oldest message kept in the channel's log
+     */
+    synchronized void fill(UUID channel,
+                           long from,
+                           long nextSequence,
+                           List<Message> messages,
+                           LongSupplier firstSequence) {
+
+        long first = firstSequence.getAsLong();
+        if (from < first) {
+            return;
+        }
+        boolean whole = from == first;
+
+        Tail tail = tails.get(channel);
+        if (tail != null && tail.nextSequence == nextSequence
+                && (tail.whole || tail.messages.size() >= messages.size())) {
+            return;
+        }
+
+        remove(channel);
+        tail = new Tail(from, whole);
+        tails.put(channel, tail);
+        for (Message message : messages) {
+            tail.messages.addLast(message);
+            tail.sizeInBytes += size(message);
+            sizeInBytes += size(message);
+        }
+        tail.nextSequence = nextSequence;
+        trim(tail);
+        evict(tail);
+    }
+
+    /**
+     * @param before the sequence number after the last message to read or a negative number for the newest messages
+     * @return The messages, from the oldest one, or null if they are not all in memory.
+     */
+    synchronized Slice read(UUID channel, long before, int count) {
+        Tail tail = tails.get(channel);
+        if (tail == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        long tailStart = tail.nextSequence - tail.messages.size();
+        long to = before >= 0 ? Math.min(before, tail.nextSequence) : tail.nextSequence;
+        if (to - count < tailStart && !tail.whole) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        long from = Math.min(Math.max(tailStart, to - count), to);
+        List<Message> messages = new ArrayList<>((int) Math.max(0, to - from));
+        Iterator<Message> iterator = tail.messages.descendingIterator();
+        for (long sequence = tail.nextSequence - 1; sequence >= from && iterator.hasNext(); sequence--) {
+            Message message = iterator.next();
+            if (sequence < to) {
+                messages.add(message);
+            }
+        }
+
+        Collections.reverse(messages);
+        return new Slice(from, messages, from <= tailStart && tail.whole);
+    }
+
+    /**
+     * Drops the channel's messages, so the next read goes to the disk.
+     */
+    synchronized void invalidate(UUID channel) {
+        remove(channel);
+    }
+
+    /**
+     * @return A count of the reads served from memory.
+     */
+    long hits() {
+        return hits.get();
+    }
+
+    /**
+     * @return A count of the reads which had to go to the disk.
+     */
+    long misses() {
+        return misses.get();
+    }
+
+    private void remove(UUID channel) {
+        Tail tail = tails.remove(channel);
+        if (tail != null) {
+            sizeInBytes -= tail.sizeInBytes;
+        }
+    }
+
+    private void trim(Tail tail) {
+        while (tail.messages.size() > maxMessagesPerChannel
+                || (tail.sizeInBytes > maxSizeInBytes && !tail.messages.isEmpty())) {
+            removeOldest(tail);
+        }
+    }
+
+    private void evict(Tail current) {
+        Iterator<Tail> iterator = tails.values().iterator();
+        while (sizeInBytes > maxSizeInBytes && iterator.hasNext()) {
+            Tail tail = iterator.next();
+            if (tail != current) {
+                iterator.remove();
+                sizeInBytes -= tail.sizeInBytes;
+            }
+        }
+    }
+
+    private void removeOldest(Tail tail) {
+        Message message = tail.messages.removeFirst();
+        tail.sizeInBytes -= size(message);
+        sizeInBytes -= size(message);
+        tail.whole = false;
+    }
+
+    private static long size(Message message) {
+        return messageOverheadInBytes + 2L * (message.author().value().length() + message.content().length());
+    }
+}
@@ -0,0 +1,439 @@
+package pl.pawelkielb.fchat.server;
+
+import pl.pawelkielb.fchat.Connection;
+import pl.pawelkielb.fchat.Logger;
+import pl.pawelkielb.fchat.PacketEncoder;
+import pl.pawelkielb.fchat.TransferSettings;
+import pl.pawelkielb.fchat.exceptions.DisconnectedException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+import java.util.zip.Checksum;
+
+
+/**
+ * A {@link Connection} over a non-blocking {@link SocketChannel} driven by an {@link EventLoop}.
+ * It doesn't occupy any thread while waiting for data. The state is accessed only on the event loop thread
+ * and the futures are completed on the worker threads, so callbacks never block the event loop.
+ * Arrays read into files go through a reused direct buffer and are written to the disk on the io threads.
+ * File regions sent with a checksum go through another one, so the checksum is updated on the way.
+ */
+public class NioConnection extends Connection {
+    private final SocketChannel channel;
+    private final EventLoop eventLoop;
+    private final Executor workerThreads;
+    private final Executor ioThreads;
+    private SelectionKey key;
+
+    private final Queue<Write> writes = new ArrayDeque<>();
+
+    private static final int fileBufferSize = 64 * 1024;
+
+    private CompletableFuture<Frame> pendingRead;
+    private int headerLength;
+    private Function<byte[], FileSink> sinkSelector;
+    private final ByteBuffer lengthBuffer = ByteBuffer.allocate(Integer.BYTES);
+    private ByteBuffer headerBuffer;
+    private byte[] header;
+    private ByteBuffer bodyBuffer;
+    private FileSink sink;
+    private int fileBytesRead;
+    private ByteBuffer fileBuffer;
+    private boolean writingFile = false;
+    // it's empty whenever no write is in progress
+    private ByteBuffer sendBuffer;
+
+    private IOException closedCause;
+
+    /**
+     * The buffers are written first and then the file region, if there is one.
+     */
+    private static class Write {
+        private final ByteBuffer[] buffers;
+        private final FileChannel file;
+        private long position;
+        private long remaining;
+        private final Checksum checksum;
+        private final CompletableFuture<Void> future;
+
+        Write(ByteBuffer[] buffers,
+              FileChannel file,
+              long position,
+              long count,
+              Checksum checksum,
+              CompletableFuture<Void> future) {
+
+            this.buffers = buffers;
+            this.file = file;
+            this.position = position;
+            this.remaining = count;
+            this.checksum = checksum;
+            this.future = future;
+        }
+
+        /**
+         * @param sendBuffer a buffer for the file region sent with a checksum. It keeps the bytes which haven't
+         *                   been written yet between the calls.
+         * @return True if everything has been written, false if the socket's buffer is full.
+         */
+        boolean writeTo(SocketChannel channel, ByteBuffer sendBuffer) throws IOException {
+            channel.write(buffers);
+            for (ByteBuffer buffer : buffers) {
+                if (buffer.hasRemaining()) {
+                    return false;
+                }
+            }
+
+            if (checksum != null) {
+                return writeThrough(channel, sendBuffer);
+            }
+
+            while (remaining > 0) {
+                // the kernel copies the bytes directly from the page cache to the socket
+                long transferred = file.transferTo(position, remaining, channel);
+                if (transferred == 0) {
+                    if (position >= file.size()) {
+                        throw new EOFException("The file is shorter than the region");
+                    }
+                    return false;
+                }
+
+                position += transferred;
+                remaining -= transferred;
+            }
+
+            return true;
+        }
+
+        private boolean writeThrough(SocketChannel channel, ByteBuffer sendBuffer) throws IOException {
+            while (true) {
+                channel.write(sendBuffer);
+                if (sendBuffer.hasRemaining()) {
+                    return false;
+                }
+                if (remaining == 0) {
+                    return true;
+                }
+
+                sendBuffer.clear().limit((int) Math.min(sendBuffer.capacity(), remaining));
+                int read = file.read(sendBuffer, position);
+                if (read < 0) {
+                    throw new EOFException("The file is shorter than the region");
+                }
+
+                sendBuffer.flip();
+                checksum.update(sendBuffer.duplicate());
+                position += read;
+                remaining -= read;
+            }
+        }
+    }
+
+    /**
+     * @param channel a connected channel. It will be switched to the non-blocking mode.
+     */
+    public NioConnection(PacketEncoder packetEncoder,
+                         SocketChannel channel,
+                         EventLoop eventLoop,
+                         Executor workerThreads,
+                         Executor ioThreads,
+                         Logger logger) throws IOException {
+
+        super(packetEncoder, workerThreads, ioThreads, logger);
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+        this.workerThreads = workerThreads;
+        this.ioThreads = ioThreads;
+
+        channel.configureBlocking(false);
+        eventLoop.execute(() -> {
+            try {
+                key = eventLoop.register(channel, this);
+            } catch (IOException e) {
+                close(e);
+            }
+        });
+    }
+
+    @Override
+    protected CompletableFuture<Void> sendBytesInternal(byte[] header, byte[] bytes) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        ByteBuffer length = ByteBuffer.allocate(Integer.BYTES).putInt(0, header.length + bytes.length);
+        ByteBuffer[] buffers = {length, ByteBuffer.wrap(header), ByteBuffer.wrap(bytes)};
+        write(new Write(buffers, null, 0, 0, null, future));
+
+        return future;
+    }
+
+    @Override
+    protected CompletableFuture<Void> sendFileRegionInternal(byte[] header,
+                                                             FileChannel file,
+                                                             long position,
+                                                             int count,
+                                                             Checksum checksum) {
+
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        ByteBuffer length = ByteBuffer.allocate(Integer.BYTES).putInt(0, header.length + count);
+        ByteBuffer[] buffers = {length, ByteBuffer.wrap(header)};
+        write(new Write(buffers, file, position, count, checksum, future));
+
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<Void> close() {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        eventLoop.execute(() -> {
+            close(new IOException("The connection has been closed"));
+            workerThreads.execute(() -> future.complete(null));
+        });
+
+        return future;
+    }
+
+    private void write(Write write) {
+        eventLoop.execute(() -> {
+            if (closedCause != null) {
+                completeExceptionally(write.future, closedCause);
+                return;
+            }
+
+            writes.add(write);
+            flush();
+        });
+    }
+
+    @Override
+    protected CompletableFuture<Frame> readFrameInternal(int headerLength, Function<byte[], FileSink> sinkSelector) {
+        CompletableFuture<Frame> future = new CompletableFuture<>();
+
+        eventLoop.execute(() -> {
+            if (closedCause != null) {
+                completeExceptionally(future, closedCause);
+                return;
+            }
+
+            pendingRead = future;
+            this.headerLength = headerLength;
+            this.sinkSelector = sinkSelector;
+            lengthBuffer.clear();
+            headerBuffer = null;
+            header = null;
+            bodyBuffer = null;
+            sink = null;
+            fileBytesRead = 0;
+            // the data might already be waiting in the socket
+            onReadable();
+        });
+
+        return future;
+    }
+
+    void onReadable() {
+        if (pendingRead == null || writingFile) {
+            setInterest(SelectionKey.OP_READ, false);
+            return;
+        }
+
+        try {
+            if (headerBuffer == null) {
+                if (readInto(lengthBuffer)) {
+                    return;
+                }
+
+                int length = lengthBuffer.getInt(0);
+                // the length comes from the other party, so it can't decide how much memory is allocated
+                if (length < 0 || length > TransferSettings.maxPacketSizeInBytes) {
+                    throw new IOException("Invalid frame length: " + length);
+                }
+                headerBuffer = ByteBuffer.allocate(Math.min(headerLength, length));
+            }
+
+            if (header == null) {
+                if (readInto(headerBuffer)) {
+                    return;
+                }
+
+                header = headerBuffer.array();
+                int length = lengthBuffer.getInt(0) - header.length;
+                sink = header.length == headerLength ? sinkSelector.apply(header) : null;
+                if (sink == null) {
+                    bodyBuffer = ByteBuffer.allocate(length);
+                }
+            }
+
+            if (sink != null) {
+                readIntoFile();
+                return;
+            }
+
+            if (readInto(bodyBuffer)) {
+                return;
+            }
+
+            completeRead(new Frame(header, bodyBuffer.array(), bodyBuffer.capacity()));
+        } catch (IOException e) {
+            close(e);
+        }
+    }
+
+    /**
+     * Reads the socket into the direct buffer and writes it to the file on the io threads.
+     * The socket isn't read until the write completes, so a slow disk slows down the sender.
+     */
+    private void readIntoFile() throws IOException {
+        int length = lengthBuffer.getInt(0) - header.length;
+        if (fileBytesRead == length) {
+            completeRead(new Frame(header, null, length));
+            return;
+        }
+
+        if (fileBuffer == null) {
+            fileBuffer = ByteBuffer.allocateDirect(fileBufferSize);
+        }
+        fileBuffer.clear().limit(Math.min(fileBufferSize, length - fileBytesRead));
+        int read = channel.read(fileBuffer);
+        if (read < 0) {
+            throw new EOFException();
+        }
+        if (read == 0) {
+            setInterest(SelectionKey.OP_READ, true);
+            return;
+        }
+
+        fileBuffer.flip();
+        writingFile = true;
+        setInterest(SelectionKey.OP_READ, false);
+
+        FileChannel file = sink.file();
+        long position = sink.position() + fileBytesRead;
+        Checksum checksum = sink.checksum();
+        ioThreads.execute(() -> {
+            IOException writeException = null;
+            try {
+                if (checksum != null) {
+                    checksum.update(fileBuffer.duplicate());
+                }
+                while (fileBuffer.hasRemaining()) {
+                    file.write(fileBuffer, position + fileBuffer.position());
+                }
+            } catch (IOException e) {
+                writeException = e;
+            }
+
+            IOException exception = writeException;
+            eventLoop.execute(() -> {
+                writingFile = false;
+                if (exception != null) {
+                    close(exception);
+                    return;
+                }
+
+                fileBytesRead += read;
+                onReadable();
+            });
+        });
+    }
+
+    private void completeRead(Frame frame) {
+        CompletableFuture<Frame> future = pendingRead;
+        pendingRead = null;
+        setInterest(SelectionKey.OP_READ, false);
+        workerThreads.execute(() -> future.complete(frame));
+    }
+
+    /**
+     * @return True if the buffer couldn't be filled yet and we have to wait for more data.
+     */
+    private boolean readInto(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            if (read == 0) {
+                setInterest(SelectionKey.OP_READ, true);
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    void onWritable() {
+        flush();
+    }
+
+    private void flush() {
+        try {
+            while (!writes.isEmpty()) {
+                Write write = writes.peek();
+                if (write.checksum != null && sendBuffer == null) {
+                    sendBuffer = ByteBuffer.allocateDirect(fileBufferSize).limit(0);
+                }
+
+                if (!write.writeTo(channel, sendBuffer)) {
+                    setInterest(SelectionKey.OP_WRITE, true);
+                    return;
+                }
+
+                writes.poll();
+                workerThreads.execute(() -> write.future.complete(null));
+            }
+
+            setInterest(SelectionKey.OP_WRITE, false);
+        } catch (IOException e) {
+            close(e);
+        }
+    }
+
+    private void setInterest(int operation, boolean enabled) {
+        if (key == null || !key.isValid()) {
+            return;
+        }
+
+        int interestOps = key.interestOps();
+        int newInterestOps = enabled ? interestOps | operation : interestOps & ~operation;
+        if (newInterestOps != interestOps) {
+            key.interestOps(newInterestOps);
+        }
+    }
+
+    void close(IOException cause) {
+        if (closedCause != null) {
+            return;
+        }
+
+        closedCause = cause;
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException ignore) {
+        }
+
+        if (pendingRead != null) {
+            completeExceptionally(pendingRead, cause);
+            pendingRead = null;
+        }
+
+        Write write;
+        while ((write = writes.poll()) != null) {
+            completeExceptionally(write.future, cause);
+        }
+    }
+
+    private void completeExceptionally(CompletableFuture<?> future, IOException cause) {
+        workerThreads.execute(() -> future.completeExceptionally(new DisconnectedException(cause)));
+    }
+}
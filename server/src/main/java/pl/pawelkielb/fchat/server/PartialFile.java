@@ -0,0 +1,115 @@
+package pl.pawelkielb.fchat.server;
+
+import pl.pawelkielb.fchat.Checksums;
+import pl.pawelkielb.fchat.exceptions.ChecksumMismatchException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import static pl.pawelkielb.fchat.Functions.r;
+
+
+/**
+ * A file being uploaded. The written bytes are hashed in the background while the rest of the file is being received,
+ * so the hash of the content is ready right after the upload completes. A resumed upload has to hash the bytes
+ * received before first, so the hash can't be calculated while the bytes are received.
+ * Chunks are verified with checksums calculated while they are received. It's thread-safe.
+ */
+public class PartialFile extends StoredFile {
+    private static final int bufferSize = 64 * 1024;
+
+    private final Executor ioThreads;
+    private final MessageDigest digest = Checksums.newFileDigest();
+    private final ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+    private long writtenSize;
+    private CompletableFuture<Void> hashed;
+    private CompletableFuture<String> hash;
+    private long damagedPosition = -1;
+
+    /**
+     * @param channel a channel opened for reading and writing, which already contains {@code size} bytes
+     */
+    PartialFile(Path path, FileChannel channel, long size, Executor ioThreads, Runnable unlock) {
+        super(path, channel, size, null, unlock);
+        this.ioThreads = ioThreads;
+        this.writtenSize = size;
+        // a resumed upload starts with the bytes received before
+        this.hashed = CompletableFuture.runAsync(r(() -> hash(0, size)), ioThreads);
+    }
+
+    /**
+     * Tells that the next bytes of the file have been written, so they can be hashed.
+     *
+     * @param length a count of the bytes written right after the previous ones
+     * @return A future that will be resolved when the bytes are hashed.
+     */
+    public synchronized CompletableFuture<Void> written(int length) {
+        long position = writtenSize;
+        writtenSize += length;
+        hashed = hashed.thenRunAsync(r(() -> hash(position, length)), ioThreads);
+
+        return hashed;
+    }
+
+    /**
+     * Tells that the next bytes of the file have been written and verifies them.
+     *
+     * @param length           a count of the bytes written right after the previous ones
+     * @param checksum         a CRC32C of the bytes calculated while they were written
+     * @param expectedChecksum a CRC32C of the bytes sent by the other party
+     * @return A future that will be resolved when the bytes are hashed.
+     * Completes exceptionally with {@link ChecksumMismatchException} if the checksums don't match.
+     * The damaged bytes are then cut off when the file is closed, so the upload can be resumed from before them.
+     */
+    public synchronized CompletableFuture<Void> written(int length, int checksum, int expectedChecksum) {
+        if (checksum != expectedChecksum) {
+            if (damagedPosition < 0) {
+                damagedPosition = writtenSize;
+            }
+            return CompletableFuture.failedFuture(new ChecksumMismatchException("A chunk of the file has been damaged"));
+        }
+
+        return written(length);
+    }
+
+    /**
+     * @return A future resolving to a hex-encoded SHA-256 of all the written bytes.
+     * No bytes can be written after this call.
+     */
+    public synchronized CompletableFuture<String> hash() {
+        if (hash == null) {
+            hash = hashed.thenApply(it -> Checksums.toHex(digest));
+        }
+
+        return hash;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (damagedPosition >= 0 && channel().isOpen()) {
+            channel().truncate(damagedPosition);
+        }
+
+        super.close();
+    }
+
+    private void hash(long position, long length) throws IOException {
+        long end = position + length;
+        while (position < end) {
+            buffer.clear().limit((int) Math.min(bufferSize, end - position));
+            int read = channel().read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("The file is shorter than the written bytes");
+            }
+
+            digest.update(buffer.array(), 0, read);
+            position += read;
+        }
+    }
+}
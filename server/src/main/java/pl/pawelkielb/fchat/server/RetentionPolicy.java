@@ -0,0 +1,71 @@
+package pl.pawelkielb.fchat.server;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+
+/**
+ * Limits how much of a channel's history is kept. When any of the limits is exceeded, the oldest messages are deleted.
+ * They are deleted in whole segments of the channel's log, so a bit more than the limits might be kept.
+ * The attachments older than the age limit are deleted too. A limit of 0 means there is no limit.
+ * <p>
+ * The global policy can be set using {@code RETENTION_MAX_AGE_HOURS}, {@code RETENTION_MAX_MESSAGES}
+ * and {@code RETENTION_MAX_BYTES} environmental variables. A channel can override any of them
+ * with {@code max_age_hours}, {@code max_messages} and {@code max_bytes} in a {@code retention.properties} file
+ * in its directory.
+ *
+ * @param maxAgeMillis   how long the messages and the attachments are kept
+ * @param maxMessages    how many of the newest messages are kept
+ * @param maxSizeInBytes how much disk space the messages can take
+ */
+public record RetentionPolicy(long maxAgeMillis, long maxMessages, long maxSizeInBytes) {
+    public static final RetentionPolicy unlimited = new RetentionPolicy(0, 0, 0);
+    static final String fileName = "retention.properties";
+
+    /**
+     * @return false if nothing is ever deleted
+     */
+    public boolean limited() {
+        return maxAgeMillis > 0 || maxMessages > 0 || maxSizeInBytes > 0;
+    }
+
+    /**
+     * @param channelDirectory a directory with the channel's data
+     * @return The policy with the limits set for the channel replaced.
+     */
+    RetentionPolicy forChannel(Path channelDirectory) throws IOException {
+        Path path = channelDirectory.resolve(fileName);
+        if (!Files.exists(path)) {
+            return this;
+        }
+
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(path)) {
+            properties.load(reader);
+        }
+
+        return new RetentionPolicy(
+                parse(properties.getProperty("max_age_hours"), 60 * 60 * 1000, maxAgeMillis),
+                parse(properties.getProperty("max_messages"), 1, maxMessages),
+                parse(properties.getProperty("max_bytes"), 1, maxSizeInBytes));
+    }
+
+    /**
+     * @return The value multiplied by the unit or the default value if it's not a valid number.
+     */
+    static long parse(String value, long unit, long defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            long parsed = Long.parseLong(value.trim());
+            return parsed >= 0 ? Math.multiplyExact(parsed, unit) : defaultValue;
+        } catch (NumberFormatException | ArithmeticException e) {
+            return defaultValue;
+        }
+    }
+}
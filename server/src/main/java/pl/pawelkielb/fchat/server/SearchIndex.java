@@ -0,0 +1,364 @@
+package pl.pawelkielb.fchat.server;
+
+import pl.pawelkielb.fchat.BinaryReader;
+import pl.pawelkielb.fchat.BinaryWriter;
+import pl.pawelkielb.fchat.Checksums;
+import pl.pawelkielb.fchat.data.Message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * An inverted index of a channel's messages. For every word it keeps a list of sequence numbers of the messages
+ * containing it. The lists are delta-encoded as varints, so a sequence number usually takes a single byte.
+ * <p>
+ * Every appended batch of messages adds a record with its words to the index file, without reading the index.
+ * The file is loaded into memory when the channel is searched for the first time. The index is not forced
+ * to the disk, so the messages missing from it are indexed again from the {@link MessageLog} while it's loaded.
+ * It's thread-safe.
+ */
+class SearchIndex {
+    private static final int recordHeaderSize = Integer.BYTES * 2;
+    private static final int maxWordLength = 64;
+    private static final int indexingBatchSize = 1000;
+
+    private final Path path;
+    private FileChannel file;
+    // null until the index is loaded
+    private Map<String, PostingList> postings;
+    private long nextSequence;
+
+    SearchIndex(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Indexes the messages. Must be called after they are appended to the channel's log, in the same order.
+     *
+     * @param firstSequence the sequence number of the first message
+     */
+    synchronized void append(long firstSequence, List<Message> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+
+        // words and positions of the messages in the batch, which contain them
+        Map<String, List<Integer>> words = new LinkedHashMap<>();
+        for (int i = 0; i < messages.size(); i++) {
+            for (String word : words(messages.get(i).content())) {
+                words.computeIfAbsent(word, it -> new ArrayList<>()).add(i);
+            }
+        }
+
+        if (postings != null) {
+            words.forEach((word, positions) -> {
+                PostingList list = postings.computeIfAbsent(word, it -> new PostingList());
+                positions.forEach(it -> list.add(firstSequence + it));
+            });
+            nextSequence = firstSequence + messages.size();
+        }
+
+        try {
+            if (file == null) {
+                file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            }
+            write(record(firstSequence, messages.size(), words));
+        } catch (IOException e) {
+            // the missing messages are indexed again when the index is loaded
+            closeFile();
+        }
+    }
+
+    /**
+     * Finds the messages which contain all the words of the query.
+     *
+     * @param before a sequence number after the last message to search or a negative number to search all of them
+     * @param count  the biggest count of messages to find
+     * @param log    the channel's log, which can't be appended during the search
+     * @return Sequence numbers of the newest matching messages, from the oldest one.
+     */
+    synchronized long[] search(String query, long before, int count, MessageLog log) throws IOException {
+        if (postings == null) {
+            try {
+                load(log);
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        List<long[]> lists = new ArrayList<>();
+        for (String word : words(query)) {
+            PostingList list = postings.get(word);
+            if (list == null) {
+                return new long[0];
+            }
+            lists.add(list.sequences());
+        }
+        if (lists.isEmpty()) {
+            return new long[0];
+        }
+
+        // the shortest list is checked against the others
+        lists.sort(Comparator.comparingInt(it -> it.length));
+        long[] candidates = lists.get(0);
+        long[] found = new long[Math.min(count, candidates.length)];
+        int foundCount = 0;
+        for (int i = candidates.length - 1; i >= 0 && foundCount < found.length; i--) {
+            long sequence = candidates[i];
+            if (before >= 0 && sequence >= before) {
+                continue;
+            }
+
+            boolean matches = true;
+            for (int j = 1; j < lists.size() && matches; j++) {
+                matches = Arrays.binarySearch(lists.get(j), sequence) >= 0;
+            }
+            if (matches) {
+                found[foundCount++] = sequence;
+            }
+        }
+
+        long[] result = new long[foundCount];
+        for (int i = 0; i < foundCount; i++) {
+            result[i] = found[foundCount - 1 - i];
+        }
+        return result;
+    }
+
+    /**
+     * Stops appending to the index and frees its memory.
+     */
+    synchronized void close() {
+        closeFile();
+        postings = null;
+    }
+
+    /**
+     * @return Distinct lower case words of the text. Everything other than letters and digits separates them.
+     */
+    static Set<String> words(String text) {
+        Set<String> words = new LinkedHashSet<>();
+        StringBuilder word = new StringBuilder();
+        text.toLowerCase(Locale.ROOT).codePoints().forEach(codePoint -> {
+            if (Character.isLetterOrDigit(codePoint)) {
+                if (word.length() < maxWordLength) {
+                    word.appendCodePoint(codePoint);
+                }
+            } else if (!word.isEmpty()) {
+                words.add(word.toString());
+                word.setLength(0);
+            }
+        });
+        if (!word.isEmpty()) {
+            words.add(word.toString());
+        }
+
+        return words;
+    }
+
+    /**
+     * Reads the index file and indexes the messages missing from it. If the file doesn't match the log,
+     * the whole log is indexed again. The messages deleted from the log are skipped and when they take most
+     * of the file, they are dropped from it.
+     */
+    private void load(MessageLog log) throws IOException {
+        close();
+        postings = new HashMap<>();
+        file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        long firstSequence = log.firstSequence();
+        long end = log.nextSequence();
+        long expected = -1;
+        boolean matching = true;
+        long position = 0;
+        // a position of the first record with messages which are still in the log
+        long keptPosition = 0;
+        long size = file.size();
+        MessageRangeReader reader = new MessageRangeReader(file, 0, size);
+        while (position + recordHeaderSize <= size) {
+            ByteBuffer header = ByteBuffer.wrap(reader.read(position, recordHeaderSize));
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length < 0 || position + recordHeaderSize + length > size) {
+                break;
+            }
+            byte[] payload = reader.read(position + recordHeaderSize, length);
+            if (Checksums.crc32c(payload) != checksum) {
+                break;
+            }
+
+            BinaryReader record = new BinaryReader(payload);
+            long recordSequence = record.readVarLong();
+            int messagesCount = record.readVarInt();
+            // a batch was lost or the log lost its last messages in a crash
+            if (expected < 0 ? recordSequence > firstSequence : recordSequence != expected) {
+                matching = false;
+                break;
+            }
+
+            int wordsCount = record.readVarInt();
+            for (int i = 0; i < wordsCount; i++) {
+                String word = record.readString();
+                int positionsCount = record.readVarInt();
+                long sequence = recordSequence;
+                for (int j = 0; j < positionsCount; j++) {
+                    sequence += record.readVarLong();
+                    if (sequence >= firstSequence) {
+                        postings.computeIfAbsent(word, it -> new PostingList()).add(sequence);
+                    }
+                }
+            }
+
+            expected = recordSequence + messagesCount;
+            position += recordHeaderSize + length;
+            if (expected <= firstSequence) {
+                keptPosition = position;
+            }
+        }
+
+        if (!matching || expected > end) {
+            postings.clear();
+            position = 0;
+            keptPosition = 0;
+            expected = -1;
+        }
+        // a record damaged by a crash is cut off
+        file.truncate(position);
+        if (keptPosition > 0 && keptPosition >= position / 2) {
+            dropBefore(keptPosition, position);
+        }
+        nextSequence = Math.max(expected, firstSequence);
+
+        List<Message> batch = new ArrayList<>(indexingBatchSize);
+        log.read(nextSequence, end, message -> {
+            batch.add(message);
+            if (batch.size() == indexingBatchSize) {
+                append(nextSequence, batch);
+                batch.clear();
+            }
+        });
+        append(nextSequence, batch);
+    }
+
+    /**
+     * Replaces the file with its part from the given position. The part is copied next to the file's final place,
+     * so a crash leaves either the old file or the new one.
+     */
+    private void dropBefore(long start, long end) throws IOException {
+        Path temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel temporaryFile = FileChannel.open(temporaryPath,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+            long copied = 0;
+            while (copied < end - start) {
+                copied += file.transferTo(start + copied, end - start - copied, temporaryFile);
+            }
+        }
+
+        closeFile();
+        Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private void closeFile() {
+        try {
+            if (file != null) {
+                file.close();
+            }
+        } catch (IOException ignore) {
+        }
+        file = null;
+    }
+
+    private void write(ByteBuffer record) throws IOException {
+        long position = file.size();
+        while (record.hasRemaining()) {
+            position += file.write(record, position);
+        }
+    }
+
+    private static ByteBuffer record(long firstSequence, int messagesCount, Map<String, List<Integer>> words) {
+        BinaryWriter writer = new BinaryWriter()
+                .writeVarLong(firstSequence)
+                .writeVarInt(messagesCount)
+                .writeVarInt(words.size());
+        words.forEach((word, positions) -> {
+            writer.writeString(word).writeVarInt(positions.size());
+            int previous = 0;
+            for (int position : positions) {
+                writer.writeVarInt(position - previous);
+                previous = position;
+            }
+        });
+        byte[] payload = writer.toByteArray();
+
+        return ByteBuffer.allocate(recordHeaderSize + payload.length)
+                .putInt(payload.length)
+                .putInt(Checksums.crc32c(payload))
+                .put(payload)
+                .flip();
+    }
+
+    /**
+     * Ascending sequence numbers, each written as a varint difference from the previous one.
+     */
+    private static class PostingList {
+        private byte[] bytes = new byte[4];
+        private int size = 0;
+        private int count = 0;
+        private long last = 0;
+
+        void add(long sequence) {
+            if (size + 10 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + 10));
+            }
+
+            long delta = sequence - last;
+            while ((delta & ~0x7FL) != 0) {
+                bytes[size++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            bytes[size++] = (byte) delta;
+            last = sequence;
+            count++;
+        }
+
+        long[] sequences() {
+            long[] sequences = new long[count];
+            long sequence = 0;
+            int position = 0;
+            for (int i = 0; i < count; i++) {
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = bytes[position++];
+                    delta |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+
+                sequence += delta;
+                sequences[i] = sequence;
+            }
+
+            return sequences;
+        }
+    }
+}
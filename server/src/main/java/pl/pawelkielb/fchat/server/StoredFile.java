@@ -0,0 +1,67 @@
+package pl.pawelkielb.fchat.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+
+/**
+ * A file opened by the {@link Database}. It stays locked until it's closed.
+ */
+public class StoredFile implements Closeable {
+    private final Path path;
+    private final FileChannel channel;
+    private final long size;
+    private final String digest;
+    private final Runnable unlock;
+    private boolean closed = false;
+
+    StoredFile(Path path, FileChannel channel, long size, String digest, Runnable unlock) {
+        this.path = path;
+        this.channel = channel;
+        this.size = size;
+        this.digest = digest;
+        this.unlock = unlock;
+    }
+
+    public Path path() {
+        return path;
+    }
+
+    public FileChannel channel() {
+        return channel;
+    }
+
+    /**
+     * @return A size of the file at the moment it was opened.
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return A hex-encoded SHA-256 of the file or null if it's unknown, like for the files saved before
+     * the content was deduplicated.
+     */
+    public String digest() {
+        return digest;
+    }
+
+    /**
+     * Closes the file and releases the lock. Next calls do nothing.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+        try {
+            channel.close();
+        } finally {
+            unlock.run();
+        }
+    }
+}
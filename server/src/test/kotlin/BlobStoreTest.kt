@@ -0,0 +1,84 @@
+package pl.pawelkielb.fchat.server
+
+import io.kotest.core.spec.style.WordSpec
+import io.kotest.matchers.shouldBe
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.CompletableFuture
+
+private fun Path.newFile(content: String): Path {
+    val file = Files.createTempFile(this, "upload", null)
+    Files.writeString(file, content)
+    return file
+}
+
+class BlobStoreTest : WordSpec({
+    "add()" should {
+        "move the first file with the content to the store" {
+            val directory = Files.createTempDirectory("blobs")
+            val store = BlobStore(directory.resolve("store"), Runnable::run, FileTaskQueue()) {}
+            val file = directory.newFile("content")
+
+            store.add("hash", file).join()
+
+            Files.exists(file) shouldBe false
+            Files.readString(store.path("hash")) shouldBe "content"
+        }
+
+        "delete the files with the content which is already stored" {
+            val directory = Files.createTempDirectory("blobs")
+            val store = BlobStore(directory.resolve("store"), Runnable::run, FileTaskQueue()) {}
+            store.add("hash", directory.newFile("content")).join()
+            val duplicate = directory.newFile("content")
+
+            store.add("hash", duplicate).join()
+
+            Files.exists(duplicate) shouldBe false
+            Files.readString(store.path("hash")) shouldBe "content"
+        }
+    }
+
+    "release()" should {
+        "keep the blob until the last reference is released" {
+            val directory = Files.createTempDirectory("blobs")
+            val store = BlobStore(directory.resolve("store"), Runnable::run, FileTaskQueue()) {}
+            store.add("hash", directory.newFile("content")).join()
+            store.add("hash", directory.newFile("content")).join()
+
+            store.release("hash").join()
+            Files.exists(store.path("hash")) shouldBe true
+
+            store.release("hash").join()
+            Files.exists(store.path("hash")) shouldBe false
+            Files.list(directory.resolve("store")).use { it.count() } shouldBe 0
+        }
+
+        "store the content again after the blob was deleted" {
+            val directory = Files.createTempDirectory("blobs")
+            val store = BlobStore(directory.resolve("store"), Runnable::run, FileTaskQueue()) {}
+            store.add("hash", directory.newFile("old")).join()
+            store.release("hash").join()
+
+            store.add("hash", directory.newFile("new")).join()
+
+            Files.readString(store.path("hash")) shouldBe "new"
+        }
+
+        "delete the blob after the last reader finishes" {
+            val directory = Files.createTempDirectory("blobs")
+            val fileTaskQueue = FileTaskQueue<Path>()
+            val store = BlobStore(directory.resolve("store"), Runnable::run, fileTaskQueue) {}
+            store.add("hash", directory.newFile("content")).join()
+            val reading = CompletableFuture<Void>()
+            fileTaskQueue.runSuspendReading<Void>(store.path("hash")) { reading.thenRun { it.complete(null) } }
+
+            val release = store.release("hash")
+
+            release.isDone shouldBe false
+            Files.readString(store.path("hash")) shouldBe "content"
+            reading.complete(null)
+            release.join()
+            Files.exists(store.path("hash")) shouldBe false
+        }
+    }
+})
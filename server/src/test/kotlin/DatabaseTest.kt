@@ -0,0 +1,122 @@
+package pl.pawelkielb.fchat.server
+
+import io.kotest.assertions.throwables.shouldThrow
+import io.kotest.core.spec.style.WordSpec
+import io.kotest.matchers.shouldBe
+import pl.pawelkielb.fchat.PacketEncoder
+import pl.pawelkielb.fchat.data.Message
+import pl.pawelkielb.fchat.data.Name
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.FileTime
+import java.util.UUID
+import java.util.concurrent.CompletionException
+
+private const val hourInMillis = 60 * 60 * 1000L
+
+// big enough to fill a few segments
+private val padding = "x".repeat(1000)
+
+private fun database(root: Path, retention: RetentionPolicy) =
+    Database(Runnable::run, Runnable::run, root, PacketEncoder(), {}, Durability.NONE, 0, retention)
+
+/**
+ * Writes the messages straight to the channel's log, so they don't go through the database.
+ */
+private fun Path.writeMessages(channel: UUID, count: Int): Path {
+    val directory = resolve("messages").resolve(channel.toString())
+    Files.createDirectories(directory)
+    val log = MessageLog.open(directory)
+    log.append((0 until count).map { Message(Name.of("user"), "$it $padding") })
+    log.close()
+    return directory
+}
+
+private fun Path.firstSequence(channel: UUID): Long {
+    val log = MessageLog.open(resolve("messages").resolve(channel.toString()))
+    val firstSequence = log.firstSequence()
+    log.close()
+    return firstSequence
+}
+
+private fun Database.uploadFile(channel: UUID, name: String, content: String): String {
+    val file = openPartialFile(channel, Name.of("user"), Name.of(name), 0).join()
+    file.channel().write(ByteBuffer.wrap(content.toByteArray()), 0)
+    file.written(content.length).join()
+    return saveFile(channel, file, Name.of(name)).join()
+}
+
+class DatabaseTest : WordSpec({
+    "expireOldData()" should {
+        "delete the oldest segments of a channel with too many messages" {
+            val root = Files.createTempDirectory("database")
+            val channel = UUID.randomUUID()
+            root.writeMessages(channel, 40_000)
+            val database = database(root, RetentionPolicy(0, 10, 0))
+
+            database.expireOldData(System.currentTimeMillis())
+            database.close()
+
+            // only whole segments are deleted, so the last one is kept whole
+            val firstSequence = root.firstSequence(channel)
+            (firstSequence > 0) shouldBe true
+            (firstSequence <= 40_000 - 10) shouldBe true
+        }
+
+        "use the policy of the channel instead of the global one" {
+            val root = Files.createTempDirectory("database")
+            val limited = UUID.randomUUID()
+            val unlimited = UUID.randomUUID()
+            val limitedDirectory = root.writeMessages(limited, 40_000)
+            root.writeMessages(unlimited, 40_000)
+            Files.writeString(limitedDirectory.resolve("retention.properties"), "max_messages=10")
+            val database = database(root, RetentionPolicy.unlimited)
+
+            database.expireOldData(System.currentTimeMillis())
+            database.close()
+
+            (root.firstSequence(limited) > 0) shouldBe true
+            root.firstSequence(unlimited) shouldBe 0
+        }
+
+        "delete the attachments older than the age limit" {
+            val root = Files.createTempDirectory("database")
+            val channel = UUID.randomUUID()
+            val database = database(root, RetentionPolicy(hourInMillis, 0, 0))
+            val old = database.uploadFile(channel, "old.txt", "old")
+            val new = database.uploadFile(channel, "new.txt", "new")
+            val attachments = root.resolve("messages").resolve(channel.toString()).resolve("attachments")
+            val twoHoursAgo = FileTime.fromMillis(System.currentTimeMillis() - 2 * hourInMillis)
+            Files.setLastModifiedTime(attachments.resolve(old), twoHoursAgo)
+
+            database.expireOldData(System.currentTimeMillis())
+
+            shouldThrow<CompletionException> {
+                database.getFileSize(channel, Name.of(old)).join()
+            }
+            database.getFileSize(channel, Name.of(new)).join() shouldBe 3
+            // only the blob of the new attachment and its references are left
+            Files.list(root.resolve("blobs")).use { it.count() } shouldBe 2
+            database.close()
+        }
+
+        "delete the abandoned uploads" {
+            val root = Files.createTempDirectory("database")
+            val channel = UUID.randomUUID()
+            val database = database(root, RetentionPolicy.unlimited)
+            val abandoned = database.openPartialFile(channel, Name.of("user"), Name.of("abandoned.txt"), 0).join()
+            abandoned.close()
+            val resumed = database.openPartialFile(channel, Name.of("user"), Name.of("resumed.txt"), 0).join()
+            resumed.close()
+            val eightDaysAgo = FileTime.fromMillis(System.currentTimeMillis() - 8 * 24 * hourInMillis)
+            Files.setLastModifiedTime(abandoned.path(), eightDaysAgo)
+
+            database.expireOldData(System.currentTimeMillis())
+
+            Files.exists(abandoned.path()) shouldBe false
+            Files.exists(resumed.path()) shouldBe true
+            database.close()
+        }
+    }
+})
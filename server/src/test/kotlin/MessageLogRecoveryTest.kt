@@ -0,0 +1,58 @@
+package pl.pawelkielb.fchat.server
+
+import io.kotest.core.spec.style.WordSpec
+import io.kotest.matchers.shouldBe
+import pl.pawelkielb.fchat.data.Message
+import pl.pawelkielb.fchat.data.Name
+import java.nio.file.Files
+import java.nio.file.Path
+import kotlin.io.path.name
+
+private fun Path.createChannel(name: String): Path {
+    val channel = Files.createDirectory(resolve(name))
+    val log = MessageLog.open(channel)
+    log.append((0 until 10).map { Message(Name.of("user"), "$it") })
+    log.close()
+    return channel
+}
+
+private fun Path.deleteIndex() {
+    Files.list(resolve("log")).use { files -> files.filter { it.name.endsWith(".index") }.toList() }
+        .forEach(Files::delete)
+}
+
+class MessageLogRecoveryTest : WordSpec({
+    "run()" should {
+        "rebuild the damaged indexes of all the channels" {
+            val messages = Files.createTempDirectory("messages")
+            val channels = (0 until 100).map { messages.createChannel("channel$it") }
+            channels.filterIndexed { i, _ -> i % 20 == 0 }.forEach { it.deleteIndex() }
+
+            val summary = MessageLogRecovery.run(messages) {}
+
+            summary shouldBe MessageLogRecovery.Summary(100, 5, 0)
+            MessageLogRecovery.run(messages) {} shouldBe MessageLogRecovery.Summary(100, 0, 0)
+            val log = MessageLog.open(channels[0])
+            val read = mutableListOf<Message>()
+            log.read(0, 10) { read.add(it) }
+            read.map { it.content() } shouldBe (0 until 10).map { "$it" }
+            log.close()
+        }
+
+        "count the channels which can't be recovered" {
+            val messages = Files.createTempDirectory("messages")
+            messages.createChannel("healthy")
+            val broken = Files.createDirectory(messages.resolve("broken"))
+            // the log's directory can't be listed
+            Files.writeString(broken.resolve("log"), "not a directory")
+
+            MessageLogRecovery.run(messages) {} shouldBe MessageLogRecovery.Summary(2, 0, 1)
+        }
+
+        "do nothing when no messages have been saved" {
+            val root = Files.createTempDirectory("database")
+
+            MessageLogRecovery.run(root.resolve("messages")) {} shouldBe MessageLogRecovery.Summary(0, 0, 0)
+        }
+    }
+})
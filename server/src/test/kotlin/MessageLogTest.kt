@@ -0,0 +1,362 @@
+package pl.pawelkielb.fchat.server
+
+import io.kotest.assertions.throwables.shouldThrow
+import io.kotest.core.spec.style.WordSpec
+import io.kotest.matchers.shouldBe
+import pl.pawelkielb.fchat.data.Message
+import pl.pawelkielb.fchat.data.Name
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.nio.file.attribute.FileTime
+import java.util.concurrent.atomic.AtomicReference
+import kotlin.io.path.name
+
+// big enough to fill a segment with a few thousand messages
+private val padding = "x".repeat(1000)
+
+private fun message(i: Long) = Message(Name.of("user"), "$i $padding")
+
+private fun MessageLog.append(from: Long, count: Int) {
+    append((from until from + count).map(::message))
+}
+
+private fun MessageLog.readAll(from: Long, to: Long): List<Message> {
+    val messages = mutableListOf<Message>()
+    read(from, to) { messages.add(it) }
+    return messages
+}
+
+private fun Path.segmentFiles(extension: String): List<Path> =
+    Files.list(resolve("log")).use { files -> files.filter { it.name.endsWith(extension) }.sorted().toList() }
+
+private fun Path.baseSequences(): List<Long> = segmentFiles(".log").map { it.name.substring(0, 20).toLong() }
+
+/**
+ * Appends the batches a few milliseconds apart.
+ *
+ * @return The times right before the batches were appended.
+ */
+private fun MessageLog.appendBatches(batches: Int, batchSize: Int): List<Long> {
+    val times = mutableListOf<Long>()
+    for (batch in 0 until batches) {
+        Thread.sleep(3)
+        times.add(System.currentTimeMillis())
+        append(nextSequence(), batchSize)
+    }
+    return times
+}
+
+private fun Path.truncateBy(bytes: Long) {
+    FileChannel.open(this, StandardOpenOption.WRITE).use { it.truncate(it.size() - bytes) }
+}
+
+class MessageLogTest : WordSpec({
+    "append()" should {
+        "start a new segment when the last one is full" {
+            val channel = Files.createTempDirectory("channel")
+            val log = MessageLog.open(channel)
+
+            log.append(0, 20_000)
+
+            channel.segmentFiles(".log").size shouldBe 2
+            log.nextSequence() shouldBe 20_000
+            log.close()
+        }
+    }
+
+    "read()" should {
+        "read the messages from many segments" {
+            val channel = Files.createTempDirectory("channel")
+            val log = MessageLog.open(channel)
+            log.append(0, 40_000)
+            val secondSegment = channel.baseSequences()[1]
+
+            val sequences = secondSegment - 10 until secondSegment + 10
+
+            val messages = log.readAll(sequences.first, sequences.last + 1)
+
+            messages.map { it.content() } shouldBe sequences.map { message(it).content() }
+            log.close()
+        }
+
+        "read nothing after the last message" {
+            val channel = Files.createTempDirectory("channel")
+            val log = MessageLog.open(channel)
+            log.append(0, 10)
+
+            log.readAll(10, 20) shouldBe listOf()
+            log.close()
+        }
+
+        "read the messages from a compressed segment" {
+            val channel = Files.createTempDirectory("channel")
+            val log = MessageLog.open(channel)
+            log.append(0, 40_000)
+
+            log.compressColdSegment(0) shouldBe true
+
+            channel.segmentFiles(".zlog").size shouldBe 1
+            log.readAll(0, 40_000).map { it.content() } shouldBe (0 until 40_000L).map { message(it).content() }
+            log.close()
+        }
+
+        "throw on a damaged message in the middle of the log" {
+            val channel = Files.createTempDirectory("channel")
+            val log = MessageLog.open(channel)
+            log.append(0, 20_000)
+            FileChannel.open(channel.segmentFiles(".log")[0], StandardOpenOption.WRITE).use {
+                it.write(ByteBuffer.allocate(Integer.BYTES).putInt(0, -5), 0)
+            }
+
+            shouldThrow<IOException> {
+                log.readAll(0, 1)
+            }
+            log.close()
+        }
+    }
+
+    "open()" should {
+        "cut off a torn message at the end of the log" {
+            val channel = Files.createTempDirectory("channel")
+            var log = MessageLog.open(channel)
+            log.append(0, 100)
+            log.close()
+            channel.segmentFiles(".log").last().truncateBy(3)
+
+            log = MessageLog.open(channel)
+            log.nextSequence() shouldBe 99
+            log.append(99, 1)
+
+            log.readAll(0, 100).map { it.content() } shouldBe (0 until 100L).map { message(it).content() }
+            log.close()
+        }
+
+        "move the messages saved before the log existed" {
+            val channel = Files.createTempDirectory("channel")
+            // every entry of the old index is a position and a length of a message
+            FileChannel.open(channel.resolve("messages.txt"), StandardOpenOption.CREATE, StandardOpenOption.WRITE)
+                .use { messages ->
+                    val index = ByteBuffer.allocate(Long.SIZE_BYTES * 2 * 3)
+                    var position = 0L
+                    for (i in 0 until 3) {
+                        val entry = "user\nlegacy $i".toByteArray()
+                        messages.write(ByteBuffer.wrap(entry + "\n\n".toByteArray()), position)
+                        index.putLong(position).putLong(entry.size.toLong())
+                        position += entry.size + 2
+                    }
+                    Files.write(channel.resolve("index"), index.array())
+                }
+
+            val log = MessageLog.open(channel)
+
+            log.nextSequence() shouldBe 3
+            log.readAll(0, 3).map { it.content() } shouldBe listOf("legacy 0", "legacy 1", "legacy 2")
+            Files.exists(channel.resolve("messages.txt")) shouldBe false
+            Files.exists(channel.resolve("index")) shouldBe false
+            log.close()
+        }
+    }
+
+    "recover()" should {
+        "build the damaged indexes again" {
+            val channel = Files.createTempDirectory("channel")
+            var log = MessageLog.open(channel)
+            log.append(0, 40_000)
+            log.close()
+            Files.delete(channel.segmentFiles(".index")[0])
+            channel.segmentFiles(".timeindex")[1].truncateBy(1)
+
+            MessageLog.recover(channel) shouldBe 2
+            MessageLog.recover(channel) shouldBe 0
+
+            log = MessageLog.open(channel)
+            log.readAll(0, 40_000).map { it.content() } shouldBe (0 until 40_000L).map { message(it).content() }
+            log.close()
+        }
+
+        "build the damaged index of a compressed segment again" {
+            val channel = Files.createTempDirectory("channel")
+            var log = MessageLog.open(channel)
+            log.append(0, 40_000)
+            log.compressColdSegment(0)
+            log.close()
+            Files.delete(channel.segmentFiles(".zindex")[0])
+
+            MessageLog.recover(channel) shouldBe 1
+
+            log = MessageLog.open(channel)
+            log.readAll(0, 40_000).size shouldBe 40_000
+            log.close()
+        }
+    }
+
+    "compressColdSegment()" should {
+        "compress the full segments which haven't been written for a while" {
+            val channel = Files.createTempDirectory("channel")
+            val log = MessageLog.open(channel)
+            log.append(0, 40_000)
+            val segments = channel.baseSequences().size
+
+            log.compressColdSegment(60_000) shouldBe false
+            MessageLog.hasFullSegments(channel, true) shouldBe true
+            repeat(segments - 1) {
+                log.compressColdSegment(0) shouldBe true
+            }
+            log.compressColdSegment(0) shouldBe false
+
+            MessageLog.hasFullSegments(channel, true) shouldBe false
+            MessageLog.hasFullSegments(channel, false) shouldBe true
+            channel.segmentFiles(".log").size shouldBe 1
+            channel.segmentFiles(".zlog").size shouldBe segments - 1
+            log.close()
+        }
+
+        "make the segments smaller" {
+            val channel = Files.createTempDirectory("channel")
+            val log = MessageLog.open(channel)
+            log.append(0, 40_000)
+            val size = Files.size(channel.segmentFiles(".log")[0])
+
+            log.compressColdSegment(0)
+
+            (Files.size(channel.segmentFiles(".zlog")[0]) < size / 10) shouldBe true
+            log.close()
+        }
+
+        "keep the compressed segments readable after the log is opened again" {
+            val channel = Files.createTempDirectory("channel")
+            var log = MessageLog.open(channel)
+            log.append(0, 40_000)
+            log.compressColdSegment(0)
+            log.close()
+
+            log = MessageLog.open(channel)
+            log.append(40_000, 10)
+
+            log.readAll(0, 40_010).map { it.content() } shouldBe (0 until 40_010L).map { message(it).content() }
+            log.close()
+        }
+    }
+
+    "sequenceAt()" should {
+        "find the first message saved at the time" {
+            val channel = Files.createTempDirectory("channel")
+            val log = MessageLog.open(channel)
+            val times = mutableListOf<Long>()
+            for (batch in 0 until 3) {
+                Thread.sleep(10)
+                times.add(System.currentTimeMillis())
+                log.append(batch * 10_000L, 10_000)
+            }
+
+            times.map { log.sequenceAt(it) } shouldBe listOf(0L, 10_000L, 20_000L)
+            log.sequenceAt(System.currentTimeMillis() + 1000) shouldBe 30_000
+            log.close()
+        }
+
+        "find the batches between the entries of the time index" {
+            val channel = Files.createTempDirectory("channel")
+            val log = MessageLog.open(channel)
+
+            val times = log.appendBatches(50, 10)
+
+            times.map { log.sequenceAt(it) } shouldBe (0 until 50L).map { it * 10 }
+            log.close()
+        }
+
+        "find the times after the log is opened again" {
+            val channel = Files.createTempDirectory("channel")
+            var log = MessageLog.open(channel)
+            val times = log.appendBatches(3, 10_000)
+            log.close()
+
+            log = MessageLog.open(channel)
+
+            times.map { log.sequenceAt(it) } shouldBe listOf(0L, 10_000L, 20_000L)
+            log.close()
+        }
+
+        "find the times in a compressed segment" {
+            val channel = Files.createTempDirectory("channel")
+            val log = MessageLog.open(channel)
+            val times = log.appendBatches(40, 1000)
+
+            log.compressColdSegment(0) shouldBe true
+
+            times.map { log.sequenceAt(it) } shouldBe (0 until 40L).map { it * 1000 }
+            log.close()
+        }
+
+        "treat the messages without times as older than any time" {
+            val channel = Files.createTempDirectory("channel")
+            val entry = "user\nlegacy".toByteArray()
+            Files.write(channel.resolve("messages.txt"), entry + "\n\n".toByteArray())
+            Files.write(channel.resolve("index"), ByteBuffer.allocate(Long.SIZE_BYTES * 2).putLong(0)
+                .putLong(entry.size.toLong()).array())
+            val log = MessageLog.open(channel)
+
+            log.sequenceAt(1) shouldBe 1
+            log.close()
+        }
+    }
+
+    "sequenceWrittenSince()" should {
+        "skip the full segments which weren't written since the time" {
+            val channel = Files.createTempDirectory("channel")
+            val log = MessageLog.open(channel)
+            log.append(0, 40_000)
+            Files.setLastModifiedTime(channel.segmentFiles(".log")[0], FileTime.fromMillis(1000))
+
+            log.sequenceWrittenSince(2000) shouldBe channel.baseSequences()[1]
+            log.sequenceWrittenSince(System.currentTimeMillis() + 1000) shouldBe channel.baseSequences().last()
+            log.close()
+        }
+    }
+
+    "sequenceWithinSize()" should {
+        "keep the last segment even if it's bigger" {
+            val channel = Files.createTempDirectory("channel")
+            val log = MessageLog.open(channel)
+            log.append(0, 40_000)
+
+            log.sequenceWithinSize(1) shouldBe channel.baseSequences().last()
+            log.sequenceWithinSize(Long.MAX_VALUE) shouldBe 0
+            log.close()
+        }
+    }
+
+    "deleteBefore()" should {
+        "delete the old segments while the messages are read" {
+            val channel = Files.createTempDirectory("channel")
+            val log = MessageLog.open(channel)
+            log.append(0, 40_000)
+            val error = AtomicReference<Throwable>()
+            val reader = Thread {
+                try {
+                    repeat(20) {
+                        // the messages of the deleted segments are skipped, the others are read in order
+                        val sequences = log.readAll(0, 40_000).map { it.content().substringBefore(' ').toLong() }
+                        sequences.zipWithNext().all { (previous, next) -> previous < next } shouldBe true
+                        sequences.last() shouldBe 39_999
+                    }
+                } catch (e: Throwable) {
+                    error.set(e)
+                }
+            }
+
+            reader.start()
+            val first = log.deleteBefore(40_000)
+            reader.join()
+
+            error.get() shouldBe null
+            log.firstSequence() shouldBe first
+            channel.segmentFiles(".log").size shouldBe 1
+            log.readAll(0, 40_000).size shouldBe (40_000 - first).toInt()
+            log.close()
+        }
+    }
+})
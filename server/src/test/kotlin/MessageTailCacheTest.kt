@@ -0,0 +1,154 @@
+package pl.pawelkielb.fchat.server
+
+import io.kotest.core.spec.style.WordSpec
+import io.kotest.matchers.nulls.shouldBeNull
+import io.kotest.matchers.nulls.shouldNotBeNull
+import io.kotest.matchers.shouldBe
+import pl.pawelkielb.fchat.data.Message
+import pl.pawelkielb.fchat.data.Name
+import java.util.UUID
+
+private fun messages(from: Int, count: Int) = (from until from + count).map { Message(Name.of("user"), "$it") }
+
+class MessageTailCacheTest : WordSpec({
+    "read()" should {
+        "return the newest messages of a new channel" {
+            val cache = MessageTailCache(1024 * 1024)
+            val channel = UUID.randomUUID()
+            cache.append(channel, 0, messages(0, 10))
+
+            val slice = cache.read(channel, -1, 3).shouldNotBeNull()
+
+            slice.from() shouldBe 7
+            slice.messages() shouldBe messages(7, 3)
+            slice.first() shouldBe false
+            cache.hits() shouldBe 1
+            cache.misses() shouldBe 0
+        }
+
+        "return all the messages of a channel which has fewer of them" {
+            val cache = MessageTailCache(1024 * 1024)
+            val channel = UUID.randomUUID()
+            cache.append(channel, 0, messages(0, 10))
+
+            val slice = cache.read(channel, 5, 10).shouldNotBeNull()
+
+            slice.from() shouldBe 0
+            slice.messages() shouldBe messages(0, 5)
+            slice.first() shouldBe true
+        }
+
+        "return the messages before a sequence number" {
+            val cache = MessageTailCache(1024 * 1024)
+            val channel = UUID.randomUUID()
+            cache.append(channel, 0, messages(0, 10))
+
+            val slice = cache.read(channel, 5, 3).shouldNotBeNull()
+
+            slice.from() shouldBe 2
+            slice.messages() shouldBe messages(2, 3)
+        }
+
+        "miss the messages which are not in memory" {
+            val cache = MessageTailCache(1024 * 1024)
+            val channel = UUID.randomUUID()
+            // the older messages are only on the disk
+            cache.fill(channel, 100, 110, messages(100, 10)) { 0 }
+
+            cache.read(channel, -1, 20).shouldBeNull()
+            cache.read(UUID.randomUUID(), -1, 1).shouldBeNull()
+            cache.read(channel, -1, 10).shouldNotBeNull().messages() shouldBe messages(100, 10)
+            cache.hits() shouldBe 1
+            cache.misses() shouldBe 2
+        }
+
+        "miss the messages of an invalidated channel" {
+            val cache = MessageTailCache(1024 * 1024)
+            val channel = UUID.randomUUID()
+            cache.append(channel, 0, messages(0, 10))
+
+            cache.invalidate(channel)
+
+            cache.read(channel, -1, 1).shouldBeNull()
+        }
+
+        "miss the messages of the least recently used channel when the memory is full" {
+            val cache = MessageTailCache(1500)
+            val old = UUID.randomUUID()
+            val new = UUID.randomUUID()
+            cache.append(old, 0, messages(0, 10))
+
+            cache.append(new, 0, messages(0, 10))
+
+            cache.read(old, -1, 1).shouldBeNull()
+            cache.read(new, -1, 1).shouldNotBeNull()
+        }
+
+        "keep the recently read channel when the memory is full" {
+            val cache = MessageTailCache(2500)
+            val read = UUID.randomUUID()
+            val unread = UUID.randomUUID()
+            cache.append(read, 0, messages(0, 10))
+            cache.append(unread, 0, messages(0, 10))
+            cache.read(read, -1, 1)
+
+            cache.append(UUID.randomUUID(), 0, messages(0, 10))
+
+            cache.read(read, -1, 1).shouldNotBeNull()
+            cache.read(unread, -1, 1).shouldBeNull()
+        }
+    }
+
+    "fill()" should {
+        "keep all the messages of a channel read from its first message" {
+            val cache = MessageTailCache(1024 * 1024)
+            val channel = UUID.randomUUID()
+
+            cache.fill(channel, 100, 110, messages(100, 10)) { 100 }
+
+            cache.read(channel, -1, 20).shouldNotBeNull().first() shouldBe true
+        }
+
+        "not replace the messages when more of them are in memory" {
+            val cache = MessageTailCache(1024 * 1024)
+            val channel = UUID.randomUUID()
+            cache.append(channel, 0, messages(0, 20))
+
+            cache.fill(channel, 15, 20, messages(15, 5)) { 0 }
+
+            cache.read(channel, -1, 20).shouldNotBeNull().messages() shouldBe messages(0, 20)
+        }
+
+        "not keep the messages deleted from the log while they were read" {
+            val cache = MessageTailCache(1024 * 1024)
+            val channel = UUID.randomUUID()
+
+            cache.fill(channel, 0, 10, messages(0, 10)) { 5 }
+
+            cache.read(channel, -1, 1).shouldBeNull()
+        }
+    }
+
+    "append()" should {
+        "drop the messages when some were appended without the cache" {
+            val cache = MessageTailCache(1024 * 1024)
+            val channel = UUID.randomUUID()
+            cache.append(channel, 0, messages(0, 10))
+
+            cache.append(channel, 20, messages(20, 5))
+
+            cache.read(channel, -1, 5).shouldNotBeNull().messages() shouldBe messages(20, 5)
+            cache.read(channel, -1, 6).shouldBeNull()
+        }
+
+        "keep only the newest messages of a channel which has too many of them" {
+            val cache = MessageTailCache(1024 * 1024)
+            val channel = UUID.randomUUID()
+
+            cache.append(channel, 0, messages(0, 2000))
+
+            cache.read(channel, -1, 1024).shouldNotBeNull().messages() shouldBe messages(976, 1024)
+            cache.read(channel, -1, 1025).shouldBeNull()
+        }
+    }
+})
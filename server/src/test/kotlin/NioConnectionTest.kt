@@ -0,0 +1,92 @@
+package pl.pawelkielb.fchat.server
+
+import io.kotest.assertions.throwables.shouldThrow
+import io.kotest.core.spec.style.WordSpec
+import io.kotest.matchers.shouldBe
+import pl.pawelkielb.fchat.PacketEncoder
+import pl.pawelkielb.fchat.TransferSettings
+import pl.pawelkielb.fchat.exceptions.DisconnectedException
+import java.io.DataOutputStream
+import java.net.InetSocketAddress
+import java.net.Socket
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.channels.ServerSocketChannel
+import java.nio.file.Files
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import kotlin.random.Random
+
+/**
+ * Connects a plain socket to a [NioConnection], so the test can write the frames byte by byte.
+ */
+private fun connect(test: (Socket, NioConnection) -> Unit) {
+    val eventLoop = EventLoop("test-event-loop") {}
+    eventLoop.start()
+    ServerSocketChannel.open().use { server ->
+        server.bind(InetSocketAddress("localhost", 0))
+        Socket("localhost", server.socket().localPort).use { socket ->
+            val connection = NioConnection(PacketEncoder(), server.accept(), eventLoop, Runnable::run, Runnable::run) {}
+            test(socket, connection)
+        }
+    }
+}
+
+private fun Socket.writeInPieces(bytes: ByteArray, pieceSize: Int) {
+    val output = getOutputStream()
+    for (offset in bytes.indices step pieceSize) {
+        output.write(bytes, offset, minOf(pieceSize, bytes.size - offset))
+        output.flush()
+        Thread.sleep(5)
+    }
+}
+
+private fun frame(bytes: ByteArray): ByteArray =
+    ByteBuffer.allocate(Integer.BYTES + bytes.size).putInt(bytes.size).put(bytes).array()
+
+class NioConnectionTest : WordSpec({
+    "readBytes()" should {
+        "read an array which comes in pieces" {
+            connect { socket, connection ->
+                val bytes = Random.nextBytes(1000)
+
+                val read = connection.readBytes()
+                socket.writeInPieces(frame(bytes), 3)
+
+                read.get(5, TimeUnit.SECONDS).toList() shouldBe bytes.toList()
+            }
+        }
+
+        "read an array which comes in pieces into a file" {
+            val path = Files.createTempFile("nio-connection", null)
+            val bytes = Random.nextBytes(200_000)
+
+            FileChannel.open(path, StandardOpenOption.WRITE).use { file ->
+                connect { socket, connection ->
+                    val read = connection.readBytes(file, 0)
+                    socket.writeInPieces(frame(bytes), 50_000)
+
+                    read.get(5, TimeUnit.SECONDS) shouldBe bytes.size
+                }
+            }
+
+            Files.readAllBytes(path).toList() shouldBe bytes.toList()
+            Files.delete(path)
+        }
+
+        "close the connection when the array is too big" {
+            connect { socket, connection ->
+                val read = connection.readBytes()
+                DataOutputStream(socket.getOutputStream()).writeInt(TransferSettings.maxPacketSizeInBytes + 1)
+
+                val exception = shouldThrow<ExecutionException> {
+                    read.get(5, TimeUnit.SECONDS)
+                }
+                (exception.cause is DisconnectedException) shouldBe true
+                socket.soTimeout = 5000
+                socket.getInputStream().read() shouldBe -1
+            }
+        }
+    }
+})
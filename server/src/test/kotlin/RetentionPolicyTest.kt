@@ -0,0 +1,45 @@
+package pl.pawelkielb.fchat.server
+
+import io.kotest.core.spec.style.WordSpec
+import io.kotest.matchers.shouldBe
+import java.nio.file.Files
+
+class RetentionPolicyTest : WordSpec({
+    "forChannel()" should {
+        "return the same policy when the channel has none" {
+            val channel = Files.createTempDirectory("channel")
+            val policy = RetentionPolicy(1000, 10, 100)
+
+            policy.forChannel(channel) shouldBe policy
+        }
+
+        "replace the limits set for the channel" {
+            val channel = Files.createTempDirectory("channel")
+            Files.writeString(channel.resolve("retention.properties"), "max_age_hours=2\nmax_messages=0\n")
+
+            val policy = RetentionPolicy(1000, 10, 100).forChannel(channel)
+
+            policy shouldBe RetentionPolicy(2 * 60 * 60 * 1000, 0, 100)
+        }
+
+        "keep the limits which aren't valid numbers" {
+            val channel = Files.createTempDirectory("channel")
+            Files.writeString(
+                channel.resolve("retention.properties"),
+                "max_age_hours=${Long.MAX_VALUE}\nmax_messages=-5\nmax_bytes=a lot\n"
+            )
+
+            val policy = RetentionPolicy(1000, 10, 100).forChannel(channel)
+
+            policy shouldBe RetentionPolicy(1000, 10, 100)
+        }
+    }
+
+    "limited()" should {
+        "tell if any of the limits is set" {
+            RetentionPolicy.unlimited.limited() shouldBe false
+            RetentionPolicy(0, 0, 1).limited() shouldBe true
+            RetentionPolicy(1, 0, 0).limited() shouldBe true
+        }
+    }
+})
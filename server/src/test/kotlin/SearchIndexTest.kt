@@ -0,0 +1,133 @@
+package pl.pawelkielb.fchat.server
+
+import io.kotest.core.spec.style.WordSpec
+import io.kotest.matchers.shouldBe
+import pl.pawelkielb.fchat.data.Message
+import pl.pawelkielb.fchat.data.Name
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.StandardOpenOption
+
+private fun MessageLog.append(index: SearchIndex?, vararg contents: String) {
+    val messages = contents.map { Message(Name.of("user"), it) }
+    val firstSequence = nextSequence()
+    append(messages)
+    index?.append(firstSequence, messages)
+}
+
+class SearchIndexTest : WordSpec({
+    "search()" should {
+        "find the newest messages with all the words" {
+            val channel = Files.createTempDirectory("channel")
+            val log = MessageLog.open(channel)
+            val index = SearchIndex(channel.resolve("search.index"))
+            log.append(index, "Hello there", "hello world", "world")
+            log.append(index, "HELLO, world!")
+
+            index.search("world hello", -1, 10, log).toList() shouldBe listOf(1L, 3L)
+            index.search("world", -1, 2, log).toList() shouldBe listOf(2L, 3L)
+            index.search("world", 3, 10, log).toList() shouldBe listOf(1L, 2L)
+            index.search("nothing", -1, 10, log).toList() shouldBe listOf()
+            index.search(" ", -1, 10, log).toList() shouldBe listOf()
+            log.close()
+        }
+
+        "find the messages appended while the index is loaded" {
+            val channel = Files.createTempDirectory("channel")
+            val log = MessageLog.open(channel)
+            val index = SearchIndex(channel.resolve("search.index"))
+            log.append(index, "hello")
+            index.search("hello", -1, 10, log)
+
+            log.append(index, "hello again")
+
+            index.search("hello", -1, 10, log).toList() shouldBe listOf(0L, 1L)
+            index.close()
+            index.search("again", -1, 10, log).toList() shouldBe listOf(1L)
+            log.close()
+        }
+
+        "index the messages again when a batch was lost" {
+            val channel = Files.createTempDirectory("channel")
+            val log = MessageLog.open(channel)
+            val index = SearchIndex(channel.resolve("search.index"))
+            log.append(index, "first")
+            log.append(null, "lost")
+            log.append(index, "last")
+
+            index.search("lost", -1, 10, log).toList() shouldBe listOf(1L)
+            index.search("first", -1, 10, log).toList() shouldBe listOf(0L)
+            index.search("last", -1, 10, log).toList() shouldBe listOf(2L)
+            log.close()
+        }
+
+        "index the messages missing at the end of the file" {
+            val channel = Files.createTempDirectory("channel")
+            val log = MessageLog.open(channel)
+            val index = SearchIndex(channel.resolve("search.index"))
+            log.append(index, "first")
+            log.append(index, "second")
+            FileChannel.open(channel.resolve("search.index"), StandardOpenOption.WRITE).use {
+                it.truncate(it.size() - 1)
+            }
+
+            index.search("second", -1, 10, log).toList() shouldBe listOf(1L)
+            index.close()
+            log.append(null, "third")
+
+            index.search("third", -1, 10, log).toList() shouldBe listOf(2L)
+            index.search("first", -1, 10, log).toList() shouldBe listOf(0L)
+            log.close()
+        }
+
+        "skip the messages deleted from the log and drop them from the file" {
+            val channel = Files.createTempDirectory("channel")
+            val log = MessageLog.open(channel)
+            val index = SearchIndex(channel.resolve("search.index"))
+            // big enough to fill a few segments
+            val padding = "x".repeat(1000)
+            for (batch in 0 until 4) {
+                log.append(index, *Array(10_000) { "message${batch * 10_000 + it} $padding" })
+            }
+            index.search("message0", -1, 10, log).toList() shouldBe listOf(0L)
+            val sizeBefore = Files.size(channel.resolve("search.index"))
+
+            val first = log.deleteBefore(40_000)
+            index.close()
+
+            index.search("message0", -1, 10, log).toList() shouldBe listOf()
+            index.search("message39999", -1, 10, log).toList() shouldBe listOf(39_999L)
+            index.search("message$first", -1, 10, log).toList() shouldBe listOf(first)
+            (Files.size(channel.resolve("search.index")) < sizeBefore) shouldBe true
+            log.close()
+        }
+
+        "index the log again when the file has messages which the log doesn't" {
+            val channel = Files.createTempDirectory("channel")
+            var log = MessageLog.open(channel)
+            val index = SearchIndex(channel.resolve("search.index"))
+            log.append(index, "old", "older")
+            log.close()
+            // the log lost its messages, but the index didn't
+            channel.resolve("log").toFile().deleteRecursively()
+            log = MessageLog.open(channel)
+            log.append(null, "new")
+
+            index.search("old", -1, 10, log).toList() shouldBe listOf()
+            index.search("new", -1, 10, log).toList() shouldBe listOf(0L)
+            log.close()
+        }
+    }
+
+    "words()" should {
+        "split the text on everything other than letters and digits" {
+            val words = SearchIndex.words("Zażółć, GĘŚLĄ-jaźń 42! zażółć")
+
+            words.toList() shouldBe listOf("zażółć", "gęślą", "jaźń", "42")
+        }
+
+        "cut the long words" {
+            SearchIndex.words("a".repeat(100)).toList() shouldBe listOf("a".repeat(64))
+        }
+    }
+})
@@ -0,0 +1,116 @@
+package pl.pawelkielb.fchat;
+
+import pl.pawelkielb.fchat.exceptions.PacketDecodeException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+
+
+/**
+ * Reads values written by a {@link BinaryWriter} from a byte array. It's not thread-safe.
+ */
+public class BinaryReader {
+    private final byte[] bytes;
+    private int position;
+    private final int end;
+
+    public BinaryReader(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.position = offset;
+        this.end = offset + length;
+    }
+
+    public BinaryReader(byte[] bytes) {
+        this(bytes, 0, bytes.length);
+    }
+
+    /**
+     * @throws PacketDecodeException if there are no more bytes
+     */
+    public int readByte() {
+        checkRemaining(1);
+        return bytes[position++] & 0xFF;
+    }
+
+    /**
+     * @throws PacketDecodeException if the varint is malformed or doesn't fit in an int
+     */
+    public int readVarInt() {
+        long value = readVarLong();
+        if (value > Integer.MAX_VALUE) {
+            throw new PacketDecodeException("A varint is too big");
+        }
+
+        return (int) value;
+    }
+
+    /**
+     * @throws PacketDecodeException if the varint is malformed
+     */
+    public long readVarLong() {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int next = readByte();
+            value |= (long) (next & 0x7F) << shift;
+            if ((next & 0x80) == 0) {
+                if (value < 0) {
+                    throw new PacketDecodeException("A varint cannot be negative");
+                }
+                return value;
+            }
+        }
+
+        throw new PacketDecodeException("A varint is too long");
+    }
+
+    public int readInt() {
+        checkRemaining(Integer.BYTES);
+        int value = 0;
+        for (int i = 0; i < Integer.BYTES; i++) {
+            value = (value << 8) | (bytes[position++] & 0xFF);
+        }
+        return value;
+    }
+
+    public long readLong() {
+        checkRemaining(Long.BYTES);
+        long value = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            value = (value << 8) | (bytes[position++] & 0xFF);
+        }
+        return value;
+    }
+
+    public UUID readUuid() {
+        long mostSignificantBits = readLong();
+        long leastSignificantBits = readLong();
+        return new UUID(mostSignificantBits, leastSignificantBits);
+    }
+
+    public String readString() {
+        int length = readVarInt();
+        checkRemaining(length);
+        String string = new String(bytes, position, length, StandardCharsets.UTF_8);
+        position += length;
+        return string;
+    }
+
+    public byte[] readBytes() {
+        int length = readVarInt();
+        checkRemaining(length);
+        byte[] result = Arrays.copyOfRange(bytes, position, position + length);
+        position += length;
+        return result;
+    }
+
+    public boolean hasRemaining() {
+        return position < end;
+    }
+
+    private void checkRemaining(int count) {
+        if (count < 0 || end - position < count) {
+            throw new PacketDecodeException("Unexpected end of data");
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package pl.pawelkielb.fchat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+
+
+/**
+ * Writes primitive values to a growing byte array. It's not thread-safe.
+ * Integers are written as unsigned varints (7 bits per byte, least significant group first),
+ * strings as a varint byte length followed by raw UTF-8 bytes and UUIDs on fixed 16 bytes.
+ *
+ * @see BinaryReader
+ */
+public class BinaryWriter {
+    private byte[] buffer;
+    private int size = 0;
+
+    public BinaryWriter(int initialCapacity) {
+        buffer = new byte[Math.max(initialCapacity, 16)];
+    }
+
+    public BinaryWriter() {
+        this(64);
+    }
+
+    public BinaryWriter writeByte(int value) {
+        ensureCapacity(1);
+        buffer[size++] = (byte) value;
+        return this;
+    }
+
+    /**
+     * @param value a non-negative integer
+     */
+    public BinaryWriter writeVarInt(int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("A varint cannot be negative");
+        }
+
+        return writeVarLong(value);
+    }
+
+    /**
+     * @param value a non-negative long
+     */
+    public BinaryWriter writeVarLong(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("A varint cannot be negative");
+        }
+
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[size++] = (byte) value;
+        return this;
+    }
+
+    public BinaryWriter writeInt(int value) {
+        ensureCapacity(Integer.BYTES);
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            buffer[size++] = (byte) (value >>> shift);
+        }
+        return this;
+    }
+
+    public BinaryWriter writeLong(long value) {
+        ensureCapacity(Long.BYTES);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buffer[size++] = (byte) (value >>> shift);
+        }
+        return this;
+    }
+
+    public BinaryWriter writeUuid(UUID uuid) {
+        writeLong(uuid.getMostSignificantBits());
+        writeLong(uuid.getLeastSignificantBits());
+        return this;
+    }
+
+    public BinaryWriter writeString(String string) {
+        return writeBytes(string.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes the length of the array as a varint followed by the array itself.
+     */
+    public BinaryWriter writeBytes(byte[] bytes) {
+        writeVarInt(bytes.length);
+        return writeRawBytes(bytes);
+    }
+
+    public BinaryWriter writeRawBytes(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, size, bytes.length);
+        size += bytes.length;
+        return this;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return A copy of the written bytes.
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    private void ensureCapacity(int additionalBytes) {
+        if (size + additionalBytes > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + additionalBytes));
+        }
+    }
+}
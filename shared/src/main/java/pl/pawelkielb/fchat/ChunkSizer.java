@@ -0,0 +1,128 @@
+package pl.pawelkielb.fchat;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+import static pl.pawelkielb.fchat.TransferSettings.*;
+
+
+/**
+ * Chooses sizes of file chunks during a single transfer. Small chunks waste round trips on fast links and big ones
+ * take a lot of memory, so the size follows the measured delivery rate and round-trip time, until delivering a chunk
+ * takes about {@link TransferSettings#fileChunkTimeInMillis}. It's thread-safe.
+ * <p>
+ * A chunk is never bigger than a share of the free memory, which is split between all the transfers in progress.
+ * The receiving party uses a sizer only to tell the biggest chunk it accepts. Every sizer has to be closed.
+ */
+public class ChunkSizer implements AutoCloseable {
+    private static final AtomicInteger transfers = new AtomicInteger();
+    // a chunk might be in memory in a few copies at once, e.g. while it's being compressed
+    private static final int chunkCopies = 4;
+
+    private record SentChunk(int size, long sentAt) {
+    }
+
+    private final Queue<SentChunk> sentChunks = new ArrayDeque<>();
+    private final LongSupplier clock;
+    private final LongSupplier freeMemory;
+    private int limit;
+    private int chunkSize = initialFileChunkSizeInBytes;
+    private long roundTripTime = Long.MAX_VALUE;
+    private long lastAcknowledgedAt = Long.MIN_VALUE;
+    private boolean closed = false;
+
+    /**
+     * @param limit      the biggest chunk the other party accepts or 0 if it accepts any size
+     * @param clock      returns the current time in nanoseconds
+     * @param freeMemory returns how many bytes can still be allocated
+     */
+    public ChunkSizer(int limit, LongSupplier clock, LongSupplier freeMemory) {
+        this.limit = limit;
+        this.clock = clock;
+        this.freeMemory = freeMemory;
+        transfers.incrementAndGet();
+    }
+
+    /**
+     * @param limit the biggest chunk the other party accepts or 0 if it accepts any size
+     */
+    public ChunkSizer(int limit) {
+        this(limit, System::nanoTime, ChunkSizer::freeMemory);
+    }
+
+    public ChunkSizer() {
+        this(0);
+    }
+
+    /**
+     * @param limit the biggest chunk the other party accepts or 0 if it accepts any size
+     */
+    public synchronized void setLimit(int limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * @return The biggest chunk which can be in memory now.
+     */
+    public synchronized int maxChunkSize() {
+        long share = freeMemory.getAsLong() / chunkCopies / Math.max(1, transfers.get());
+        int size = (int) Math.max(minFileChunkSizeInBytes, Math.min(maxFileChunkSizeInBytes, share));
+
+        return limit > 0 ? Math.min(size, limit) : size;
+    }
+
+    /**
+     * @return A size of the next chunk to send.
+     */
+    public synchronized int nextChunkSize() {
+        return Math.min(chunkSize, maxChunkSize());
+    }
+
+    /**
+     * Starts measuring the delivery of a chunk.
+     */
+    public synchronized void chunkSent(int size) {
+        sentChunks.add(new SentChunk(size, clock.getAsLong()));
+    }
+
+    /**
+     * Tells that the oldest chunk which wasn't acknowledged before has been delivered and adjusts the size.
+     * Acknowledgements of nothing are ignored.
+     */
+    public synchronized void chunkAcknowledged() {
+        SentChunk chunk = sentChunks.poll();
+        if (chunk == null) {
+            return;
+        }
+
+        long now = clock.getAsLong();
+        roundTripTime = Math.min(roundTripTime, now - chunk.sentAt);
+        // when many chunks are on the way, the time between the acknowledgements is the time of the delivery
+        long deliveryTime = Math.max(1, now - Math.max(chunk.sentAt, lastAcknowledgedAt));
+        lastAcknowledgedAt = now;
+
+        double bytesPerNano = (double) chunk.size / deliveryTime;
+        long targetTime = Math.max(TimeUnit.MILLISECONDS.toNanos(fileChunkTimeInMillis), 4 * roundTripTime);
+        long size = (long) (bytesPerNano * targetTime);
+
+        // a single late acknowledgement changes the size only a little
+        size = Math.max(chunkSize / 2, Math.min(2L * chunkSize, size));
+        chunkSize = (int) Math.max(minFileChunkSizeInBytes, Math.min(maxFileChunkSizeInBytes, size));
+    }
+
+    private static long freeMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            transfers.decrementAndGet();
+        }
+    }
+}
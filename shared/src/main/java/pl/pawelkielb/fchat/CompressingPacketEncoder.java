@@ -0,0 +1,110 @@
+package pl.pawelkielb.fchat;
+
+import pl.pawelkielb.fchat.exceptions.PacketDecodeException;
+import pl.pawelkielb.fchat.packets.Packet;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * A {@link PacketEncoder} that deflates packets bigger than {@link #compressionThreshold}.
+ * Every packet is prefixed with a byte telling whether the rest is compressed.
+ * Used when both parties support {@link Feature#COMPRESSION}.
+ */
+public class CompressingPacketEncoder extends PacketEncoder {
+    private static final byte RAW = 0;
+    private static final byte DEFLATED = 1;
+
+    /**
+     * Smaller packets are not worth compressing.
+     */
+    public static final int compressionThreshold = 256;
+
+    @Override
+    public byte[] toBytes(Packet packet) {
+        byte[] packetBytes = super.toBytes(packet);
+
+        if (packetBytes.length >= compressionThreshold) {
+            byte[] compressed = deflate(packetBytes);
+            if (compressed.length < packetBytes.length) {
+                return prefix(DEFLATED, compressed);
+            }
+        }
+
+        return prefix(RAW, packetBytes);
+    }
+
+    @Override
+    public Packet decode(byte[] packetBytes) {
+        if (packetBytes.length < 2) {
+            throw new PacketDecodeException("Unknown packet format");
+        }
+
+        byte[] payload = Arrays.copyOfRange(packetBytes, 1, packetBytes.length);
+        return switch (packetBytes[0]) {
+            case RAW -> super.decode(payload);
+            case DEFLATED -> super.decode(inflate(payload));
+            default -> throw new PacketDecodeException("Unknown compression");
+        };
+    }
+
+    private static byte[] prefix(byte prefix, byte[] bytes) {
+        byte[] result = new byte[bytes.length + 1];
+        result[0] = prefix;
+        System.arraycopy(bytes, 0, result, 1, bytes.length);
+        return result;
+    }
+
+    private static byte[] deflate(byte[] bytes) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+
+            // compressing makes sense only if the output is smaller than the input
+            byte[] buffer = new byte[bytes.length];
+            int length = 0;
+            while (!deflater.finished() && length < buffer.length) {
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+
+            if (!deflater.finished()) {
+                return bytes;
+            }
+
+            return Arrays.copyOf(buffer, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] bytes) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes);
+            ByteArrayOutputStream output = new ByteArrayOutputStream(bytes.length * 4);
+            byte[] buffer = new byte[4096];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new PacketDecodeException("Truncated compressed packet");
+                }
+                output.write(buffer, 0, length);
+                // a small packet could otherwise expand to gigabytes
+                if (output.size() > TransferSettings.maxPacketSizeInBytes) {
+                    throw new PacketDecodeException("Compressed packet is too big");
+                }
+            }
+
+            return output.toByteArray();
+        } catch (DataFormatException e) {
+            throw new PacketDecodeException("Invalid compressed packet");
+        } finally {
+            inflater.end();
+        }
+    }
+}
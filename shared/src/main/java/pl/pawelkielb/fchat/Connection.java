@@ -4,14 +4,22 @@ import pl.pawelkielb.fchat.exceptions.DisconnectedException;
 import pl.pawelkielb.fchat.exceptions.NetworkException;
 import pl.pawelkielb.fchat.packets.Packet;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.zip.Checksum;
 
 import static pl.pawelkielb.fchat.Functions.*;
 
@@ -21,7 +29,8 @@ import static pl.pawelkielb.fchat.Functions.*;
  * Also allows sending a special packet called a null-packet. It will be encoded as an array of size 0.
  */
 public class Connection {
-    private final PacketEncoder packetEncoder;
+    private volatile PacketEncoder packetEncoder;
+    private volatile Protocol protocol = Protocol.base;
     private Socket socket;
     private final Executor workerThreads;
     private final Executor ioThreads;
@@ -29,11 +38,19 @@ public class Connection {
     private String address;
     private int port;
     private Observable<Void> applicationExitEvent;
-    private ReentrantLock readLock = new ReentrantLock();
+    private final AtomicBoolean reading = new AtomicBoolean(false);
 
     private final TaskQueue taskQueue = new TaskQueue();
 
     public final static byte[] nullPacket = new byte[0];
+    private final static byte[] noHeader = new byte[0];
+    private final static int checksumBufferSize = 64 * 1024;
+
+    // the bytes which update a checksum go through these, the reads and the writes are never concurrent
+    private ByteBuffer sendBuffer;
+    private ByteBuffer receiveBuffer;
+
+    private Multiplexer multiplexer;
 
     public Connection(PacketEncoder packetEncoder,
                       String address,
@@ -63,6 +80,35 @@ public class Connection {
         this.logger = logger;
     }
 
+    /**
+     * For subclasses that provide their own transport by overriding
+     * {@link #sendBytesInternal(byte[], byte[])} and {@link #readFrameInternal(int, Function)}.
+     */
+    protected Connection(PacketEncoder packetEncoder,
+                         Executor workerThreads,
+                         Executor ioThreads,
+                         Logger logger) {
+
+        this(packetEncoder, (Socket) null, workerThreads, ioThreads, logger);
+    }
+
+    /**
+     * Switches this connection to the given protocol. Packets sent or read before this call are not affected.
+     *
+     * @param protocol a protocol negotiated with the other party
+     */
+    public void useProtocol(Protocol protocol) {
+        this.packetEncoder = protocol.packetEncoder();
+        this.protocol = protocol;
+    }
+
+    /**
+     * @return The protocol used by this connection. It's {@link Protocol#base} until the login completes.
+     */
+    public Protocol protocol() {
+        return protocol;
+    }
+
     /**
      * @param bytes an array of bytes to send
      * @return a future that'll be resolved when all bytes will be sent.
@@ -71,12 +117,54 @@ public class Connection {
      * <li>{@link DisconnectedException} - if the other party disconnects
      */
     public CompletableFuture<Void> sendBytes(byte[] bytes) {
-        return taskQueue.runSuspend(task -> sendBytesInternal(bytes).thenRun(() -> {
+        return taskQueue.runSuspend(task -> sendBytesInternal(noHeader, bytes).thenRun(() -> {
             logger.info(String.format("Sent %d bytes", bytes.length));
             task.complete(null);
         }).exceptionally(cvf(task::completeExceptionally)));
     }
 
+    /**
+     * Sends a region of a file as a single array, so the other party reads it with {@link #readBytes()}.
+     * The bytes are copied from the file to the network by the operating system when possible
+     * and never land on the heap as a whole.
+     *
+     * @param file     a file to read the bytes from. It won't be closed.
+     * @param position a position of the first byte to send
+     * @param count    a number of bytes to send
+     * @return a future that'll be resolved when all bytes will be sent.
+     * Might complete exceptionally with the same exceptions as {@link #sendBytes(byte[])}.
+     */
+    public CompletableFuture<Void> sendFileRegion(FileChannel file, long position, int count) {
+        return sendFileRegion(noHeader, file, position, count, null);
+    }
+
+    /**
+     * Sends a region of a file like {@link #sendFileRegion(FileChannel, long, int)} and updates the checksum
+     * with the bytes on their way, so the file isn't read twice. The bytes go through a reused direct buffer
+     * instead of being copied by the operating system.
+     *
+     * @param checksum a checksum to update with the sent bytes
+     */
+    public CompletableFuture<Void> sendFileRegion(FileChannel file, long position, int count, Checksum checksum) {
+        return sendFileRegion(noHeader, file, position, count, checksum);
+    }
+
+    /**
+     * Closes the connection. Arrays which haven't been sent yet might be lost and the pending reads fail.
+     *
+     * @return a future that'll be resolved when the connection is closed
+     */
+    public CompletableFuture<Void> close() {
+        return taskQueue.run(() -> {
+            try {
+                if (socket != null) {
+                    socket.close();
+                }
+            } catch (IOException ignore) {
+            }
+        });
+    }
+
     public static class ConcurrentReadException extends RuntimeException {
     }
 
@@ -89,7 +177,7 @@ public class Connection {
      */
     public CompletableFuture<byte[]> readBytes() {
         CompletableFuture<byte[]> future = new CompletableFuture<>();
-        readBytesInternal().thenAccept(bytes -> {
+        readFrame().thenAccept(bytes -> {
             logger.info(String.format("Received %d bytes", bytes.length));
             future.complete(bytes);
         }).exceptionally(cvf(future::completeExceptionally));
@@ -97,6 +185,37 @@ public class Connection {
         return future;
     }
 
+    /**
+     * Reads an array straight into a file, so it never lands on the heap as a whole.
+     *
+     * @param file     a file to write the array to. It won't be closed.
+     * @param position a position in the file to write the first byte at. It cannot be greater than the file's size.
+     * @return a future resolving to the length of the read array.
+     * Might complete exceptionally with the same exceptions as {@link #readBytes()}.
+     * Failing to write the file is reported as a {@link DisconnectedException} too,
+     * because the rest of the array cannot be skipped.
+     * @throws ConcurrentReadException if two threads attempt to read at the same time
+     */
+    public CompletableFuture<Integer> readBytes(FileChannel file, long position) {
+        return readBytes(file, position, null);
+    }
+
+    /**
+     * Reads an array into a file like {@link #readBytes(FileChannel, long)} and updates the checksum with the bytes
+     * written to the file, so they don't have to be read again to be verified.
+     *
+     * @param checksum a checksum to update with the written bytes. It's null if there is nothing to update.
+     */
+    public CompletableFuture<Integer> readBytes(FileChannel file, long position, Checksum checksum) {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        guardRead(() -> readBytesInternal(file, position, checksum)).thenAccept(length -> {
+            logger.info(String.format("Received %d bytes", length));
+            future.complete(length);
+        }).exceptionally(cvf(future::completeExceptionally));
+
+        return future;
+    }
+
     /**
      * @param packet a packet to send. Can be a null, which will send a null-packet.
      * @return a future that will be resolved when the packet is sent.
@@ -105,16 +224,17 @@ public class Connection {
      * <li>{@link DisconnectedException} - if the other party disconnects
      */
     public CompletableFuture<Void> sendPacket(Packet packet) {
+        PacketEncoder packetEncoder = this.packetEncoder;
         return taskQueue.runSuspend(task -> {
             if (packet == null) {
-                sendBytesInternal(nullPacket).thenRun(() -> {
+                sendBytesInternal(noHeader, nullPacket).thenRun(() -> {
                     logger.info("Sent packet: null");
                     task.complete(null);
                 }).exceptionally(cvf(task::completeExceptionally));
             } else {
                 workerThreads.execute(() -> {
                     byte[] packetBytes = packetEncoder.toBytes(packet);
-                    sendBytesInternal(packetBytes).thenRun(() -> {
+                    sendBytesInternal(noHeader, packetBytes).thenRun(() -> {
                         logger.info("Sent packet: " + packet);
                         task.complete(null);
                     }).exceptionally(cvf(task::completeExceptionally));
@@ -132,8 +252,9 @@ public class Connection {
      * @throws ConcurrentReadException if two threads attempt to read at the same time
      */
     public CompletableFuture<Packet> readPacket() {
+        PacketEncoder packetEncoder = this.packetEncoder;
         CompletableFuture<Packet> future = new CompletableFuture<>();
-        readBytesInternal().thenAccept(bytes -> {
+        readFrame().thenAccept(bytes -> {
             if (bytes.length == 0) {
                 logger.info("Received packet: null");
                 future.complete(null);
@@ -169,7 +290,90 @@ public class Connection {
         }
     }
 
-    private CompletableFuture<Void> sendBytesInternal(byte[] bytes) {
+    private CompletableFuture<byte[]> readFrame() {
+        return guardRead(this::readBytesInternal);
+    }
+
+    private <T> CompletableFuture<T> guardRead(Supplier<CompletableFuture<T>> read) {
+        if (!reading.compareAndSet(false, true)) {
+            throw new ConcurrentReadException();
+        }
+
+        // the flag is cleared before the dependent stages run, so they can read the next frame
+        return read.get().whenComplete((result, e) -> reading.set(false));
+    }
+
+    /**
+     * Reads a single array. The array starts with a header, which decides where the rest of the array goes.
+     * It's used by the {@link Multiplexer}.
+     *
+     * @param headerLength a length of the header
+     * @param sinkSelector called with the header. Returns a file the rest of the array should be written to
+     *                     or null if it should be read into memory.
+     */
+    CompletableFuture<Frame> readFrame(int headerLength, Function<byte[], FileSink> sinkSelector) {
+        return guardRead(() -> readFrameInternal(headerLength, sinkSelector)).thenApply(frame -> {
+            logger.info(String.format("Received %d bytes", frame.header().length + frame.length()));
+            return frame;
+        });
+    }
+
+    /**
+     * Sends a header and an array of bytes as a single array. The header is used by the {@link Multiplexer}.
+     *
+     * @return a future that'll be resolved when all bytes will be sent.
+     * Might complete exceptionally with the same exceptions as {@link #sendBytes(byte[])}.
+     */
+    CompletableFuture<Void> sendBytes(byte[] header, byte[] bytes) {
+        return taskQueue.runSuspend(task -> sendBytesInternal(header, bytes).thenRun(() -> {
+            logger.info(String.format("Sent %d bytes", header.length + bytes.length));
+            task.complete(null);
+        }).exceptionally(cvf(task::completeExceptionally)));
+    }
+
+    /**
+     * Sends a header and a region of a file as a single array. The header is used by the {@link Multiplexer}.
+     *
+     * @return a future that'll be resolved when all bytes will be sent.
+     * Might complete exceptionally with the same exceptions as {@link #sendBytes(byte[])}.
+     */
+    CompletableFuture<Void> sendFileRegion(byte[] header,
+                                           FileChannel file,
+                                           long position,
+                                           int count,
+                                           Checksum checksum) {
+
+        return taskQueue.runSuspend(task -> sendFileRegionInternal(header, file, position, count, checksum)
+                .thenRun(() -> {
+                    logger.info(String.format("Sent %d bytes", header.length + count));
+                    task.complete(null);
+                }).exceptionally(cvf(task::completeExceptionally)));
+    }
+
+    /**
+     * Allows sending many independent requests over this connection at the same time.
+     * Can be used only if both parties support {@link Feature#MULTIPLEXING}.
+     * After that, packets and bytes cannot be sent directly over this connection.
+     *
+     * @return The multiplexer of this connection.
+     */
+    public synchronized Multiplexer multiplexer() {
+        if (multiplexer == null) {
+            multiplexer = new Multiplexer(this, workerThreads, ioThreads, logger);
+        }
+
+        return multiplexer;
+    }
+
+    /**
+     * Sends the length of the header and the array on 4 bytes, then the header and then the array itself.
+     * Calls are never concurrent, the next one is made after the previous future completes.
+     *
+     * @param header bytes to send before the array, usually empty
+     * @param bytes  an array of bytes to send
+     * @return a future that'll be resolved when all bytes will be sent
+     */
+    protected CompletableFuture<Void> sendBytesInternal(byte[] header, byte[] bytes) {
         CompletableFuture<Void> future = new CompletableFuture<>();
 
         ioThreads.execute(() -> {
@@ -177,7 +381,10 @@ public class Connection {
 
             try {
                 OutputStream output = socket.getOutputStream();
-                output.write(intToBytes(bytes.length));
+                output.write(intToBytes(header.length + bytes.length));
+                if (header.length > 0) {
+                    output.write(header);
+                }
                 output.write(bytes);
 
                 future.complete(null);
@@ -189,12 +396,145 @@ public class Connection {
         return future;
     }
 
-    private CompletableFuture<byte[]> readBytesInternal() {
-        CompletableFuture<byte[]> future = new CompletableFuture<>();
+    /**
+     * Sends the bytes the same way as {@link #sendBytesInternal(byte[], byte[])}, but takes them from the file.
+     * Calls are never concurrent with each other and with {@link #sendBytesInternal(byte[], byte[])}.
+     *
+     * @param header   bytes to send before the file region, usually empty
+     * @param file     a file to read the bytes from
+     * @param position a position of the first byte to send
+     * @param count    a number of bytes to send
+     * @param checksum a checksum to update with the sent bytes or null
+     * @return a future that'll be resolved when all bytes will be sent
+     */
+    protected CompletableFuture<Void> sendFileRegionInternal(byte[] header,
+                                                             FileChannel file,
+                                                             long position,
+                                                             int count,
+                                                             Checksum checksum) {
 
-        if (!readLock.tryLock()) {
-            throw new ConcurrentReadException();
+        CompletableFuture<Void> future = new CompletableFuture<>();
+
+        ioThreads.execute(() -> {
+            connect();
+
+            try {
+                OutputStream output = socket.getOutputStream();
+                output.write(intToBytes(header.length + count));
+                if (header.length > 0) {
+                    output.write(header);
+                }
+
+                // sockets created from channels allow the kernel to copy the file directly
+                WritableByteChannel target = socket.getChannel() != null
+                        ? socket.getChannel()
+                        : Channels.newChannel(output);
+                if (checksum != null) {
+                    if (sendBuffer == null) {
+                        sendBuffer = ByteBuffer.allocateDirect(checksumBufferSize);
+                    }
+                    copy(file, position, target, count, sendBuffer, checksum);
+                    future.complete(null);
+                    return;
+                }
+
+                long sent = 0;
+                while (sent < count) {
+                    long transferred = file.transferTo(position + sent, count - sent, target);
+                    if (transferred <= 0) {
+                        throw new EOFException("The file is shorter than the region");
+                    }
+                    sent += transferred;
+                }
+
+                future.complete(null);
+            } catch (IOException e) {
+                future.completeExceptionally(new DisconnectedException(e));
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * Copies the bytes from the file through the buffer, so they can update the checksum on the way.
+     */
+    private static void copy(FileChannel file,
+                             long position,
+                             WritableByteChannel target,
+                             int count,
+                             ByteBuffer buffer,
+                             Checksum checksum) throws IOException {
+
+        long sent = 0;
+        while (sent < count) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), count - sent));
+            int read = file.read(buffer, position + sent);
+            if (read < 0) {
+                throw new EOFException("The file is shorter than the region");
+            }
+
+            buffer.flip();
+            checksum.update(buffer.duplicate());
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+            sent += read;
+        }
+    }
+
+    /**
+     * A place in a file an incoming array is written to.
+     *
+     * @param checksum a checksum to update with the written bytes or null
+     */
+    public record FileSink(FileChannel file, long position, Checksum checksum) {
+        public FileSink(FileChannel file, long position) {
+            this(file, position, null);
         }
+    }
+
+    /**
+     * An array read by {@link #readFrameInternal(int, Function)}.
+     *
+     * @param header the header. It's shorter than requested only if the whole array is shorter.
+     * @param bytes  the rest of the array or null if it has been written to a file
+     * @param length a length of the rest of the array
+     */
+    public record Frame(byte[] header, byte[] bytes, int length) {
+    }
+
+    /**
+     * Reads a single array sent by {@link #sendBytesInternal(byte[], byte[])} together with its header.
+     * Calls are never concurrent, the next one is made after the previous future completes.
+     *
+     * @return a future resolving to the read array
+     */
+    protected CompletableFuture<byte[]> readBytesInternal() {
+        return readFrameInternal(0, header -> null).thenApply(Frame::bytes);
+    }
+
+    /**
+     * Reads a single array into the file. Calls are never concurrent with any other read.
+     *
+     * @param checksum a checksum to update with the written bytes or null
+     * @return a future resolving to the length of the read array
+     */
+    protected CompletableFuture<Integer> readBytesInternal(FileChannel file, long position, Checksum checksum) {
+        return readFrameInternal(0, header -> new FileSink(file, position, checksum)).thenApply(Frame::length);
+    }
+
+    /**
+     * Reads a single array. First reads the header and then either reads the rest into memory
+     * or writes it to the file returned by the sink selector.
+     * Calls are never concurrent, the next one is made after the previous future completes.
+     *
+     * @param headerLength a length of the header, can be 0
+     * @param sinkSelector called with the header, returns a file to write the rest of the array to or null
+     * @return a future resolving to the read array
+     */
+    protected CompletableFuture<Frame> readFrameInternal(int headerLength, Function<byte[], FileSink> sinkSelector) {
+        CompletableFuture<Frame> future = new CompletableFuture<>();
 
         ioThreads.execute(() -> {
             connect();
@@ -204,21 +544,73 @@ public class Connection {
                 byte[] arraySizeBytes = input.readNBytes(4);
 
                 if (arraySizeBytes.length < 4) {
-                    readLock = new ReentrantLock();
-                    return;
+                    // the multiplexer reads all the time, so it has to know when the other party is gone
+                    throw new EOFException();
                 }
 
                 int arraySize = intFromBytes(arraySizeBytes);
-                byte[] bytes = input.readNBytes(arraySize);
+                // the length comes from the other party, so it can't decide how much memory is allocated
+                if (arraySize < 0 || arraySize > TransferSettings.maxPacketSizeInBytes) {
+                    throw new IOException("Invalid frame length: " + arraySize);
+                }
+                byte[] header = input.readNBytes(Math.min(headerLength, arraySize));
+                int length = arraySize - header.length;
+
+                FileSink sink = header.length == headerLength ? sinkSelector.apply(header) : null;
+                if (sink == null) {
+                    future.complete(new Frame(header, input.readNBytes(length), length));
+                    return;
+                }
+
+                // sockets created from channels allow the kernel to copy the bytes directly
+                ReadableByteChannel source = socket.getChannel() != null
+                        ? socket.getChannel()
+                        : Channels.newChannel(input);
+                if (sink.checksum() != null) {
+                    if (receiveBuffer == null) {
+                        receiveBuffer = ByteBuffer.allocateDirect(checksumBufferSize);
+                    }
+                    receive(source, sink, length, receiveBuffer);
+                    future.complete(new Frame(header, null, length));
+                    return;
+                }
+
+                long received = 0;
+                while (received < length) {
+                    long transferred = sink.file().transferFrom(source, sink.position() + received, length - received);
+                    if (transferred <= 0) {
+                        throw new EOFException();
+                    }
+                    received += transferred;
+                }
 
-                readLock = new ReentrantLock();
-                future.complete(bytes);
+                future.complete(new Frame(header, null, length));
             } catch (IOException e) {
-                readLock = new ReentrantLock();
                 future.completeExceptionally(new DisconnectedException(e));
             }
         });
 
         return future;
     }
+
+    /**
+     * Writes the bytes from the socket to the file through the buffer, so they can update the checksum on the way.
+     */
+    private static void receive(ReadableByteChannel source, FileSink sink, int length, ByteBuffer buffer)
+            throws IOException {
+
+        long received = 0;
+        while (received < length) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), length - received));
+            if (source.read(buffer) < 0) {
+                throw new EOFException();
+            }
+
+            buffer.flip();
+            sink.checksum().update(buffer.duplicate());
+            while (buffer.hasRemaining()) {
+                received += sink.file().write(buffer, sink.position() + received);
+            }
+        }
+    }
 }
@@ -0,0 +1,86 @@
+package pl.pawelkielb.fchat;
+
+import pl.pawelkielb.fchat.packets.ChunkChecksumPacket;
+import pl.pawelkielb.fchat.packets.FileDigestPacket;
+import pl.pawelkielb.fchat.packets.MessageCursorPacket;
+import pl.pawelkielb.fchat.packets.RequestMessagesPacket;
+import pl.pawelkielb.fchat.packets.SearchMessagesPacket;
+import pl.pawelkielb.fchat.packets.SendFilePacket;
+import pl.pawelkielb.fchat.packets.UploadCreditPacket;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+
+/**
+ * An optional protocol feature, which is used only if both parties support it.
+ * Each feature has a fixed bit, so the set of features can be sent as a single number.
+ */
+public enum Feature {
+    /**
+     * Big packets are deflated, see {@link CompressingPacketEncoder}.
+     */
+    COMPRESSION(0),
+
+    /**
+     * Requests are sent on separate streams of a single connection, see {@link Multiplexer}.
+     */
+    MULTIPLEXING(1),
+
+    /**
+     * Files are uploaded without waiting for every chunk to be acknowledged, see {@link UploadCreditPacket}.
+     */
+    WINDOWED_UPLOAD(2),
+
+    /**
+     * Interrupted transfers can be continued, see {@link SendFilePacket#offset()}.
+     */
+    RESUMABLE_TRANSFERS(3),
+
+    /**
+     * Every file chunk is followed by its {@link ChunkChecksumPacket} and a transfer ends with {@link FileDigestPacket}.
+     */
+    CHECKSUMS(4),
+
+    /**
+     * History is read page by page, see {@link RequestMessagesPacket#before()} and {@link MessageCursorPacket}.
+     */
+    PAGINATION(5),
+
+    /**
+     * History can be searched on the server, see {@link SearchMessagesPacket}.
+     */
+    SEARCH(6),
+
+    /**
+     * Only the messages saved since some time can be read, see {@link RequestMessagesPacket#since()}.
+     */
+    TIME_RANGES(7);
+
+    private final int bit;
+
+    Feature(int bit) {
+        this.bit = bit;
+    }
+
+    public static long toMask(Set<Feature> features) {
+        long mask = 0;
+        for (Feature feature : features) {
+            mask |= 1L << feature.bit;
+        }
+        return mask;
+    }
+
+    /**
+     * Unknown bits are ignored, so newer parties can advertise features this version does not know about.
+     */
+    public static Set<Feature> fromMask(long mask) {
+        Set<Feature> features = EnumSet.noneOf(Feature.class);
+        for (Feature feature : values()) {
+            if ((mask & (1L << feature.bit)) != 0) {
+                features.add(feature);
+            }
+        }
+        return features;
+    }
+}
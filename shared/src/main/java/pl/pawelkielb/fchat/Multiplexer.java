@@ -0,0 +1,533 @@
+package pl.pawelkielb.fchat;
+
+import pl.pawelkielb.fchat.exceptions.DisconnectedException;
+import pl.pawelkielb.fchat.exceptions.PacketDecodeException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.zip.Checksum;
+
+
+/**
+ * Splits a {@link Connection} into many independent streams, so a slow request doesn't block the others.
+ * Every array is sent with a 4-byte header containing an id of its stream. A header with the highest bit set
+ * closes the stream. The client opens the streams and the server accepts them. It's thread-safe.
+ * <p>
+ * Arrays are read from the connection only when some stream is waiting for data or when the streams are accepted,
+ * so it also works with the synchronous executors used by the client.
+ * If a stream is waiting to read an array into a file, the array is written there straight from the connection.
+ * <p>
+ * Every stream has a window of bytes it can send before the other party reads them. The reader grants the bytes
+ * back with a header with the second highest bit set, followed by their count. The arrays of a stream which nobody
+ * reads can't take more memory than the window, so the connection is always read and the other streams don't wait.
+ * A party which sends more than the window or opens too many streams is disconnected.
+ */
+public class Multiplexer {
+    private static final int closeFlag = 0x80000000;
+    private static final int windowFlag = 0x40000000;
+
+    /**
+     * The read bytes are granted back in batches of at least this size, so small arrays don't need their own grants.
+     */
+    static final int windowUpdateThresholdInBytes = 64 * 1024;
+
+    /**
+     * How many bytes of unread arrays a single stream can have. The biggest array always fits, even if the bytes
+     * read before it haven't been granted back yet.
+     */
+    static final int windowSizeInBytes = TransferSettings.maxPacketSizeInBytes + windowUpdateThresholdInBytes;
+
+    /**
+     * How many streams opened by the other party can be open at once.
+     */
+    static final int maxAcceptedStreams = 32;
+
+    private final Connection connection;
+    private final Executor workerThreads;
+    private final Executor ioThreads;
+    private final Logger logger;
+
+    private final Map<Integer, Stream> streams = new HashMap<>();
+    private Consumer<Stream> streamListener;
+    private int nextStreamId = 1;
+    private boolean reading = false;
+    private Throwable failure;
+
+    Multiplexer(Connection connection, Executor workerThreads, Executor ioThreads, Logger logger) {
+        this.connection = connection;
+        this.workerThreads = workerThreads;
+        this.ioThreads = ioThreads;
+        this.logger = logger;
+    }
+
+    /**
+     * @return A new stream. The other party will see it after the first array is sent.
+     */
+    public synchronized Stream openStream() {
+        Stream stream = new Stream(nextStreamId++);
+        streams.put(stream.id, stream);
+
+        return stream;
+    }
+
+    /**
+     * Starts reading the connection continuously.
+     *
+     * @param listener a callback called with every stream opened by the other party
+     */
+    public void acceptStreams(Consumer<Stream> listener) {
+        synchronized (this) {
+            streamListener = listener;
+        }
+
+        readIfNeeded();
+    }
+
+    private void readIfNeeded() {
+        synchronized (this) {
+            if (reading || failure != null) {
+                return;
+            }
+
+            // a stream waiting for its window needs the grants of the other party
+            boolean someoneWaits = streams.values().stream()
+                    .anyMatch(it -> it.pendingRead != null || it.pendingFileRead != null || it.pendingSend != null);
+            if (streamListener == null && !someoneWaits) {
+                return;
+            }
+
+            reading = true;
+        }
+
+        connection.readFrame(Integer.BYTES, this::fileSink).whenComplete((frame, exception) -> {
+            if (exception != null) {
+                // the socket isn't needed anymore, even if only the other party has closed it
+                disconnect(exception instanceof CompletionException ? exception.getCause() : exception);
+            } else {
+                route(frame);
+            }
+
+            synchronized (this) {
+                reading = false;
+            }
+            readIfNeeded();
+        });
+    }
+
+    /**
+     * @return A file to write the array to, if its stream is waiting for one and has nothing else to read before.
+     */
+    private synchronized Connection.FileSink fileSink(byte[] headerBytes) {
+        int header = ByteBuffer.wrap(headerBytes).getInt();
+        if ((header & (closeFlag | windowFlag)) != 0) {
+            return null;
+        }
+
+        Stream stream = streams.get(header);
+        if (stream == null || stream.pendingFileRead == null || !stream.received.isEmpty()) {
+            return null;
+        }
+
+        stream.fileReadInProgress = stream.pendingFileRead;
+        stream.pendingFileRead = null;
+        FileRead fileRead = stream.fileReadInProgress;
+        return new Connection.FileSink(fileRead.file, fileRead.position, fileRead.checksum);
+    }
+
+    private void route(Connection.Frame frame) {
+        if (frame.header().length < Integer.BYTES) {
+            fail(new PacketDecodeException("Missing stream header"));
+            return;
+        }
+
+        int header = ByteBuffer.wrap(frame.header()).getInt();
+        int streamId = header & ~(closeFlag | windowFlag);
+        boolean close = (header & closeFlag) != 0;
+        boolean windowUpdate = (header & windowFlag) != 0;
+
+        Stream stream;
+        Consumer<Stream> newStreamListener = null;
+        boolean fitsWindow;
+        synchronized (this) {
+            stream = streams.get(streamId);
+            if (stream == null) {
+                // arrays of already closed streams are ignored
+                if (close || windowUpdate || streamListener == null || frame.bytes() == null) {
+                    return;
+                }
+                if (streams.size() >= maxAcceptedStreams) {
+                    disconnect(new PacketDecodeException("Too many streams have been opened"));
+                    return;
+                }
+
+                stream = new Stream(streamId);
+                streams.put(streamId, stream);
+                newStreamListener = streamListener;
+            }
+
+            if (close) {
+                streams.remove(streamId);
+            }
+            fitsWindow = windowUpdate || stream.fitsWindow(frame.length());
+        }
+
+        if (close) {
+            stream.onClosed(new DisconnectedException(new EOFException("The stream has been closed")));
+            return;
+        }
+
+        if (windowUpdate) {
+            boolean valid = frame.bytes().length == Integer.BYTES
+                    && stream.onWindowUpdate(ByteBuffer.wrap(frame.bytes()).getInt());
+            if (!valid) {
+                disconnect(new PacketDecodeException("Invalid window update"));
+            }
+            return;
+        }
+        if (!fitsWindow) {
+            disconnect(new PacketDecodeException("The stream's window has been exceeded"));
+            return;
+        }
+
+        if (frame.bytes() == null) {
+            stream.onFileWritten(frame.length());
+        } else {
+            stream.onBytes(frame.bytes());
+        }
+        if (newStreamListener != null) {
+            newStreamListener.accept(stream);
+        }
+    }
+
+    private void fail(Throwable exception) {
+        List<Stream> failedStreams;
+        synchronized (this) {
+            failure = exception;
+            failedStreams = new ArrayList<>(streams.values());
+            streams.clear();
+        }
+
+        failedStreams.forEach(it -> it.onClosed(exception));
+    }
+
+    /**
+     * Fails all the streams and closes the connection.
+     */
+    private void disconnect(Throwable exception) {
+        fail(exception);
+        connection.close();
+    }
+
+    private static byte[] intToBytes(int integer) {
+        return ByteBuffer.allocate(Integer.BYTES).putInt(integer).array();
+    }
+
+    private record FileRead(FileChannel file, long position, Checksum checksum, CompletableFuture<Integer> future) {
+    }
+
+    private record PendingSend(int length, CompletableFuture<Void> future) {
+    }
+
+    /**
+     * A single stream of a multiplexed connection. Behaves like a separate {@link Connection}.
+     */
+    public class Stream extends Connection {
+        private final int id;
+        private final byte[] header;
+        private final Queue<byte[]> received = new ArrayDeque<>();
+        private int receivedBytes;
+        // the bytes which have been read, but haven't been granted back to the other party yet
+        private int ungrantedBytes;
+        private int sendWindow = windowSizeInBytes;
+        private PendingSend pendingSend;
+        private CompletableFuture<byte[]> pendingRead;
+        private FileRead pendingFileRead;
+        private FileRead fileReadInProgress;
+        private Throwable closedCause;
+
+        private Stream(int id) {
+            super(new PacketEncoder(), workerThreads, ioThreads, logger);
+            this.id = id;
+            this.header = intToBytes(id);
+            useProtocol(connection.protocol());
+        }
+
+        public int id() {
+            return id;
+        }
+
+        /**
+         * Tells the other party that this stream won't be used anymore.
+         *
+         * @return A future that will be resolved when the other party is notified.
+         */
+        @Override
+        public CompletableFuture<Void> close() {
+            synchronized (Multiplexer.this) {
+                streams.remove(id);
+            }
+            readIfNeeded();
+
+            return connection.sendBytes(intToBytes(id | closeFlag), nullPacket);
+        }
+
+        @Override
+        protected CompletableFuture<Void> sendBytesInternal(byte[] header, byte[] bytes) {
+            return reserveWindow(header.length + bytes.length)
+                    .thenCompose(it -> connection.sendBytes(streamHeader(header), bytes));
+        }
+
+        @Override
+        protected CompletableFuture<Void> sendFileRegionInternal(byte[] header,
+                                                                 FileChannel file,
+                                                                 long position,
+                                                                 int count,
+                                                                 Checksum checksum) {
+
+            return reserveWindow(header.length + count).thenCompose(it ->
+                    connection.sendFileRegion(streamHeader(header), file, position, count, checksum));
+        }
+
+        /**
+         * Waits until the other party has room for the array. The sends are never concurrent.
+         */
+        private CompletableFuture<Void> reserveWindow(int length) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            boolean waiting;
+            synchronized (Multiplexer.this) {
+                // the other party doesn't read a closed stream, so there is nothing to wait for
+                waiting = sendWindow < length && closedCause == null;
+                if (waiting) {
+                    pendingSend = new PendingSend(length, future);
+                } else {
+                    sendWindow -= length;
+                }
+            }
+
+            if (waiting) {
+                readIfNeeded();
+            } else {
+                future.complete(null);
+            }
+
+            return future;
+        }
+
+        /**
+         * @return false if the other party granted more than has been sent
+         */
+        private boolean onWindowUpdate(int length) {
+            PendingSend unblocked = null;
+            synchronized (Multiplexer.this) {
+                if (length <= 0 || (long) sendWindow + length > windowSizeInBytes) {
+                    return false;
+                }
+
+                sendWindow += length;
+                if (pendingSend != null && sendWindow >= pendingSend.length) {
+                    sendWindow -= pendingSend.length;
+                    unblocked = pendingSend;
+                    pendingSend = null;
+                }
+            }
+
+            if (unblocked != null) {
+                unblocked.future.complete(null);
+            }
+            return true;
+        }
+
+        private boolean fitsWindow(int length) {
+            return (long) receivedBytes + ungrantedBytes + length <= windowSizeInBytes;
+        }
+
+        private void consumed(int length) {
+            synchronized (Multiplexer.this) {
+                ungrantedBytes += length;
+            }
+            grant();
+        }
+
+        /**
+         * Grants the read bytes back to the other party, once there are enough of them.
+         */
+        private void grant() {
+            int granted;
+            synchronized (Multiplexer.this) {
+                if (ungrantedBytes < windowUpdateThresholdInBytes || streams.get(id) != this) {
+                    return;
+                }
+
+                granted = ungrantedBytes;
+                ungrantedBytes = 0;
+            }
+
+            connection.sendBytes(intToBytes(id | windowFlag), intToBytes(granted));
+        }
+
+        private byte[] streamHeader(byte[] header) {
+            if (header.length == 0) {
+                return this.header;
+            }
+
+            byte[] streamHeader = Arrays.copyOf(this.header, this.header.length + header.length);
+            System.arraycopy(header, 0, streamHeader, this.header.length, header.length);
+            return streamHeader;
+        }
+
+        @Override
+        protected CompletableFuture<byte[]> readBytesInternal() {
+            CompletableFuture<byte[]> future = new CompletableFuture<>();
+            byte[] next;
+            Throwable exception;
+            synchronized (Multiplexer.this) {
+                next = poll();
+                exception = closedCause;
+                if (next == null && exception == null) {
+                    pendingRead = future;
+                }
+            }
+
+            if (next != null) {
+                grant();
+                future.complete(next);
+                readIfNeeded();
+            } else if (exception != null) {
+                future.completeExceptionally(exception);
+            } else {
+                readIfNeeded();
+            }
+
+            return future;
+        }
+
+        @Override
+        protected CompletableFuture<Integer> readBytesInternal(FileChannel file, long position, Checksum checksum) {
+            CompletableFuture<Integer> future = new CompletableFuture<>();
+            byte[] next;
+            Throwable exception;
+            synchronized (Multiplexer.this) {
+                next = poll();
+                exception = closedCause;
+                if (next == null && exception == null) {
+                    pendingFileRead = new FileRead(file, position, checksum, future);
+                }
+            }
+
+            if (next != null) {
+                // the array came before the read, so it has to be copied from memory
+                grant();
+                copyToFile(new FileRead(file, position, checksum, future), next);
+                readIfNeeded();
+            } else if (exception != null) {
+                future.completeExceptionally(exception);
+            } else {
+                readIfNeeded();
+            }
+
+            return future;
+        }
+
+        private byte[] poll() {
+            byte[] next = received.poll();
+            if (next != null) {
+                receivedBytes -= next.length;
+                ungrantedBytes += next.length;
+            }
+
+            return next;
+        }
+
+        private void onFileWritten(int length) {
+            FileRead fileRead;
+            synchronized (Multiplexer.this) {
+                fileRead = fileReadInProgress;
+                fileReadInProgress = null;
+            }
+
+            consumed(length);
+            fileRead.future.complete(length);
+        }
+
+        private void onBytes(byte[] bytes) {
+            CompletableFuture<byte[]> future;
+            FileRead fileRead = null;
+            synchronized (Multiplexer.this) {
+                future = pendingRead;
+                pendingRead = null;
+                if (future == null && received.isEmpty()) {
+                    // the array's header was read before the file read started
+                    fileRead = pendingFileRead;
+                    pendingFileRead = null;
+                }
+
+                if (future == null && fileRead == null) {
+                    received.add(bytes);
+                    receivedBytes += bytes.length;
+                    return;
+                }
+            }
+
+            consumed(bytes.length);
+            if (future != null) {
+                future.complete(bytes);
+            } else {
+                copyToFile(fileRead, bytes);
+            }
+        }
+
+        private void copyToFile(FileRead fileRead, byte[] bytes) {
+            ioThreads.execute(() -> {
+                try {
+                    if (fileRead.checksum != null) {
+                        fileRead.checksum.update(bytes);
+                    }
+                    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                    while (buffer.hasRemaining()) {
+                        fileRead.file.write(buffer, fileRead.position + buffer.position());
+                    }
+                    fileRead.future.complete(bytes.length);
+                } catch (IOException e) {
+                    fileRead.future.completeExceptionally(new DisconnectedException(e));
+                }
+            });
+        }
+
+        private void onClosed(Throwable cause) {
+            CompletableFuture<byte[]> future;
+            List<FileRead> fileReads = new ArrayList<>(2);
+            PendingSend send;
+            synchronized (Multiplexer.this) {
+                closedCause = cause;
+                send = pendingSend;
+                pendingSend = null;
+                future = pendingRead;
+                pendingRead = null;
+                if (pendingFileRead != null) {
+                    fileReads.add(pendingFileRead);
+                }
+                if (fileReadInProgress != null) {
+                    fileReads.add(fileReadInProgress);
+                }
+                pendingFileRead = null;
+                fileReadInProgress = null;
+            }
+
+            if (future != null) {
+                future.completeExceptionally(cause);
+            }
+            fileReads.forEach(it -> it.future.completeExceptionally(cause));
+            // the array is sent anyway, the other party will ignore it or the connection will fail it
+            if (send != null) {
+                send.future.complete(null);
+            }
+        }
+    }
+}
@@ -6,7 +6,10 @@ import java.util.function.Consumer;
 
 
 /**
- * Represent a stream of asynchronously calculated values. It's not thread-safe.
+ * Represent a stream of asynchronously calculated values. It's thread-safe.
+ * Values pushed before the first observer subscribes are buffered and passed to that observer,
+ * and subscribers added after the completion are notified immediately,
+ * so the producer may start before anyone subscribes.
  *
  * @param <T> a type of the values
  */
@@ -14,7 +17,9 @@ public class Observable<T> {
     private final List<Consumer<T>> observers = new ArrayList<>();
     private final List<Runnable> completionListeners = new ArrayList<>();
     private final List<Consumer<Exception>> exceptionListener = new ArrayList<>();
+    private final List<T> pendingValues = new ArrayList<>();
     private boolean completed = false;
+    private Exception exception;
 
     /**
      * Subscribes to this observable.
@@ -23,9 +28,15 @@ public class Observable<T> {
      * @param onComplete       a callback to call when this observable completes
      * @param exceptionHandler a callback to call, when an exception happens while calculating the values
      */
-    public void subscribe(Consumer<T> observer, Runnable onComplete, Consumer<Exception> exceptionHandler) {
+    public synchronized void subscribe(Consumer<T> observer, Runnable onComplete, Consumer<Exception> exceptionHandler) {
         if (observer != null) {
             observers.add(observer);
+
+            if (!pendingValues.isEmpty()) {
+                List<T> values = new ArrayList<>(pendingValues);
+                pendingValues.clear();
+                values.forEach(observer);
+            }
         }
         if (onComplete != null) {
             completionListeners.add(onComplete);
@@ -33,6 +44,15 @@ public class Observable<T> {
         if (exceptionHandler != null) {
             exceptionListener.add(exceptionHandler);
         }
+
+        if (completed) {
+            if (exception == null && onComplete != null) {
+                onComplete.run();
+            }
+            if (exception != null && exceptionHandler != null) {
+                exceptionHandler.accept(exception);
+            }
+        }
     }
 
     public void subscribe(Consumer<T> observer, Runnable onComplete) {
@@ -48,7 +68,12 @@ public class Observable<T> {
      *
      * @param next the value
      */
-    public void onNext(T next) {
+    public synchronized void onNext(T next) {
+        if (observers.isEmpty()) {
+            pendingValues.add(next);
+            return;
+        }
+
         observers.forEach(it -> it.accept(next));
     }
 
@@ -56,16 +81,18 @@ public class Observable<T> {
 
     /**
      * Completes this observable with an exception.
+     * If there are subscribers, but none of them handles exceptions, the exception is rethrown.
      *
      * @param e the exception
      */
-    public void completeWithException(Exception e) {
+    public synchronized void completeWithException(Exception e) {
         if (completed) {
             throw new IllegalStateException(alreadyCompleted);
         }
 
         completed = true;
-        if (exceptionListener.isEmpty()) {
+        exception = e;
+        if (exceptionListener.isEmpty() && !(observers.isEmpty() && completionListeners.isEmpty())) {
             Exceptions.throwAsUnchecked(e);
         }
         exceptionListener.forEach(it -> it.accept(e));
@@ -74,7 +101,7 @@ public class Observable<T> {
     /**
      * Completes this observable.
      */
-    public void complete() {
+    public synchronized void complete() {
         if (completed) {
             throw new IllegalStateException(alreadyCompleted);
         }
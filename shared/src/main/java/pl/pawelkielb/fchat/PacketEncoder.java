@@ -5,19 +5,37 @@ import pl.pawelkielb.fchat.data.Name;
 import pl.pawelkielb.fchat.exceptions.PacketDecodeException;
 import pl.pawelkielb.fchat.packets.*;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.StringReader;
-import java.nio.charset.StandardCharsets;
-import java.util.*;
-import java.util.stream.Collectors;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
 
 
 /**
  * Converts packets to bytes and vice-versa.
+ * A packet is encoded as a single type byte followed by its fields written with a {@link BinaryWriter}.
  */
 public class PacketEncoder {
+    private static final byte SEND_MESSAGE = 1;
+    private static final byte REQUEST_MESSAGES = 2;
+    private static final byte UPDATE_CHANNEL = 3;
+    private static final byte REQUEST_LIVE = 4;
+    private static final byte LOGIN = 5;
+    private static final byte CHANNEL_UPDATED = 6;
+    private static final byte REQUEST_UPDATES = 7;
+    private static final byte SEND_FILE = 8;
+    private static final byte REQUEST_FILE = 9;
+    private static final byte LOGIN_RESPONSE = 10;
+    private static final byte UPLOAD_CREDIT = 11;
+    private static final byte CHUNK_CHECKSUM = 12;
+    private static final byte FILE_DIGEST = 13;
+    private static final byte MESSAGE_CURSOR = 14;
+    private static final byte SEARCH_MESSAGES = 15;
+    private static final byte FOUND_MESSAGE = 16;
+
+    /**
+     * Encodes any packet. The encoders of the single packet types are private, so a subclass
+     * can change the bytes of every packet by overriding this method.
+     */
     public byte[] toBytes(Packet packet) {
         byte[] packetBytes;
         if (packet instanceof SendMessagePacket sendMessagePacket) {
@@ -32,12 +50,26 @@ public class PacketEncoder {
             packetBytes = toBytes(loginPacket);
         } else if (packet instanceof ChannelUpdatedPacket channelUpdatedPacket) {
             packetBytes = toBytes(channelUpdatedPacket);
-        } else if (packet instanceof RequestUpdatesPacket) {
-            packetBytes = emptyPacket("RequestUpdates");
+        } else if (packet instanceof RequestUpdatesPacket requestUpdatesPacket) {
+            packetBytes = toBytes(requestUpdatesPacket);
         } else if (packet instanceof SendFilePacket sendFilePacket) {
             packetBytes = toBytes(sendFilePacket);
         } else if (packet instanceof RequestFilePacket requestFilePacket) {
             packetBytes = toBytes(requestFilePacket);
+        } else if (packet instanceof LoginResponsePacket loginResponsePacket) {
+            packetBytes = toBytes(loginResponsePacket);
+        } else if (packet instanceof UploadCreditPacket uploadCreditPacket) {
+            packetBytes = toBytes(uploadCreditPacket);
+        } else if (packet instanceof ChunkChecksumPacket chunkChecksumPacket) {
+            packetBytes = toBytes(chunkChecksumPacket);
+        } else if (packet instanceof FileDigestPacket fileDigestPacket) {
+            packetBytes = toBytes(fileDigestPacket);
+        } else if (packet instanceof MessageCursorPacket messageCursorPacket) {
+            packetBytes = toBytes(messageCursorPacket);
+        } else if (packet instanceof SearchMessagesPacket searchMessagesPacket) {
+            packetBytes = toBytes(searchMessagesPacket);
+        } else if (packet instanceof FoundMessagePacket foundMessagePacket) {
+            packetBytes = toBytes(foundMessagePacket);
         } else {
             throw new IllegalArgumentException("This packet type is not supported");
         }
@@ -45,190 +77,300 @@ public class PacketEncoder {
         return packetBytes;
     }
 
-    private static String propertiesToString(Properties properties) {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        OutputStreamWriter outputStreamWriter = new OutputStreamWriter(outputStream, StandardCharsets.UTF_8);
-        try {
-            properties.store(outputStreamWriter, null);
-        } catch (IOException ignore) {
+    private byte[] toBytes(SendMessagePacket packet) {
+        Message message = packet.message();
+        // 3 bytes of type and length prefixes, 16 bytes of uuid, the rest is usually ASCII
+        return new BinaryWriter(24 + message.author().value().length() + message.content().length())
+                .writeByte(SEND_MESSAGE)
+                .writeUuid(packet.channel())
+                .writeString(message.author().value())
+                .writeString(message.content())
+                .toByteArray();
+    }
+
+    private byte[] toBytes(RequestMessagesPacket packet) {
+        BinaryWriter writer = new BinaryWriter()
+                .writeByte(REQUEST_MESSAGES)
+                .writeUuid(packet.channel())
+                .writeVarInt(packet.count());
+
+        // servers which don't paginate the history ignore the trailing bytes
+        if (packet.before() != RequestMessagesPacket.newest || packet.since() != 0) {
+            // the cursor is shifted, so the newest messages are 0
+            writer.writeVarLong(packet.before() + 1);
+        }
+        if (packet.since() != 0) {
+            writer.writeVarLong(packet.since());
         }
 
-        return outputStream.toString();
+        return writer.toByteArray();
     }
 
-    public byte[] toBytes(SendMessagePacket packet) {
-        Properties properties = new Properties();
-        properties.setProperty("type", "SendMessage");
-        properties.setProperty("author", packet.message().author().value());
-        properties.setProperty("channel", packet.channel().toString());
-        properties.setProperty("message", packet.message().content());
-        String packetString = propertiesToString(properties);
+    private byte[] toBytes(UpdateChannelPacket packet) {
+        BinaryWriter writer = new BinaryWriter()
+                .writeByte(UPDATE_CHANNEL)
+                .writeUuid(packet.channel());
 
-        return packetString.getBytes();
-    }
+        // a name can't be blank, so an empty string means there is no name
+        writeNullableName(writer, packet.name());
 
-    public byte[] toBytes(RequestMessagesPacket packet) {
-        Properties properties = new Properties();
-        properties.setProperty("type", "RequestMessages");
-        properties.setProperty("channel", packet.channel().toString());
-        properties.setProperty("count", String.valueOf(packet.count()));
-        String packetString = propertiesToString(properties);
+        writer.writeVarInt(packet.members().size());
+        for (Name member : packet.members()) {
+            writer.writeString(member.value());
+        }
 
-        return packetString.getBytes();
+        return writer.toByteArray();
     }
 
-    public byte[] toBytes(UpdateChannelPacket packet) {
-        Properties properties = new Properties();
-        properties.setProperty("type", "UpdateChannel");
-        properties.setProperty("channel", packet.channel().toString());
-        if (packet.name() != null) {
-            properties.setProperty("name", packet.name().value());
-        }
-        properties.setProperty("members", packet.members().stream().map(Name::value).collect(Collectors.joining(",")));
-        String packetString = propertiesToString(properties);
+    private byte[] toBytes(RequestLivePacket packet) {
+        return new BinaryWriter()
+                .writeByte(REQUEST_LIVE)
+                .writeUuid(packet.channel())
+                .toByteArray();
+    }
+
+    private byte[] toBytes(LoginPacket packet) {
+        BinaryWriter writer = new BinaryWriter()
+                .writeByte(LOGIN)
+                .writeString(packet.username().value());
 
-        return packetString.getBytes();
+        // servers which don't negotiate the protocol ignore the trailing bytes
+        writeProtocol(writer, packet.protocol());
+
+        return writer.toByteArray();
     }
 
-    public byte[] toBytes(RequestLivePacket packet) {
-        Properties properties = new Properties();
-        properties.setProperty("type", "RequestLive");
-        properties.setProperty("channel", packet.channel().toString());
-        String packetString = propertiesToString(properties);
+    private byte[] toBytes(LoginResponsePacket packet) {
+        BinaryWriter writer = new BinaryWriter().writeByte(LOGIN_RESPONSE);
+        writeProtocol(writer, packet.protocol());
 
-        return packetString.getBytes();
+        return writer.toByteArray();
     }
 
-    public byte[] toBytes(LoginPacket packet) {
-        Properties properties = new Properties();
-        properties.setProperty("type", "Login");
-        properties.setProperty("username", packet.username().value());
-        String packetString = propertiesToString(properties);
+    private byte[] toBytes(UploadCreditPacket packet) {
+        return new BinaryWriter()
+                .writeByte(UPLOAD_CREDIT)
+                .writeVarInt(packet.chunks())
+                .toByteArray();
+    }
 
-        return packetString.getBytes();
+    private byte[] toBytes(ChunkChecksumPacket packet) {
+        return new BinaryWriter()
+                .writeByte(CHUNK_CHECKSUM)
+                .writeInt(packet.checksum())
+                .toByteArray();
     }
 
-    public byte[] toBytes(ChannelUpdatedPacket packet) {
-        Properties properties = new Properties();
-        properties.setProperty("type", "ChannelUpdated");
-        properties.setProperty("channel", packet.channel().toString());
-        properties.setProperty("name", packet.name().value());
-        String packetString = propertiesToString(properties);
+    private byte[] toBytes(FileDigestPacket packet) {
+        return new BinaryWriter()
+                .writeByte(FILE_DIGEST)
+                .writeString(packet.digest())
+                .toByteArray();
+    }
 
-        return packetString.getBytes();
+    private byte[] toBytes(MessageCursorPacket packet) {
+        return new BinaryWriter()
+                .writeByte(MESSAGE_CURSOR)
+                .writeVarLong(packet.before())
+                .toByteArray();
     }
 
-    public byte[] toBytes(SendFilePacket packet) {
-        Properties properties = new Properties();
-        properties.setProperty("type", "SendFile");
-        properties.setProperty("channel", packet.channel().toString());
-        properties.setProperty("name", packet.name().toString());
-        properties.setProperty("size", String.valueOf(packet.size()));
-        String packetString = propertiesToString(properties);
+    private byte[] toBytes(SearchMessagesPacket packet) {
+        BinaryWriter writer = new BinaryWriter()
+                .writeByte(SEARCH_MESSAGES)
+                .writeUuid(packet.channel())
+                .writeString(packet.query())
+                .writeVarInt(packet.count());
+
+        if (packet.before() != RequestMessagesPacket.newest) {
+            writer.writeVarLong(packet.before());
+        }
+
+        return writer.toByteArray();
+    }
 
-        return packetString.getBytes();
+    private byte[] toBytes(FoundMessagePacket packet) {
+        Message message = packet.message();
+        return new BinaryWriter(32 + message.author().value().length() + message.content().length())
+                .writeByte(FOUND_MESSAGE)
+                .writeUuid(packet.channel())
+                .writeVarLong(packet.sequence())
+                .writeString(message.author().value())
+                .writeString(message.content())
+                .toByteArray();
     }
 
-    public byte[] toBytes(RequestFilePacket packet) {
-        Properties properties = new Properties();
-        properties.setProperty("type", "RequestFile");
-        properties.setProperty("channel", packet.channel().toString());
-        properties.setProperty("name", packet.name().toString());
-        String packetString = propertiesToString(properties);
+    private byte[] toBytes(ChannelUpdatedPacket packet) {
+        return new BinaryWriter()
+                .writeByte(CHANNEL_UPDATED)
+                .writeUuid(packet.channel())
+                .writeString(packet.name().value())
+                .toByteArray();
+    }
 
-        return packetString.getBytes();
+    private byte[] toBytes(RequestUpdatesPacket packet) {
+        return new byte[]{REQUEST_UPDATES};
     }
 
-    public byte[] emptyPacket(String type) {
-        Properties properties = new Properties();
-        properties.setProperty("type", type);
-        String packetString = propertiesToString(properties);
+    private byte[] toBytes(SendFilePacket packet) {
+        return new BinaryWriter()
+                .writeByte(SEND_FILE)
+                .writeUuid(packet.channel())
+                .writeString(packet.name().value())
+                .writeVarLong(packet.size())
+                .writeVarLong(packet.offset())
+                .writeVarInt(packet.chunkSize())
+                .toByteArray();
+    }
 
-        return packetString.getBytes();
+    private byte[] toBytes(RequestFilePacket packet) {
+        return new BinaryWriter()
+                .writeByte(REQUEST_FILE)
+                .writeUuid(packet.channel())
+                .writeString(packet.name().value())
+                .writeVarLong(packet.offset())
+                .writeVarLong(packet.length())
+                .writeVarInt(packet.chunkSize())
+                .toByteArray();
     }
 
+    /**
+     * @throws PacketDecodeException    if the bytes are not a valid packet
+     * @throws IllegalArgumentException if the packet contains invalid values
+     */
     public Packet decode(byte[] packetBytes) {
-        String packetString = new String(packetBytes, StandardCharsets.UTF_8);
-        Properties properties = new Properties();
-        try {
-            properties.load(new StringReader(packetString));
-        } catch (IOException e) {
-            throw new AssertionError();
-        }
-        String packetType = properties.getProperty("type");
-        if (packetType == null) {
+        if (packetBytes.length == 0) {
             throw new PacketDecodeException("Unknown packet format");
         }
 
+        BinaryReader reader = new BinaryReader(packetBytes);
+        int packetType = reader.readByte();
+
         return switch (packetType) {
-            case "SendMessage" -> {
-                Name author = Name.of(properties.getProperty("author"));
-                UUID channel = UUID.fromString(properties.getProperty("channel"));
-                String message = properties.getProperty("message");
+            case SEND_MESSAGE -> {
+                UUID channel = reader.readUuid();
+                Name author = Name.of(reader.readString());
+                String message = reader.readString();
 
                 yield new SendMessagePacket(channel, new Message(author, message));
             }
 
-            case "RequestMessages" -> {
-                UUID channel = UUID.fromString(properties.getProperty("channel"));
-                int count = Integer.parseInt(properties.getProperty("count"));
+            case REQUEST_MESSAGES -> {
+                UUID channel = reader.readUuid();
+                int count = reader.readVarInt();
+                long before = reader.hasRemaining() ? reader.readVarLong() - 1 : RequestMessagesPacket.newest;
+                long since = reader.hasRemaining() ? reader.readVarLong() : 0;
 
-                yield new RequestMessagesPacket(channel, count);
+                yield new RequestMessagesPacket(channel, count, before, since);
             }
 
-            case "UpdateChannel" -> {
-                UUID channelId = UUID.fromString(properties.getProperty("channel"));
-                String channelString = properties.getProperty("name");
-                Name channelName = channelString != null ? Name.of(channelString) : null;
-                String membersString = properties.getProperty("members");
-
-                List<Name> members;
-                if (!membersString.isEmpty()) {
-                    members = Arrays.stream(membersString.split(",")).map(Name::of).toList();
-                } else {
-                    members = Collections.emptyList();
+            case UPDATE_CHANNEL -> {
+                UUID channelId = reader.readUuid();
+                Name channelName = readNullableName(reader);
+                int membersCount = reader.readVarInt();
+
+                List<Name> members = new ArrayList<>(Math.min(membersCount, 64));
+                for (int i = 0; i < membersCount; i++) {
+                    members.add(Name.of(reader.readString()));
                 }
 
-                yield new UpdateChannelPacket(channelId, channelName, members);
+                yield new UpdateChannelPacket(channelId, channelName, List.copyOf(members));
             }
 
-            case "RequestLivePacket" -> {
-                UUID channel = UUID.fromString(properties.getProperty("channel"));
+            case REQUEST_LIVE -> new RequestLivePacket(reader.readUuid());
 
-                yield new RequestLivePacket(channel);
+            case LOGIN -> {
+                Name username = Name.of(reader.readString());
+                Protocol protocol = reader.hasRemaining() ? readProtocol(reader) : Protocol.base;
+
+                yield new LoginPacket(username, protocol);
+            }
+
+            case LOGIN_RESPONSE -> new LoginResponsePacket(readProtocol(reader));
+
+            case UPLOAD_CREDIT -> new UploadCreditPacket(reader.readVarInt());
+
+            case CHUNK_CHECKSUM -> new ChunkChecksumPacket(reader.readInt());
+
+            case FILE_DIGEST -> new FileDigestPacket(reader.readString());
+
+            case MESSAGE_CURSOR -> new MessageCursorPacket(reader.readVarLong());
+
+            case SEARCH_MESSAGES -> {
+                UUID channel = reader.readUuid();
+                String query = reader.readString();
+                int count = reader.readVarInt();
+                long before = reader.hasRemaining() ? reader.readVarLong() : RequestMessagesPacket.newest;
+
+                yield new SearchMessagesPacket(channel, query, count, before);
             }
 
-            case "Login" -> {
-                Name username = Name.of(properties.getProperty("username"));
+            case FOUND_MESSAGE -> {
+                UUID channel = reader.readUuid();
+                long sequence = reader.readVarLong();
+                Name author = Name.of(reader.readString());
+                String content = reader.readString();
 
-                yield new LoginPacket(username);
+                yield new FoundMessagePacket(channel, sequence, new Message(author, content));
             }
 
-            case "ChannelUpdated" -> {
-                UUID channel = UUID.fromString(properties.getProperty("channel"));
-                Name name = Name.of(properties.getProperty("name"));
+            case CHANNEL_UPDATED -> {
+                UUID channel = reader.readUuid();
+                Name name = Name.of(reader.readString());
 
                 yield new ChannelUpdatedPacket(channel, name);
             }
 
-            case "RequestUpdates" -> new RequestUpdatesPacket();
+            case REQUEST_UPDATES -> new RequestUpdatesPacket();
 
-            case "SendFile" -> {
-                UUID channel = UUID.fromString(properties.getProperty("channel"));
-                Name name = Name.of(properties.getProperty("name"));
-                long size = Long.parseLong(properties.getProperty("size"));
+            case SEND_FILE -> {
+                UUID channel = reader.readUuid();
+                Name name = Name.of(reader.readString());
+                long size = reader.readVarLong();
+                // older parties don't send the range
+                long offset = reader.hasRemaining() ? reader.readVarLong() : 0;
+                int chunkSize = reader.hasRemaining() ? reader.readVarInt() : 0;
 
-                yield new SendFilePacket(channel, name, size);
+                yield new SendFilePacket(channel, name, size, offset, chunkSize);
             }
 
-            case "RequestFile" -> {
-                UUID channel = UUID.fromString(properties.getProperty("channel"));
-                Name name = Name.of(properties.getProperty("name"));
+            case REQUEST_FILE -> {
+                UUID channel = reader.readUuid();
+                Name name = Name.of(reader.readString());
+                if (!reader.hasRemaining()) {
+                    yield new RequestFilePacket(channel, name);
+                }
+
+                long offset = reader.readVarLong();
+                long length = reader.readVarLong();
+                // older clients accept chunks of any size
+                int chunkSize = reader.hasRemaining() ? reader.readVarInt() : 0;
 
-                yield new RequestFilePacket(channel, name);
+                yield new RequestFilePacket(channel, name, offset, length, chunkSize);
             }
 
             default -> throw new PacketDecodeException("Unknown packet type");
         };
     }
+
+    private static void writeProtocol(BinaryWriter writer, Protocol protocol) {
+        writer.writeVarInt(protocol.version());
+        writer.writeVarLong(Feature.toMask(protocol.features()));
+    }
+
+    private static Protocol readProtocol(BinaryReader reader) {
+        int version = reader.readVarInt();
+        long features = reader.readVarLong();
+
+        return new Protocol(Math.max(version, Protocol.baseVersion), Feature.fromMask(features));
+    }
+
+    private static void writeNullableName(BinaryWriter writer, Name name) {
+        writer.writeString(name != null ? name.value() : "");
+    }
+
+    private static Name readNullableName(BinaryReader reader) {
+        String string = reader.readString();
+        return string.isEmpty() ? null : Name.of(string);
+    }
 }
@@ -0,0 +1,77 @@
+package pl.pawelkielb.fchat;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+import static java.util.Objects.requireNonNull;
+
+
+/**
+ * A protocol level and a set of features used by a connection. Negotiated during the login:
+ * the client sends what it supports in a LoginPacket and the server replies with the chosen protocol
+ * in a LoginResponsePacket. Clients which send no protocol are treated as {@link #base}.
+ *
+ * @param version  a protocol level
+ * @param features optional features
+ */
+public record Protocol(int version, Set<Feature> features) {
+    /**
+     * The binary packet format without the login response.
+     */
+    public static final int baseVersion = 1;
+
+    /**
+     * Adds the login response and features.
+     */
+    public static final int currentVersion = 2;
+
+    public static final Protocol base = new Protocol(baseVersion, Set.of());
+
+    public Protocol {
+        if (version < baseVersion) {
+            throw new IllegalArgumentException("The protocol version cannot be less than " + baseVersion);
+        }
+        features = Set.copyOf(requireNonNull(features));
+    }
+
+    /**
+     * @return The protocol supported by this version of fchat.
+     */
+    public static Protocol current() {
+        return new Protocol(currentVersion, EnumSet.allOf(Feature.class));
+    }
+
+    /**
+     * @param other a protocol supported by the other party
+     * @return The highest protocol supported by both parties.
+     */
+    public Protocol negotiate(Protocol other) {
+        Set<Feature> commonFeatures = EnumSet.noneOf(Feature.class);
+        commonFeatures.addAll(features);
+        commonFeatures.retainAll(other.features);
+
+        return new Protocol(Math.min(version, other.version), commonFeatures);
+    }
+
+    public boolean supports(Feature feature) {
+        return features.contains(feature);
+    }
+
+    /**
+     * @return True if the other party expects a LoginResponsePacket.
+     */
+    public boolean hasLoginResponse() {
+        return version >= 2;
+    }
+
+    /**
+     * @return A packet encoder that should be used with this protocol.
+     */
+    public PacketEncoder packetEncoder() {
+        if (supports(Feature.COMPRESSION)) {
+            return new CompressingPacketEncoder();
+        }
+
+        return new PacketEncoder();
+    }
+}
@@ -3,7 +3,6 @@ package pl.pawelkielb.fchat;
 import java.util.LinkedList;
 import java.util.Queue;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 
@@ -18,13 +17,13 @@ public class TaskQueue {
     }
 
     private final Queue<Task<?>> tasks = new LinkedList<>();
-    private ReentrantLock lock = new ReentrantLock();
+    private boolean working = false;
 
     /**
      * @return True if some task is running, false when all the tasks has been finished.
      */
-    public boolean isWorking() {
-        return lock.isLocked();
+    public synchronized boolean isWorking() {
+        return working;
     }
 
     /**
@@ -41,8 +40,14 @@ public class TaskQueue {
      */
     public <T> CompletableFuture<T> runSuspend(Consumer<CompletableFuture<T>> fn) {
         CompletableFuture<T> future = new CompletableFuture<>();
-        tasks.add(new Task<>(fn, future));
-        if (!lock.isLocked() && lock.tryLock()) {
+        boolean shouldStart;
+        synchronized (this) {
+            tasks.add(new Task<>(fn, future));
+            shouldStart = !working;
+            working = true;
+        }
+
+        if (shouldStart) {
             runNext();
         }
 
@@ -75,19 +80,28 @@ public class TaskQueue {
 
     private <T> void processTask(Task<T> task) {
         CompletableFuture<T> future = new CompletableFuture<>();
-        future.thenAccept(result -> {
-            task.future.complete(result);
+        future.whenComplete((result, exception) -> {
+            if (exception != null) {
+                task.future.completeExceptionally(exception);
+            } else {
+                task.future.complete(result);
+            }
             runNext();
         });
         task.fn.accept(future);
     }
 
     private void runNext() {
-        var task = tasks.poll();
+        Task<?> task;
+        synchronized (this) {
+            task = tasks.poll();
+            if (task == null) {
+                working = false;
+            }
+        }
+
         if (task != null) {
             processTask(task);
-        } else {
-            lock = new ReentrantLock();
         }
     }
 }
@@ -1,5 +1,30 @@
 package pl.pawelkielb.fchat;
 
 public abstract class TransferSettings {
-    public static int fileChunkSizeInBytes = 1000000;
+    /**
+     * Bounds of the file chunks' size, which is chosen during a transfer, see {@link ChunkSizer}.
+     */
+    public static final int initialFileChunkSizeInBytes = 256 * 1024;
+    public static final int minFileChunkSizeInBytes = 64 * 1024;
+    public static final int maxFileChunkSizeInBytes = 16 * 1024 * 1024;
+
+    /**
+     * How long it should take to deliver a single file chunk. The round trip has to be only a small part of it.
+     */
+    public static final int fileChunkTimeInMillis = 100;
+
+    /**
+     * The biggest packet or file chunk accepted from the other party, so a forged length can't exhaust the memory.
+     */
+    public static final int maxPacketSizeInBytes = maxFileChunkSizeInBytes + 1024 * 1024;
+
+    /**
+     * How many chunks of an upload may be on the way to the server at once, see {@link Feature#WINDOWED_UPLOAD}.
+     */
+    public static int uploadWindowSizeInChunks = 8;
+
+    /**
+     * How many connections are used at once by a parallel download.
+     */
+    public static int parallelDownloadConnections = 4;
 }
@@ -0,0 +1,12 @@
+package pl.pawelkielb.fchat.exceptions;
+
+import java.net.ProtocolException;
+
+/**
+ * Thrown when transferred bytes don't match their checksum, which means they were damaged on the way.
+ */
+public class ChecksumMismatchException extends ProtocolException {
+    public ChecksumMismatchException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,9 @@
+package pl.pawelkielb.fchat.packets;
+
+/**
+ * Sent right after every file chunk, see {@link pl.pawelkielb.fchat.Feature#CHECKSUMS}.
+ *
+ * @param checksum a CRC32C of the chunk
+ */
+public record ChunkChecksumPacket(int checksum) implements Packet {
+}
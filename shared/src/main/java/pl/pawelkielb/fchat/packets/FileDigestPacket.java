@@ -0,0 +1,15 @@
+package pl.pawelkielb.fchat.packets;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Sent by the server at the end of a file transfer, see {@link pl.pawelkielb.fchat.Feature#CHECKSUMS}.
+ * After an upload it's the digest of the saved file and after a download the digest of the whole stored file.
+ *
+ * @param digest a hex-encoded SHA-256 of the whole file
+ */
+public record FileDigestPacket(String digest) implements Packet {
+    public FileDigestPacket {
+        requireNonNull(digest);
+    }
+}
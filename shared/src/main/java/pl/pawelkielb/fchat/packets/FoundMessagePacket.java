@@ -0,0 +1,22 @@
+package pl.pawelkielb.fchat.packets;
+
+import pl.pawelkielb.fchat.data.Message;
+
+import java.util.UUID;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A message found with a {@link SearchMessagesPacket}.
+ *
+ * @param sequence the message's position in the channel's history
+ */
+public record FoundMessagePacket(UUID channel, long sequence, Message message) implements Packet {
+    public FoundMessagePacket {
+        requireNonNull(channel);
+        requireNonNull(message);
+        if (sequence < 0) {
+            throw new IllegalArgumentException("The sequence number cannot be negative");
+        }
+    }
+}
@@ -1,11 +1,23 @@
 package pl.pawelkielb.fchat.packets;
 
+import pl.pawelkielb.fchat.Protocol;
 import pl.pawelkielb.fchat.data.Name;
 
 import static java.util.Objects.requireNonNull;
 
-public record LoginPacket(Name username) implements Packet {
+/**
+ * @param protocol the protocol supported by the client
+ */
+public record LoginPacket(Name username, Protocol protocol) implements Packet {
     public LoginPacket {
         requireNonNull(username);
+        requireNonNull(protocol);
+    }
+
+    /**
+     * A login of a client which doesn't negotiate the protocol.
+     */
+    public LoginPacket(Name username) {
+        this(username, Protocol.base);
     }
 }
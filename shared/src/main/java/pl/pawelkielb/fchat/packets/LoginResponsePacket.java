@@ -0,0 +1,16 @@
+package pl.pawelkielb.fchat.packets;
+
+import pl.pawelkielb.fchat.Protocol;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Sent by the server in response to a {@link LoginPacket}, if the client's protocol has a login response.
+ *
+ * @param protocol the protocol chosen by the server. Both parties use it starting with the next packet.
+ */
+public record LoginResponsePacket(Protocol protocol) implements Packet {
+    public LoginResponsePacket {
+        requireNonNull(protocol);
+    }
+}
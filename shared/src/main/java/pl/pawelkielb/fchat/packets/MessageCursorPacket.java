@@ -0,0 +1,15 @@
+package pl.pawelkielb.fchat.packets;
+
+/**
+ * Sent by the server after a page of messages (see {@link pl.pawelkielb.fchat.Feature#PAGINATION}).
+ *
+ * @param before a cursor to request the older page with, see {@link RequestMessagesPacket#before()}.
+ *               It's 0 if there are no older messages.
+ */
+public record MessageCursorPacket(long before) implements Packet {
+    public MessageCursorPacket {
+        if (before < 0) {
+            throw new IllegalArgumentException("The cursor cannot be negative");
+        }
+    }
+}
@@ -6,9 +6,37 @@ import java.util.UUID;
 
 import static java.util.Objects.requireNonNull;
 
-public record RequestFilePacket(UUID channel, Name name) implements Packet {
+/**
+ * Requests a range of a file. The range ends at the end of the file even if the length is bigger.
+ *
+ * @param offset    a position of the first byte to send
+ * @param length    a maximum count of bytes to send
+ * @param chunkSize the biggest chunk the client is willing to receive or 0 if it accepts any size,
+ *                  see {@link pl.pawelkielb.fchat.ChunkSizer}
+ */
+public record RequestFilePacket(UUID channel, Name name, long offset, long length, int chunkSize) implements Packet {
     public RequestFilePacket {
         requireNonNull(channel);
         requireNonNull(name);
+        if (offset < 0) {
+            throw new IllegalArgumentException("The offset cannot be negative");
+        }
+        if (length < 0) {
+            throw new IllegalArgumentException("The length cannot be negative");
+        }
+        if (chunkSize < 0) {
+            throw new IllegalArgumentException("The chunk size cannot be negative");
+        }
+    }
+
+    public RequestFilePacket(UUID channel, Name name, long offset, long length) {
+        this(channel, name, offset, length, 0);
+    }
+
+    /**
+     * Requests the whole file.
+     */
+    public RequestFilePacket(UUID channel, Name name) {
+        this(channel, name, 0, Long.MAX_VALUE);
     }
 }
@@ -4,11 +4,38 @@ import java.util.UUID;
 
 import static java.util.Objects.requireNonNull;
 
-public record RequestMessagesPacket(UUID channel, int count) implements Packet {
+/**
+ * Requests a page of the channel's history. The messages are sent back as {@link SendMessagePacket}s,
+ * from the oldest one, followed by a {@link MessageCursorPacket} if the connection supports
+ * {@link pl.pawelkielb.fchat.Feature#PAGINATION}.
+ *
+ * @param count  a count of messages to read
+ * @param before a sequence number of the message right after the page or {@link #newest} for the newest messages.
+ *               It's usually taken from the {@link MessageCursorPacket} of the previous page.
+ * @param since  a time in milliseconds since the epoch. Only the messages saved on the server at that time or later
+ *               are read, see {@link pl.pawelkielb.fchat.Feature#TIME_RANGES}. It's 0 if all of them should be read.
+ */
+public record RequestMessagesPacket(UUID channel, int count, long before, long since) implements Packet {
+    public static final long newest = -1;
+
     public RequestMessagesPacket {
         requireNonNull(channel);
         if (count < 1) {
             throw new IllegalArgumentException("count might not be smaller than 1");
         }
+        if (before < newest) {
+            throw new IllegalArgumentException("The cursor cannot be negative");
+        }
+        if (since < 0) {
+            throw new IllegalArgumentException("The time cannot be negative");
+        }
+    }
+
+    public RequestMessagesPacket(UUID channel, int count, long before) {
+        this(channel, count, before, 0);
+    }
+
+    public RequestMessagesPacket(UUID channel, int count) {
+        this(channel, count, newest);
     }
 }
@@ -0,0 +1,31 @@
+package pl.pawelkielb.fchat.packets;
+
+import java.util.UUID;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Searches the channel's history for the messages containing all the words of the query
+ * (see {@link pl.pawelkielb.fchat.Feature#SEARCH}). The found messages are sent back as {@link FoundMessagePacket}s,
+ * from the oldest one, followed by null.
+ *
+ * @param count  the biggest count of messages to find. The newest ones are found first.
+ * @param before a sequence number after the last message to search or {@link RequestMessagesPacket#newest}.
+ *               The older results are found by passing the sequence number of the oldest found message.
+ */
+public record SearchMessagesPacket(UUID channel, String query, int count, long before) implements Packet {
+    public SearchMessagesPacket {
+        requireNonNull(channel);
+        requireNonNull(query);
+        if (count < 1) {
+            throw new IllegalArgumentException("count might not be smaller than 1");
+        }
+        if (before < RequestMessagesPacket.newest) {
+            throw new IllegalArgumentException("The cursor cannot be negative");
+        }
+    }
+
+    public SearchMessagesPacket(UUID channel, String query, int count) {
+        this(channel, query, count, RequestMessagesPacket.newest);
+    }
+}
@@ -6,12 +6,36 @@ import java.util.UUID;
 
 import static java.util.Objects.requireNonNull;
 
-public record SendFilePacket(UUID channel, Name name, long size) implements Packet {
+/**
+ * Starts sending a file. The chunks of the file are sent as byte arrays after this packet.
+ *
+ * @param size   a size of the whole file
+ * @param offset a position of the first sent byte. When uploading it's a position the client would like to continue
+ *               from and the server answers with the position it actually has, see
+ *               {@link pl.pawelkielb.fchat.Feature#RESUMABLE_TRANSFERS}.
+ * @param chunkSize the biggest chunk the sender of this packet is willing to receive or 0 if it accepts any size,
+ *                  see {@link pl.pawelkielb.fchat.ChunkSizer}
+ */
+public record SendFilePacket(UUID channel, Name name, long size, long offset, int chunkSize) implements Packet {
     public SendFilePacket {
         requireNonNull(channel);
         requireNonNull(name);
         if (size < 1) {
             throw new IllegalArgumentException("The size cannot be less than 1");
         }
+        if (offset < 0 || offset > size) {
+            throw new IllegalArgumentException("The offset has to be between 0 and the size");
+        }
+        if (chunkSize < 0) {
+            throw new IllegalArgumentException("The chunk size cannot be negative");
+        }
+    }
+
+    public SendFilePacket(UUID channel, Name name, long size, long offset) {
+        this(channel, name, size, offset, 0);
+    }
+
+    public SendFilePacket(UUID channel, Name name, long size) {
+        this(channel, name, size, 0);
     }
 }
@@ -0,0 +1,16 @@
+package pl.pawelkielb.fchat.packets;
+
+/**
+ * Sent by the server during a windowed upload (see {@link pl.pawelkielb.fchat.Feature#WINDOWED_UPLOAD}).
+ * The client may send as many file chunks as it was given credit for without waiting for the server.
+ * The server gives the credit back after the chunks are written, so it never buffers more than the window.
+ *
+ * @param chunks how many more chunks the client may send
+ */
+public record UploadCreditPacket(int chunks) implements Packet {
+    public UploadCreditPacket {
+        if (chunks < 0) {
+            throw new IllegalArgumentException("Credit cannot be negative");
+        }
+    }
+}
@@ -0,0 +1,68 @@
+import io.kotest.core.spec.style.WordSpec
+import io.kotest.matchers.ints.shouldBeGreaterThan
+import io.kotest.matchers.ints.shouldBeLessThan
+import io.kotest.matchers.shouldBe
+import pl.pawelkielb.fchat.ChunkSizer
+import pl.pawelkielb.fchat.TransferSettings
+import java.util.concurrent.TimeUnit
+
+private const val freeMemory = 1024L * 1024 * 1024
+
+class ChunkSizerTest : WordSpec({
+    "nextChunkSize()" should {
+        "start with the initial size" {
+            ChunkSizer().use {
+                it.nextChunkSize() shouldBe TransferSettings.initialFileChunkSizeInBytes
+            }
+        }
+
+        "grow when chunks are delivered quickly" {
+            var now = 0L
+            ChunkSizer(0, { now }, { freeMemory }).use {
+                val size = it.nextChunkSize()
+                it.chunkSent(size)
+                now += TimeUnit.MILLISECONDS.toNanos(1)
+                it.chunkAcknowledged()
+
+                it.nextChunkSize() shouldBeGreaterThan size
+            }
+        }
+
+        "shrink when the delivery slows down" {
+            var now = 0L
+            ChunkSizer(0, { now }, { freeMemory }).use {
+                it.chunkSent(it.nextChunkSize())
+                now += TimeUnit.MILLISECONDS.toNanos(1)
+                it.chunkAcknowledged()
+
+                val size = it.nextChunkSize()
+                it.chunkSent(size)
+                now += TimeUnit.MILLISECONDS.toNanos(TransferSettings.fileChunkTimeInMillis * 3L)
+                it.chunkAcknowledged()
+
+                it.nextChunkSize() shouldBeLessThan size
+            }
+        }
+
+        "not exceed a share of the free memory" {
+            // a chunk might be in memory in 4 copies
+            ChunkSizer(0, System::nanoTime, { 4L * 100_000 }).use {
+                it.nextChunkSize() shouldBe 100_000
+            }
+        }
+
+        "not exceed the other party's limit" {
+            ChunkSizer(1000).use {
+                it.nextChunkSize() shouldBe 1000
+            }
+        }
+
+        "ignore acknowledgements of nothing" {
+            ChunkSizer().use {
+                it.chunkAcknowledged()
+
+                it.nextChunkSize() shouldBe TransferSettings.initialFileChunkSizeInBytes
+            }
+        }
+    }
+})
@@ -0,0 +1,210 @@
+import io.kotest.core.spec.style.WordSpec
+import io.kotest.matchers.collections.shouldBeEmpty
+import io.kotest.matchers.shouldBe
+import pl.pawelkielb.fchat.Connection
+import pl.pawelkielb.fchat.PacketEncoder
+import pl.pawelkielb.fchat.TransferSettings
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.StandardOpenOption
+import java.util.ArrayDeque
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
+import java.util.function.Function
+import java.util.zip.CRC32C
+import java.util.zip.Checksum
+
+private const val windowFlag = 0x40000000
+private const val windowSize = TransferSettings.maxPacketSizeInBytes + 64 * 1024
+
+private fun Int.toBytes() = ByteBuffer.allocate(Integer.BYTES).putInt(this).array()
+
+/**
+ * A connection that returns the queued arrays one by one and keeps the sent ones. When the queue is empty,
+ * the header of the held array is read and the rest of it is returned by [release]. Otherwise the read never completes.
+ */
+private class FakeConnection : Connection(PacketEncoder(), Runnable::run, Runnable::run, {}) {
+    val incoming = ArrayDeque<Pair<Int, ByteArray>>()
+    val sent = mutableListOf<Pair<Int, ByteArray>>()
+    var held: Pair<Int, ByteArray>? = null
+    var reads = 0
+    var closed = false
+    private var release: (() -> Unit)? = null
+
+    fun release() {
+        release!!()
+    }
+
+    override fun close(): CompletableFuture<Void> {
+        closed = true
+        return super.close()
+    }
+
+    override fun sendBytesInternal(header: ByteArray, bytes: ByteArray): CompletableFuture<Void> {
+        sent.add(Pair(ByteBuffer.wrap(header).getInt(), bytes))
+        return CompletableFuture.completedFuture(null)
+    }
+
+    override fun sendFileRegionInternal(
+        header: ByteArray,
+        file: FileChannel,
+        position: Long,
+        count: Int,
+        checksum: Checksum?
+    ): CompletableFuture<Void> = CompletableFuture.completedFuture(null)
+
+    override fun readFrameInternal(
+        headerLength: Int,
+        sinkSelector: Function<ByteArray, FileSink?>
+    ): CompletableFuture<Frame> {
+        reads++
+        val future = CompletableFuture<Frame>()
+        val hold = incoming.isEmpty()
+        val (streamId, bytes) = incoming.poll() ?: held ?: return future
+        val header = streamId.toBytes()
+        val sink = sinkSelector.apply(header)
+        val read: () -> Unit = {
+            if (sink == null) {
+                future.complete(Frame(header, bytes, bytes.size))
+            } else {
+                sink.file().write(ByteBuffer.wrap(bytes), sink.position())
+                future.complete(Frame(header, null, bytes.size))
+            }
+        }
+
+        if (hold) {
+            release = read
+        } else {
+            read()
+        }
+        return future
+    }
+}
+
+class MultiplexerTest : WordSpec({
+    "acceptStreams()" should {
+        "pass arrays to the accepted streams" {
+            val connection = FakeConnection()
+            connection.incoming.add(Pair(1, byteArrayOf(1, 2)))
+            connection.incoming.add(Pair(2, byteArrayOf(3)))
+            connection.incoming.add(Pair(1, byteArrayOf(4)))
+            val streams = mutableListOf<Connection>()
+
+            connection.multiplexer().acceptStreams { streams.add(it) }
+
+            streams.size shouldBe 2
+            streams[0].readBytes().join().toList() shouldBe listOf<Byte>(1, 2)
+            streams[0].readBytes().join().toList() shouldBe listOf<Byte>(4)
+            streams[1].readBytes().join().toList() shouldBe listOf<Byte>(3)
+        }
+
+        "keep reading the connection when a stream's arrays aren't read" {
+            val connection = FakeConnection()
+            // more than the biggest array, but still within the window
+            repeat(17) {
+                connection.incoming.add(Pair(1, ByteArray(1024 * 1024)))
+            }
+            connection.incoming.add(Pair(2, byteArrayOf(1)))
+            val streams = mutableListOf<Connection>()
+
+            connection.multiplexer().acceptStreams { streams.add(it) }
+
+            streams.size shouldBe 2
+            streams[1].readBytes().join().toList() shouldBe listOf<Byte>(1)
+        }
+
+        "grant the window back when the arrays are read" {
+            val connection = FakeConnection()
+            repeat(100) {
+                connection.incoming.add(Pair(1, ByteArray(1024)))
+            }
+            val streams = mutableListOf<Connection>()
+            connection.multiplexer().acceptStreams { streams.add(it) }
+
+            repeat(63) { streams[0].readBytes().join() }
+            connection.sent.shouldBeEmpty()
+            streams[0].readBytes().join()
+
+            connection.sent.map { it.first } shouldBe listOf(1 or windowFlag)
+            connection.sent[0].second.toList() shouldBe (64 * 1024).toBytes().toList()
+        }
+
+        "disconnect when a stream's window is exceeded" {
+            val connection = FakeConnection()
+            connection.incoming.add(Pair(1, ByteArray(windowSize)))
+            connection.incoming.add(Pair(1, byteArrayOf(1)))
+            val streams = mutableListOf<Connection>()
+
+            connection.multiplexer().acceptStreams { streams.add(it) }
+
+            connection.closed shouldBe true
+            streams[0].readBytes().join().size shouldBe windowSize
+            streams[0].readBytes().isCompletedExceptionally shouldBe true
+        }
+
+        "disconnect when too many streams are opened" {
+            val connection = FakeConnection()
+            for (id in 1..33) {
+                connection.incoming.add(Pair(id, byteArrayOf(1)))
+            }
+            val streams = mutableListOf<Connection>()
+
+            connection.multiplexer().acceptStreams { streams.add(it) }
+
+            connection.closed shouldBe true
+            streams.size shouldBe 32
+        }
+        "write an array to a file when the file read starts after the array's header is read" {
+            val connection = FakeConnection()
+            connection.incoming.add(Pair(1, byteArrayOf(1)))
+            connection.held = Pair(1, byteArrayOf(2, 3, 4))
+            val streams = mutableListOf<Connection>()
+            val path = Files.createTempFile("multiplexer", null)
+
+            FileChannel.open(path, StandardOpenOption.WRITE).use { file ->
+                connection.multiplexer().acceptStreams { streams.add(it) }
+                streams[0].readBytes().join().toList() shouldBe listOf<Byte>(1)
+
+                val read = streams[0].readBytes(file, 0)
+                connection.release()
+
+                read.get(5, TimeUnit.SECONDS) shouldBe 3
+            }
+            Files.readAllBytes(path).toList() shouldBe listOf<Byte>(2, 3, 4)
+            Files.delete(path)
+        }
+
+        "update the checksum with an array copied from memory to a file" {
+            val connection = FakeConnection()
+            connection.incoming.add(Pair(1, byteArrayOf(1, 2, 3)))
+            val streams = mutableListOf<Connection>()
+            val path = Files.createTempFile("multiplexer", null)
+            val checksum = CRC32C()
+
+            FileChannel.open(path, StandardOpenOption.WRITE).use { file ->
+                connection.multiplexer().acceptStreams { streams.add(it) }
+
+                streams[0].readBytes(file, 0, checksum).get(5, TimeUnit.SECONDS) shouldBe 3
+            }
+            checksum.value shouldBe CRC32C().apply { update(byteArrayOf(1, 2, 3)) }.value
+            Files.delete(path)
+        }
+    }
+
+    "sendBytes()" should {
+        "wait until the other party grants the window back" {
+            val connection = FakeConnection()
+            val stream = connection.multiplexer().openStream()
+            stream.sendBytes(ByteArray(windowSize)).join()
+            connection.held = Pair(stream.id() or windowFlag, (64 * 1024).toBytes())
+
+            val send = stream.sendBytes(byteArrayOf(1))
+
+            send.isDone shouldBe false
+            connection.release()
+            send.isDone shouldBe true
+            connection.sent.last().second.toList() shouldBe listOf<Byte>(1)
+        }
+    }
+})
@@ -0,0 +1,100 @@
+import io.kotest.assertions.throwables.shouldThrow
+import io.kotest.core.spec.style.WordSpec
+import io.kotest.matchers.shouldBe
+import pl.pawelkielb.fchat.CompressingPacketEncoder
+import pl.pawelkielb.fchat.PacketEncoder
+import pl.pawelkielb.fchat.Protocol
+import pl.pawelkielb.fchat.TransferSettings
+import pl.pawelkielb.fchat.data.Message
+import pl.pawelkielb.fchat.data.Name
+import pl.pawelkielb.fchat.exceptions.PacketDecodeException
+import pl.pawelkielb.fchat.packets.*
+import java.util.*
+import java.util.zip.Deflater
+
+class PacketEncoderTest : WordSpec({
+    val packetEncoder = PacketEncoder()
+    val channel = UUID.randomUUID()
+
+    "decode()" should {
+        "decode every packet encoded by toBytes()" {
+            val packets = listOf(
+                SendMessagePacket(channel, Message(Name.of("Paul"), "Hello\nworld ąęś =,#")),
+                RequestMessagesPacket(channel, 300),
+                RequestMessagesPacket(channel, 300, 0),
+                RequestMessagesPacket(channel, 300, 5_000_000_000L),
+                RequestMessagesPacket(channel, 300, RequestMessagesPacket.newest, 1_700_000_000_000L),
+                RequestMessagesPacket(channel, 300, 1_000, 1_700_000_000_000L),
+                UpdateChannelPacket(channel, Name.of("Coders"), listOf(Name.of("Paul"), Name.of("Damian"))),
+                UpdateChannelPacket(channel, null, emptyList()),
+                RequestLivePacket(channel),
+                LoginPacket(Name.of("Paul")),
+                LoginPacket(Name.of("Paul"), Protocol.current()),
+                LoginResponsePacket(Protocol.current()),
+                ChannelUpdatedPacket(channel, Name.of("Coders")),
+                RequestUpdatesPacket(),
+                SendFilePacket(channel, Name.of("file.txt"), 5_000_000_000L),
+                SendFilePacket(channel, Name.of("file.txt"), 5_000_000_000L, 1_000_000L),
+                RequestFilePacket(channel, Name.of("file.txt")),
+                RequestFilePacket(channel, Name.of("file.txt"), 1_000_000L, 500L),
+                UploadCreditPacket(8),
+                ChunkChecksumPacket(-1_234_567_890),
+                FileDigestPacket("9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08"),
+                MessageCursorPacket(0),
+                MessageCursorPacket(1_234),
+                SearchMessagesPacket(channel, "hello world", 20),
+                SearchMessagesPacket(channel, "hello", 20, 1_000),
+                FoundMessagePacket(channel, 1_000, Message(Name.of("Paul"), "Hello world"))
+            )
+
+            packets.forEach {
+                packetEncoder.decode(packetEncoder.toBytes(it)) shouldBe it
+            }
+        }
+
+        "throw PacketDecodeException when the packet is truncated" {
+            val bytes = packetEncoder.toBytes(SendMessagePacket(channel, Message(Name.of("Paul"), "Hello")))
+
+            shouldThrow<PacketDecodeException> {
+                packetEncoder.decode(bytes.copyOf(bytes.size - 1))
+            }
+        }
+
+        "throw PacketDecodeException when the packet type is unknown" {
+            shouldThrow<PacketDecodeException> {
+                packetEncoder.decode(byteArrayOf(127))
+            }
+        }
+    }
+
+    "CompressingPacketEncoder" should {
+        val compressingPacketEncoder = CompressingPacketEncoder()
+
+        "decode compressed packets" {
+            val packet = SendMessagePacket(channel, Message(Name.of("Paul"), "Hello world! ".repeat(500)))
+            val bytes = compressingPacketEncoder.toBytes(packet)
+
+            (bytes.size < packetEncoder.toBytes(packet).size) shouldBe true
+            compressingPacketEncoder.decode(bytes) shouldBe packet
+        }
+
+        "decode small packets" {
+            val packet = LoginPacket(Name.of("Paul"))
+
+            compressingPacketEncoder.decode(compressingPacketEncoder.toBytes(packet)) shouldBe packet
+        }
+
+        "throw PacketDecodeException when a packet inflates beyond the biggest packet size" {
+            val deflater = Deflater()
+            deflater.setInput(ByteArray(TransferSettings.maxPacketSizeInBytes + 1))
+            deflater.finish()
+            val deflated = ByteArray(1024 * 1024)
+            val length = deflater.deflate(deflated)
+            deflater.end()
+
+            shouldThrow<PacketDecodeException> {
+                compressingPacketEncoder.decode(byteArrayOf(1) + deflated.copyOf(length))
+            }
+        }
+    }
+})